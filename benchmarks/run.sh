@@ -0,0 +1,75 @@
+#!/usr/bin/env bash
+# Builds and runs the JMH benchmarks with nothing but a JDK and curl, the same
+# way compile.bat builds the application: no build tool, just javac. The pinned JMH
+# jars are downloaded into benchmarks/lib on first use; the sources in src/ and
+# benchmarks/src are compiled together with JMH's annotation processor.
+#
+# Usage (from anywhere):
+#   benchmarks/run.sh                   run everything, compare with the baseline
+#   benchmarks/run.sh Json -p ...       any JMH arguments, e.g. a benchmark name regex
+#   benchmarks/run.sh --baseline        run everything and make it the new baseline
+#   benchmarks/run.sh --compare FILE    compare a saved result file with the baseline
+#
+# Each run leaves its results in benchmarks/results/latest.csv (and .txt).
+set -euo pipefail
+
+JMH_VERSION=1.37
+REPO=https://repo1.maven.org/maven2
+DIR="$(cd "$(dirname "$0")" && pwd)"
+LIB="$DIR/lib"
+BUILD="$DIR/build"
+RESULTS="$DIR/results"
+BASELINE="$DIR/baseline/results.csv"
+export LC_ALL=C # JMH formats numbers in the default locale
+
+jars=(
+    "org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar"
+    "org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar"
+    "net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar"
+    "org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar"
+)
+mkdir -p "$LIB"
+classpath=""
+for jar in "${jars[@]}"; do
+    file="$LIB/$(basename "$jar")"
+    if [ ! -f "$file" ]; then
+        echo "Downloading $(basename "$jar")"
+        curl -fsSL -o "$file.tmp" "$REPO/$jar"
+        mv "$file.tmp" "$file"
+    fi
+    classpath="$classpath:$file"
+done
+classpath="${classpath#:}"
+
+compare() {
+    java -cp "$BUILD" bench.CompareResults "$BASELINE" "$1"
+}
+
+rm -rf "$BUILD"
+mkdir -p "$BUILD" "$RESULTS"
+javac -nowarn -d "$BUILD" -cp "$classpath" -processorpath "$classpath" \
+    $(find "$DIR/../src" "$DIR/src" -name '*.java')
+
+if [ "${1:-}" = "--compare" ]; then
+    compare "$2"
+    exit
+fi
+
+save_baseline=false
+if [ "${1:-}" = "--baseline" ]; then
+    save_baseline=true
+    shift
+fi
+
+java -cp "$BUILD:$classpath" org.openjdk.jmh.Main -rf csv -rff "$RESULTS/latest.csv" "$@" \
+    | tee "$RESULTS/latest.txt"
+
+if $save_baseline; then
+    mkdir -p "$(dirname "$BASELINE")"
+    cp "$RESULTS/latest.csv" "$BASELINE"
+    cp "$RESULTS/latest.txt" "${BASELINE%.csv}.txt"
+    echo "Saved as the new baseline in ${BASELINE#$DIR/../}"
+elif [ -f "$BASELINE" ]; then
+    echo
+    compare "$RESULTS/latest.csv"
+fi
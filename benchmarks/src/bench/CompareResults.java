@@ -0,0 +1,109 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Compares two JMH result files written with -rf csv (normally the checked-in baseline
+// and the latest run) and prints one line per benchmark present in both: the scores,
+// the change, and a verdict. A change counts as faster or slower only when the two
+// scores' error intervals do not overlap; anything else is reported as noise.
+//
+// Usage: java -cp benchmarks/build bench.CompareResults <baseline.csv> <current.csv>
+public class CompareResults {
+    private static final class Result {
+        String mode;
+        double score;
+        double error;
+        String unit;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: CompareResults <baseline.csv> <current.csv>");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(Paths.get(args[0]));
+        Map<String, Result> current = read(Paths.get(args[1]));
+
+        int width = 20;
+        for (String name : current.keySet()) width = Math.max(width, name.length());
+        System.out.printf("%-" + width + "s %14s %14s %8s  %s%n", "Benchmark", "Baseline", "Current", "Change", "");
+        int slower = 0;
+        for (Map.Entry<String, Result> e : current.entrySet()) {
+            Result now = e.getValue();
+            Result before = baseline.get(e.getKey());
+            if (before == null || !before.unit.equals(now.unit)) {
+                System.out.printf("%-" + width + "s %14s %14s %8s  %s%n", e.getKey(), "-",
+                        format(now), "", "new");
+                continue;
+            }
+            double change = (now.score - before.score) / before.score * 100;
+            boolean lowerIsBetter = !now.mode.equals("thrpt");
+            String verdict = "noise";
+            if (Math.abs(now.score - before.score) > now.error + before.error) {
+                boolean better = lowerIsBetter ? now.score < before.score : now.score > before.score;
+                verdict = better ? "faster" : "SLOWER";
+                if (!better) slower++;
+            }
+            System.out.printf("%-" + width + "s %14s %14s %+7.1f%%  %s%n", e.getKey(), format(before),
+                    format(now), change, verdict);
+        }
+        System.out.println(slower == 0 ? "No regressions beyond the error bounds"
+                : slower + " benchmark(s) slower than the baseline beyond the error bounds");
+    }
+
+    private static String format(Result r) {
+        return String.format("%.1f %s", r.score, r.unit);
+    }
+
+    // Benchmark name plus its parameters -> result
+    private static Map<String, Result> read(Path file) throws Exception {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<>();
+        if (lines.isEmpty()) return results;
+        List<String> header = split(lines.get(0));
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) continue;
+            List<String> cells = split(line);
+            StringBuilder name = new StringBuilder(shortName(cells.get(header.indexOf("Benchmark"))));
+            for (int i = 0; i < header.size() && i < cells.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && !cells.get(i).isEmpty()) {
+                    name.append(i == firstParam(header) ? ":" : ",").append(cells.get(i));
+                }
+            }
+            Result r = new Result();
+            r.mode = cells.get(header.indexOf("Mode"));
+            r.score = Double.parseDouble(cells.get(header.indexOf("Score")));
+            String error = cells.get(header.indexOf("Score Error (99.9%)"));
+            r.error = error.isEmpty() || error.equals("NaN") ? 0 : Double.parseDouble(error);
+            r.unit = cells.get(header.indexOf("Unit"));
+            results.put(name.toString(), r);
+        }
+        return results;
+    }
+
+    private static int firstParam(List<String> header) {
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).startsWith("Param: ")) return i;
+        }
+        return -1;
+    }
+
+    // server.DispatchBenchmark.dispatch -> DispatchBenchmark.dispatch
+    private static String shortName(String benchmark) {
+        int method = benchmark.lastIndexOf('.');
+        int type = benchmark.lastIndexOf('.', method - 1);
+        return benchmark.substring(type + 1);
+    }
+
+    // JMH quotes every text cell and never embeds quotes in them
+    private static List<String> split(String line) {
+        List<String> cells = new ArrayList<>();
+        for (String cell : line.split(",", -1)) {
+            cells.add(cell.startsWith("\"") && cell.endsWith("\"") && cell.length() >= 2
+                    ? cell.substring(1, cell.length() - 1) : cell);
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,72 @@
+package gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import models.Module;
+import models.Request;
+import models.Response;
+import models.Student;
+import org.openjdk.jmh.annotations.*;
+
+// The gateway's JSON path: parsing a browser message into a Request (what used to be
+// WebSocketGateway.parseJSON) and writing a Response into a frame buffer (toJSON /
+// objectToJSON). Parser and writer are reused across calls, as each connection does.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+    private final JsonParser parser = new JsonParser();
+    private final JsonWriter writer = new JsonWriter();
+    private byte[] login;
+    private byte[] addStudent;
+    private Response student;
+    private Response modules;
+
+    @Setup
+    public void setUp() {
+        login = ("{\"action\":\"STUDENT_LOGIN\",\"requestId\":\"17\","
+                + "\"data\":{\"studentId\":\"S001\",\"password\":\"password123\"}}").getBytes(StandardCharsets.UTF_8);
+        addStudent = ("{\"action\":\"ADD_STUDENT\",\"data\":{\"studentId\":\"S1234\",\"name\":\"Zo\\u00eb \\\"Z\\\" M\\u00fcller\","
+                + "\"email\":\"zoe@example.com\",\"password\":\"s3cret\",\"registeredModules\":[\"CS101\",\"CS201\"]}}")
+                .getBytes(StandardCharsets.UTF_8);
+
+        Student s = new Student("S001", "John Doe", "john@example.com", "password123");
+        s.registerModule("CS101");
+        s.registerModule("CS201");
+        student = new Response(true, "Student retrieved", s);
+        List<Module> list = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            list.add(new Module("CS" + (100 + i), "Module " + i, "Description of module " + i, 3, 50));
+        }
+        modules = new Response(true, "Modules retrieved", list);
+    }
+
+    @Benchmark
+    public Request parseLogin() {
+        return parser.parseRequest(login, 0, login.length);
+    }
+
+    @Benchmark
+    public Request parseAddStudentWithEscapes() {
+        return parser.parseRequest(addStudent, 0, addStudent.length);
+    }
+
+    @Benchmark
+    public int writeStudent() {
+        writer.reset();
+        writer.writeResponse(student);
+        return writer.finishFrame(0x81);
+    }
+
+    @Benchmark
+    public int writeHundredModules() {
+        writer.reset();
+        writer.writeResponse(modules);
+        return writer.finishFrame(0x81);
+    }
+}
@@ -0,0 +1,65 @@
+package gateway;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// WebSocket framing at two message sizes. decode feeds one masked client frame into the
+// codec (the copy the NIO path makes too) and decodes and unmasks it; encode copies the
+// payload into a JsonWriter and writes the server frame header in front of it.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebSocketFrameBenchmark {
+    @Param({"128", "65536"})
+    public int payloadBytes;
+
+    private final WebSocketFrameCodec codec = new WebSocketFrameCodec(16 * 1024 * 1024);
+    private final JsonWriter writer = new JsonWriter();
+    private byte[] payload;
+    private byte[] clientFrame;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadBytes];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) ('a' + i % 26);
+        clientFrame = maskedTextFrame(payload);
+    }
+
+    @Benchmark
+    public int decode() throws Exception {
+        codec.feed(ByteBuffer.wrap(clientFrame));
+        int opcode = codec.decode();
+        return opcode + codec.length();
+    }
+
+    @Benchmark
+    public int encode() {
+        writer.reset();
+        writer.writeRaw(payload);
+        return writer.finishFrame(0x81);
+    }
+
+    private static byte[] maskedTextFrame(byte[] payload) {
+        int n = payload.length;
+        int header = n < 126 ? 2 : n < 65536 ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + 4 + n);
+        frame.put((byte) 0x81);
+        if (n < 126) {
+            frame.put((byte) (0x80 | n));
+        } else if (n < 65536) {
+            frame.put((byte) (0x80 | 126)).putShort((short) n);
+        } else {
+            frame.put((byte) (0x80 | 127)).putLong(n);
+        }
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+        frame.put(mask);
+        for (int i = 0; i < n; i++) frame.put((byte) (payload[i] ^ mask[i & 3]));
+        return frame.array();
+    }
+}
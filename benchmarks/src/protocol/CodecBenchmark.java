@@ -0,0 +1,71 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import models.Request;
+import models.Response;
+import models.Student;
+import org.openjdk.jmh.annotations.*;
+
+// Request / Response serialization on the gateway-to-server link, for both wire codecs:
+// a REGISTER_MODULE request and a LIST_STUDENTS page of 20 students.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"binary", "java"})
+    public String codecName;
+
+    private WireCodec codec;
+    private Request request;
+    private Response response;
+    private byte[] encodedRequest;
+    private byte[] encodedResponse;
+
+    @Setup
+    public void setUp() throws Exception {
+        codec = WireCodecs.byName(codecName);
+        request = new Request("REGISTER_MODULE");
+        request.setCorrelationId(123456);
+        request.addData("studentId", "S000042");
+        request.addData("moduleCode", "CS201");
+        request.addData("token", "q3Jx1m8bX0a9Kf2Lp7Zt4w");
+
+        List<Student> students = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Student s = new Student(String.format("S%06d", i), "Student " + i, "student" + i + "@example.com", "pw" + i);
+            s.registerModule("CS101");
+            s.registerModule("CS201");
+            students.add(s);
+        }
+        response = new Response(true, "Students retrieved", students);
+        response.setCorrelationId(123456);
+
+        encodedRequest = codec.encodeRequest(request);
+        encodedResponse = codec.encodeResponse(response);
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() throws Exception {
+        return codec.encodeRequest(request);
+    }
+
+    @Benchmark
+    public Request decodeRequest() throws Exception {
+        return codec.decodeRequest(encodedRequest, 0, encodedRequest.length);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() throws Exception {
+        return codec.encodeResponse(response);
+    }
+
+    @Benchmark
+    public Response decodeResponse() throws Exception {
+        return codec.decodeResponse(encodedResponse, 0, encodedResponse.length);
+    }
+}
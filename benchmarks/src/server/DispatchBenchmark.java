@@ -0,0 +1,146 @@
+package server;
+
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import models.Request;
+import models.Response;
+import org.openjdk.jmh.annotations.*;
+
+// ClientHandler.processRequest for every action, against a server holding 10k students
+// registered for 3 of 100 modules each. Measures dispatch plus the handler, not the
+// socket or the codec. Writes go to a write-ahead log in a temporary directory with
+// fsync off and no group-commit wait, so they show the CPU cost rather than the disk's;
+// background snapshots are off. Each action runs in its own JVM.
+//
+// ADD_STUDENT, ADD_MODULE and REGISTER_MODULE create a new record on every call, so
+// those maps grow during the run. STUDENT_LOGIN logs out again in the same call so the
+// session table stays at its starting size.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dserver.wal.fsync=false", "-Dserver.wal.groupCommitMs=0",
+        "-Dserver.snapshot.everyRecords=0", "-Dlog.level=WARN"})
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+    static final int STUDENTS = 10000;
+    static final int MODULES = 100;
+
+    @Param({"PING", "STUDENT_LOGIN", "VIEW_MODULES", "REGISTER_MODULE", "VIEW_REGISTERED_MODULES",
+            "ADD_STUDENT", "EDIT_STUDENT", "VIEW_STUDENT", "LIST_STUDENTS",
+            "ADD_MODULE", "EDIT_MODULE", "VIEW_MODULE", "LIST_MODULES",
+            "MODULE_ROSTER", "ENROLLMENT_COUNTS", "METRICS"})
+    public String action;
+
+    private Supplier<Request> requests;
+    private boolean logsOut;
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // Must be set before TCPServer is first touched
+        System.setProperty("server.dataDir", Files.createTempDirectory("dispatch-benchmark").toString());
+        TCPServer.recoverData();
+        for (int m = 0; m < MODULES; m++) {
+            expect(TCPServer.ClientHandler.processRequest(module("ADD_MODULE", "M" + m)));
+        }
+        for (int i = 0; i < STUDENTS; i++) {
+            expect(TCPServer.ClientHandler.processRequest(student("ADD_STUDENT", "B" + i)));
+            for (int k = 0; k < 3; k++) {
+                expect(TCPServer.ClientHandler.processRequest(registration("B" + i, "M" + ((i + k * 7) % MODULES))));
+            }
+        }
+        requests = requests(action);
+        logsOut = action.equals("STUDENT_LOGIN");
+    }
+
+    @Benchmark
+    public Response dispatch() {
+        Response response = TCPServer.ClientHandler.processRequest(requests.get());
+        if (logsOut) {
+            Request logout = new Request("LOGOUT");
+            logout.addData("token", ((Map<?, ?>) response.getData()).get("token"));
+            TCPServer.ClientHandler.processRequest(logout);
+        }
+        return response;
+    }
+
+    private Supplier<Request> requests(String action) {
+        Request request = new Request(action);
+        switch (action) {
+            case "STUDENT_LOGIN":
+                request.addData("studentId", "B42");
+                request.addData("password", "pw");
+                break;
+            case "REGISTER_MODULE":
+                // A new pair every call: round-robin over the students, a fresh module per round
+                for (int m = 0; m < 200; m++) {
+                    expect(TCPServer.ClientHandler.processRequest(module("ADD_MODULE", "R" + m)));
+                }
+                return () -> {
+                    long n = sequence.getAndIncrement();
+                    return registration("B" + (n % STUDENTS), "R" + (n / STUDENTS));
+                };
+            case "ADD_STUDENT":
+                return () -> student("ADD_STUDENT", "N" + sequence.getAndIncrement());
+            case "ADD_MODULE":
+                return () -> module("ADD_MODULE", "N" + sequence.getAndIncrement());
+            case "EDIT_STUDENT":
+                request = student("EDIT_STUDENT", "B42");
+                break;
+            case "EDIT_MODULE":
+                request = module("EDIT_MODULE", "M7");
+                break;
+            case "VIEW_REGISTERED_MODULES":
+            case "VIEW_STUDENT":
+                request.addData("studentId", "B42");
+                break;
+            case "LIST_STUDENTS":
+                request.addData("limit", 100);
+                break;
+            case "VIEW_MODULE":
+                request.addData("moduleCode", "M7");
+                break;
+            case "MODULE_ROSTER":
+                request.addData("moduleCode", "M7");
+                request.addData("limit", 100);
+                break;
+            default:
+                break;
+        }
+        Request fixed = request;
+        return () -> fixed;
+    }
+
+    private static Request student(String action, String id) {
+        Request request = new Request(action);
+        request.addData("studentId", id);
+        request.addData("name", "Student " + id);
+        request.addData("email", id + "@example.com");
+        request.addData("password", "pw");
+        return request;
+    }
+
+    private static Request module(String action, String code) {
+        Request request = new Request(action);
+        request.addData("moduleCode", code);
+        request.addData("moduleName", "Module " + code);
+        request.addData("description", "Benchmark module");
+        request.addData("credits", 3);
+        return request;
+    }
+
+    private static Request registration(String studentId, String moduleCode) {
+        Request request = new Request("REGISTER_MODULE");
+        request.addData("studentId", studentId);
+        request.addData("moduleCode", moduleCode);
+        return request;
+    }
+
+    private static void expect(Response response) {
+        if (!response.isSuccess()) throw new IllegalStateException(response.getMessage());
+    }
+}
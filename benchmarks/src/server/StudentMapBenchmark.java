@@ -0,0 +1,84 @@
+package server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import models.Student;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The structures TCPServer keeps its students in, at 10k, 100k and 1M students: the
+// ConcurrentHashMap by ID, the skip-list key set that cursor paging walks, and the
+// enrollment index. Keys are picked at random per call, so bigger sizes show the cache
+// misses a real server would see.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class StudentMapBenchmark {
+    private static final int MODULES = 200;
+    private static final int PAGE = 100;
+
+    @Param({"10000", "100000", "1000000"})
+    public int students;
+
+    private final ConcurrentHashMap<String, Student> byId = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> ids = new ConcurrentSkipListSet<>();
+    private final EnrollmentIndex enrollments = new EnrollmentIndex();
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = new String[students];
+        for (int i = 0; i < students; i++) {
+            String id = String.format("S%07d", i);
+            Student s = new Student(id, "Student " + i, id + "@example.com", "pw");
+            for (int k = 0; k < 3; k++) {
+                s.registerModule("M" + ((i + k * 7) % MODULES));
+            }
+            keys[i] = id;
+            byId.put(id, s);
+            ids.add(id);
+            enrollments.addAll(s);
+        }
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    @Benchmark
+    public Student get() {
+        return byId.get(randomKey());
+    }
+
+    @Benchmark
+    public Student getMissing() {
+        return byId.get("X" + ThreadLocalRandom.current().nextInt(keys.length));
+    }
+
+    // EDIT_STUDENT's pattern: replace the record inside the map entry
+    @Benchmark
+    public Student computeIfPresent() {
+        return byId.computeIfPresent(randomKey(),
+                (id, s) -> new Student(id, s.getName(), s.getEmail(), s.getPassword()));
+    }
+
+    // One LIST_STUDENTS page: the 100 IDs after a cursor
+    @Benchmark
+    public void page(Blackhole bh) {
+        Iterator<String> it = ids.tailSet(randomKey(), false).iterator();
+        for (int i = 0; i < PAGE && it.hasNext(); i++) {
+            bh.consume(byId.get(it.next()));
+        }
+    }
+
+    @Benchmark
+    public int enrollmentCount() {
+        return enrollments.count("M" + ThreadLocalRandom.current().nextInt(MODULES));
+    }
+}
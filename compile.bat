@@ -6,15 +6,15 @@ echo.
 
 cd src
 
-echo [1/3] Compiling model classes...
-javac models\Student.java models\Module.java models\Request.java models\Response.java
+echo [1/3] Compiling model and protocol classes...
+javac models\*.java protocol\*.java common\*.java
 
 echo [2/3] Compiling server and gateway...
-javac server\TCPServer.java
-javac gateway\WebSocketGateway.java
+javac server\*.java
+javac gateway\*.java
 
-echo [3/3] Compiling launcher...
-javac Launcher.java
+echo [3/3] Compiling launcher and tools...
+javac Launcher.java tools\*.java
 
 echo.
 echo ============================================
@@ -1,6 +1,12 @@
 // WebSocket connection
 let ws = null;
 
+// Requests awaiting a response, by requestId; responses may arrive in any order
+let nextRequestId = 1;
+const pendingRequests = new Map();
+// Times a request the server refused as overloaded is sent again before giving up
+const MAX_RETRIES = 5;
+
 // Connect to WebSocket Gateway
 function connectWebSocket() {
     ws = new WebSocket('ws://localhost:8080');
@@ -8,9 +14,13 @@ function connectWebSocket() {
     ws.onopen = () => {
         console.log('Connected to WebSocket Gateway');
         showStatus('Connected to server', 'success');
+        // Keep the module list and enrollment counts current without re-requesting them
+        sendRequest('SUBSCRIBE', { topics: ['modules', 'enrollments'] });
+        refreshShownModules();
     };
     
     ws.onclose = () => {
+        pendingRequests.clear();
         console.log('Disconnected from WebSocket Gateway');
         showStatus('Disconnected from server. Reconnecting...', 'error');
         setTimeout(connectWebSocket, 3000);
@@ -28,9 +38,11 @@ function connectWebSocket() {
 }
 
 // Send request to server
-function sendRequest(action, data = {}) {
+function sendRequest(action, data = {}, attempt = 0) {
     if (ws && ws.readyState === WebSocket.OPEN) {
-        const request = { action, data };
+        const requestId = String(nextRequestId++);
+        pendingRequests.set(requestId, { action, data, attempt });
+        const request = { action, requestId, data };
         ws.send(JSON.stringify(request));
         showStatus('Sending request...', 'info');
     } else {
@@ -38,25 +50,64 @@ function sendRequest(action, data = {}) {
     }
 }
 
+// The server refused the request before running it, so sending it again is safe.
+// The wait doubles with every attempt and is randomized, so that clients refused
+// together do not all come back at the same moment.
+function retryLater(request) {
+    if (request.attempt >= MAX_RETRIES) {
+        return false;
+    }
+    const delay = Math.random() * Math.min(8000, 250 * 2 ** request.attempt);
+    showStatus('Server busy, retrying...', 'info');
+    setTimeout(() => sendRequest(request.action, request.data, request.attempt + 1), delay);
+    return true;
+}
+
 // Handle response from server
 let currentAction = '';
 function handleResponse(response) {
+    if (response.event) {
+        // Pushed by the gateway, not an answer to anything we sent
+        handlePush(response);
+        return;
+    }
+    // Route by the request this answers; fall back to the last action sent
+    let action = currentAction;
+    if (response.requestId && pendingRequests.has(response.requestId)) {
+        const request = pendingRequests.get(response.requestId);
+        pendingRequests.delete(response.requestId);
+        if (response.errorCode === 'OVERLOADED' && retryLater(request)) {
+            return;
+        }
+        action = request.action;
+    }
+    
     if (response.success) {
         showStatus(response.message, 'success');
         
         // Handle different response types
-        if (currentAction === 'LIST_STUDENTS') {
+        if (action === 'LIST_STUDENTS') {
             displayStudents(response.data);
-        } else if (currentAction === 'LIST_MODULES') {
+        } else if (action === 'LIST_MODULES') {
             displayModules(response.data);
-        } else if (currentAction === 'VIEW_STUDENT') {
+        } else if (action === 'VIEW_STUDENT') {
             displayStudentDetails(response.data);
-        } else if (currentAction === 'VIEW_MODULE') {
+        } else if (action === 'VIEW_MODULE') {
             displayModuleDetails(response.data);
+        } else if (action === 'MODULE_ROSTER') {
+            displayRoster(response.data);
+        } else if (action === 'ENROLLMENT_COUNTS') {
+            displayEnrollmentCounts(response.data);
         }
     } else {
         showStatus(response.message, 'error');
     }
+    // Batch replies carry per-row results whether or not every row succeeded
+    if (action === 'BULK_ADD_STUDENTS') {
+        bulkBatchDone(response);
+    } else if (action === 'IMPORT_STUDENTS' && response.data) {
+        displayImportResult(response.message, response.data.errors, 0);
+    }
 }
 
 // Student Management Functions
@@ -97,7 +148,7 @@ function viewStudent() {
 
 function listStudents() {
     currentAction = 'LIST_STUDENTS';
-    sendRequest('LIST_STUDENTS');
+    sendRequest('LIST_STUDENTS', { stream: true });
 }
 
 function clearStudentForm() {
@@ -144,6 +195,140 @@ function editStudent(id, name, email) {
     document.getElementById('studentEmail').value = email;
 }
 
+// Bulk import: the browser parses the CSV and sends it in batches, one request per
+// BULK_BATCH_SIZE students, each applied and made durable by the server in one pass
+const BULK_BATCH_SIZE = 1000;
+let bulkImport = null;
+
+function importStudentsFromFile() {
+    const file = document.getElementById('importFile').files[0];
+    if (!file) {
+        showStatus('Choose a CSV file first', 'error');
+        return;
+    }
+    const reader = new FileReader();
+    reader.onload = () => {
+        const records = parseCsv(reader.result);
+        const header = records.shift() || [];
+        if (header.length > 0) {
+            header[0] = header[0].replace(/^\uFEFF/, '');
+        }
+        if (!header.includes('studentId')) {
+            showStatus('The CSV file needs a studentId column', 'error');
+            return;
+        }
+        const students = records
+            .filter(cells => cells.length > 1 || cells[0] !== '')
+            .map(cells => Object.fromEntries(header.map((name, i) => [name, cells[i] || ''])));
+        bulkImport = { students, next: 0, applied: 0, failed: 0, errors: [] };
+        sendNextBulkBatch();
+    };
+    reader.readAsText(file);
+}
+
+function sendNextBulkBatch() {
+    const batch = bulkImport.students.slice(bulkImport.next, bulkImport.next + BULK_BATCH_SIZE);
+    bulkImport.offset = bulkImport.next;
+    bulkImport.next += batch.length;
+    currentAction = 'BULK_ADD_STUDENTS';
+    sendRequest('BULK_ADD_STUDENTS', { students: batch });
+}
+
+function bulkBatchDone(response) {
+    if (!bulkImport) {
+        return;
+    }
+    if (!response.data) {
+        // The whole batch was refused; stop rather than skip it
+        bulkImport = null;
+        return;
+    }
+    bulkImport.applied += response.data.applied;
+    bulkImport.failed += response.data.failed;
+    response.data.errors.forEach(error => {
+        bulkImport.errors.push({ row: bulkImport.offset + error.row, message: error.message });
+    });
+    if (bulkImport.next < bulkImport.students.length) {
+        showStatus(`Imported ${bulkImport.next} of ${bulkImport.students.length} students...`, 'info');
+        sendNextBulkBatch();
+        return;
+    }
+    const message = `${bulkImport.applied} students added` + (bulkImport.failed ? `, ${bulkImport.failed} failed` : '');
+    showStatus(message, bulkImport.failed ? 'error' : 'success');
+    // Data row 0 is line 2 of the file, after the header
+    displayImportResult(message, bulkImport.errors, 2);
+    bulkImport = null;
+}
+
+function importStudentsOnServer() {
+    const file = document.getElementById('serverImportFile').value.trim();
+    if (!file) {
+        showStatus('Enter the name of a file in the server\'s import directory', 'error');
+        return;
+    }
+    currentAction = 'IMPORT_STUDENTS';
+    sendRequest('IMPORT_STUDENTS', { file });
+}
+
+// lineOffset turns a reported row into a line number of the file
+function displayImportResult(message, errors, lineOffset) {
+    const container = document.getElementById('students-result');
+    let html = `<div class="detail-card"><h3>Import Result</h3><p>${escapeHtml(message)}</p>`;
+    if (errors && errors.length > 0) {
+        html += '<table><thead><tr><th>Line</th><th>Problem</th></tr></thead><tbody>';
+        errors.slice(0, 100).forEach(error => {
+            html += `<tr><td>${error.row + lineOffset}</td><td>${escapeHtml(error.message)}</td></tr>`;
+        });
+        html += '</tbody></table>';
+    }
+    container.innerHTML = html + '</div>';
+}
+
+function escapeHtml(text) {
+    return String(text).replace(/[&<>"']/g, c => ({ '&': '&amp;', '<': '&lt;', '>': '&gt;', '"': '&quot;', "'": '&#39;' })[c]);
+}
+
+// RFC 4180: quoted cells may contain commas, line breaks and "" for a quote
+function parseCsv(text) {
+    const records = [];
+    let cells = [];
+    let cell = '';
+    let quoted = false;
+    for (let i = 0; i < text.length; i++) {
+        const c = text[i];
+        if (quoted) {
+            if (c === '"' && text[i + 1] === '"') {
+                cell += '"';
+                i++;
+            } else if (c === '"') {
+                quoted = false;
+            } else {
+                cell += c;
+            }
+        } else if (c === '"' && cell === '') {
+            quoted = true;
+        } else if (c === ',') {
+            cells.push(cell);
+            cell = '';
+        } else if (c === '\n' || c === '\r') {
+            if (c === '\r' && text[i + 1] === '\n') {
+                i++;
+            }
+            cells.push(cell);
+            records.push(cells);
+            cells = [];
+            cell = '';
+        } else {
+            cell += c;
+        }
+    }
+    if (cell !== '' || cells.length > 0) {
+        cells.push(cell);
+        records.push(cells);
+    }
+    return records;
+}
+
 // Module Management Functions
 document.getElementById('module-form').addEventListener('submit', (e) => {
     e.preventDefault();
@@ -155,7 +340,8 @@ function addModule() {
         moduleCode: document.getElementById('moduleCode').value,
         moduleName: document.getElementById('moduleName').value,
         description: document.getElementById('moduleDescription').value,
-        credits: parseInt(document.getElementById('moduleCredits').value)
+        credits: parseInt(document.getElementById('moduleCredits').value),
+        capacity: parseCapacity()
     };
     currentAction = 'ADD_MODULE';
     sendRequest('ADD_MODULE', data);
@@ -166,12 +352,19 @@ function updateModule() {
         moduleCode: document.getElementById('moduleCode').value,
         moduleName: document.getElementById('moduleName').value,
         description: document.getElementById('moduleDescription').value,
-        credits: parseInt(document.getElementById('moduleCredits').value)
+        credits: parseInt(document.getElementById('moduleCredits').value),
+        capacity: parseCapacity()
     };
     currentAction = 'EDIT_MODULE';
     sendRequest('EDIT_MODULE', data);
 }
 
+// Empty seats field means unlimited (0)
+function parseCapacity() {
+    const value = document.getElementById('moduleCapacity').value;
+    return value === '' ? 0 : parseInt(value);
+}
+
 function viewModule() {
     const moduleCode = prompt('Enter Module Code:');
     if (moduleCode) {
@@ -180,30 +373,96 @@ function viewModule() {
     }
 }
 
+function viewRoster(cursor) {
+    const moduleCode = cursor ? rosterModule : prompt('Enter Module Code:');
+    if (moduleCode) {
+        rosterModule = moduleCode;
+        currentAction = 'MODULE_ROSTER';
+        sendRequest('MODULE_ROSTER', cursor ? { moduleCode, cursor } : { moduleCode });
+    }
+}
+
+function enrollmentCounts() {
+    currentAction = 'ENROLLMENT_COUNTS';
+    sendRequest('ENROLLMENT_COUNTS');
+}
+
 function listModules() {
     currentAction = 'LIST_MODULES';
-    sendRequest('LIST_MODULES');
+    sendRequest('LIST_MODULES', { stream: true });
 }
 
 function clearModuleForm() {
     document.getElementById('module-form').reset();
 }
 
+// What the modules panel shows, so pushed changes can be applied to it:
+// the module list, the enrollment counts ({ code: count }), or null for anything else
+let shownModules = null;
+let shownCounts = null;
+
+// { event: 'CHANGES', data: { modules: [...], enrolled: { code: count } } } carries the
+// latest state of what changed; RESYNC means changes were lost, so fetch again
+function handlePush(push) {
+    if (push.event === 'RESYNC') {
+        refreshShownModules();
+        return;
+    }
+    if (push.event !== 'CHANGES' || !push.data) {
+        return;
+    }
+    const changed = push.data.modules || [];
+    const enrolled = push.data.enrolled || {};
+    if (shownModules && changed.length > 0) {
+        changed.forEach(module => {
+            const index = shownModules.findIndex(m => m.moduleCode === module.moduleCode);
+            if (index >= 0) {
+                shownModules[index] = module;
+            } else {
+                shownModules.push(module);
+            }
+        });
+        displayModules(shownModules);
+    } else if (shownCounts) {
+        changed.forEach(module => {
+            if (!(module.moduleCode in shownCounts)) {
+                shownCounts[module.moduleCode] = 0;
+            }
+        });
+        Object.keys(enrolled).forEach(code => {
+            // Counts only grow; a late push must not lower one fetched since
+            shownCounts[code] = Math.max(shownCounts[code] || 0, enrolled[code]);
+        });
+        displayEnrollmentCounts(shownCounts);
+    }
+}
+
+function refreshShownModules() {
+    if (shownModules) {
+        listModules();
+    } else if (shownCounts) {
+        enrollmentCounts();
+    }
+}
+
 function displayModules(modules) {
+    shownModules = modules;
+    shownCounts = null;
     const container = document.getElementById('modules-result');
     if (!modules || modules.length === 0) {
         container.innerHTML = '<p>No modules found.</p>';
         return;
     }
     
-    let html = '<table><thead><tr><th>Module Code</th><th>Module Name</th><th>Description</th><th>Credits</th><th>Actions</th></tr></thead><tbody>';
+    let html = '<table><thead><tr><th>Module Code</th><th>Module Name</th><th>Description</th><th>Credits</th><th>Seats</th><th>Actions</th></tr></thead><tbody>';
     modules.forEach(module => {
         html += `<tr>
             <td>${module.moduleCode}</td>
             <td>${module.moduleName}</td>
             <td>${module.description}</td>
             <td>${module.credits}</td>
-            <td><button class="btn-small" onclick="editModule('${module.moduleCode}', '${module.moduleName}', '${module.description}', ${module.credits})">Edit</button></td>
+            <td>${module.capacity ? module.capacity : 'Unlimited'}</td>
+            <td><button class="btn-small" onclick="editModule('${module.moduleCode}', '${module.moduleName}', '${module.description}', ${module.credits}, ${module.capacity || 0})">Edit</button></td>
         </tr>`;
     });
     html += '</tbody></table>';
@@ -211,6 +470,8 @@ function displayModules(modules) {
 }
 
 function displayModuleDetails(module) {
+    shownModules = null;
+    shownCounts = null;
     const container = document.getElementById('modules-result');
     container.innerHTML = `
         <div class="detail-card">
@@ -219,15 +480,46 @@ function displayModuleDetails(module) {
             <p><strong>Name:</strong> ${module.moduleName}</p>
             <p><strong>Description:</strong> ${module.description}</p>
             <p><strong>Credits:</strong> ${module.credits}</p>
+            <p><strong>Seats:</strong> ${module.capacity ? module.capacity : 'Unlimited'}</p>
         </div>
     `;
 }
 
-function editModule(code, name, description, credits) {
+// Module whose roster is shown, for the "Next page" button
+let rosterModule = null;
+
+function displayRoster(roster) {
+    shownModules = null;
+    shownCounts = null;
+    const container = document.getElementById('modules-result');
+    let html = `<div class="detail-card"><h3>Roster for ${roster.moduleCode}</h3>
+        <p><strong>Enrolled:</strong> ${roster.enrolled}</p>`;
+    html += roster.items.length === 0 ? '<p>No students enrolled.</p>' : `<p>${roster.items.join(', ')}</p>`;
+    if (roster.nextCursor) {
+        html += `<button class="btn-small" onclick="viewRoster('${roster.nextCursor}')">Next page</button>`;
+    }
+    html += '</div>';
+    container.innerHTML = html;
+}
+
+function displayEnrollmentCounts(counts) {
+    shownModules = null;
+    shownCounts = counts;
+    const container = document.getElementById('modules-result');
+    let html = '<table><thead><tr><th>Module Code</th><th>Enrolled</th></tr></thead><tbody>';
+    Object.keys(counts).sort().forEach(code => {
+        html += `<tr><td>${code}</td><td>${counts[code]}</td></tr>`;
+    });
+    html += '</tbody></table>';
+    container.innerHTML = html;
+}
+
+function editModule(code, name, description, credits, capacity) {
     document.getElementById('moduleCode').value = code;
     document.getElementById('moduleName').value = name;
     document.getElementById('moduleDescription').value = description;
     document.getElementById('moduleCredits').value = credits;
+    document.getElementById('moduleCapacity').value = capacity ? capacity : '';
 }
 
 // Tab switching
@@ -1,6 +1,16 @@
 // WebSocket connection
 let ws = null;
 let currentStudent = null;
+// Issued at login; sent instead of re-proving who we are on every student action
+let sessionToken = null;
+// Last module catalog received ({ version, modules }); its version is sent back so an
+// unchanged catalog costs only a "not modified" reply
+let moduleCatalog = null;
+// Requests sent and not yet answered, oldest first: the gateway answers untagged
+// requests in the order they were sent
+const sentRequests = [];
+// Times a request the server refused as overloaded is sent again before giving up
+const MAX_RETRIES = 5;
 
 // Connect to WebSocket Gateway
 function connectWebSocket() {
@@ -9,9 +19,15 @@ function connectWebSocket() {
     ws.onopen = () => {
         console.log('Connected to WebSocket Gateway');
         showStatus('Connected to server', 'success');
+        if (currentStudent) {
+            // Changes pushed while disconnected were missed: subscribe again and refetch
+            subscribeToChanges(true);
+            loadModules();
+        }
     };
     
     ws.onclose = () => {
+        sentRequests.length = 0;
         console.log('Disconnected from WebSocket Gateway');
         showStatus('Disconnected from server. Reconnecting...', 'error');
         setTimeout(connectWebSocket, 3000);
@@ -29,20 +45,43 @@ function connectWebSocket() {
 }
 
 // Send request to server
-function sendRequest(action, data = {}) {
+function sendRequest(action, data = {}, attempt = 0) {
     if (ws && ws.readyState === WebSocket.OPEN) {
         const request = { action, data };
         ws.send(JSON.stringify(request));
+        sentRequests.push({ action, data, attempt });
         showStatus('Sending request...', 'info');
     } else {
         showStatus('Not connected to server', 'error');
     }
 }
 
+// The server refused the request before running it, so sending it again is safe.
+// The wait doubles with every attempt and is randomized, so that clients refused
+// together do not all come back at the same moment.
+function retryLater(request) {
+    if (request.attempt >= MAX_RETRIES) {
+        return false;
+    }
+    const delay = Math.random() * Math.min(8000, 250 * 2 ** request.attempt);
+    showStatus('Server busy, retrying...', 'info');
+    setTimeout(() => sendRequest(request.action, request.data, request.attempt + 1), delay);
+    return true;
+}
+
 // Handle response from server
 let currentAction = '';
 function handleResponse(response) {
     console.log('handleResponse called. currentAction:', currentAction, 'response:', response);
+    if (response.event) {
+        // Pushed by the gateway, not an answer to anything we sent
+        handlePush(response);
+        return;
+    }
+    const request = sentRequests.shift();
+    if (response.errorCode === 'OVERLOADED' && request && retryLater(request)) {
+        return;
+    }
     
     if (response.success) {
         showStatus(response.message, 'success');
@@ -52,7 +91,14 @@ function handleResponse(response) {
             handleLoginSuccess(response.data);
         } else if (response.message === 'Modules retrieved') {
             console.log('Calling displayModules with data:', response.data);
-            displayModules(response.data);
+            if (Array.isArray(response.data)) {
+                displayModules(response.data);
+            } else {
+                moduleCatalog = response.data;
+                displayModules(moduleCatalog.modules);
+            }
+        } else if (response.message === 'Modules not modified') {
+            displayModules(moduleCatalog ? moduleCatalog.modules : []);
         } else if (response.message === 'Registered modules retrieved') {
             displayRegisteredModules(response.data);
         } else if (response.message === 'Module registered successfully') {
@@ -61,6 +107,9 @@ function handleResponse(response) {
         }
     } else {
         showStatus(response.message, 'error');
+        if (response.message === 'Session expired or invalid' && currentStudent) {
+            logout();
+        }
     }
 }
 
@@ -78,7 +127,10 @@ function login() {
     sendRequest('STUDENT_LOGIN', { studentId, password });
 }
 
-function handleLoginSuccess(student) {
+function handleLoginSuccess(login) {
+    // { student, token, expiresInMs }; older servers sent the student alone
+    const student = login.student || login;
+    sessionToken = login.token || null;
     currentStudent = student;
     
     // Debug: Log the student object received
@@ -93,12 +145,51 @@ function handleLoginSuccess(student) {
     document.getElementById('student-name').textContent = student.name;
     document.getElementById('logged-student-id').textContent = student.studentId;
     
-    // Load modules
+    // Load modules, then keep them current from pushed changes
     loadModules();
     loadRegisteredModules();
+    subscribeToChanges(true);
+}
+
+// Catalog changes are pushed while subscribed, so the module list stays current
+// without re-sending VIEW_MODULES
+function subscribeToChanges(on) {
+    sendRequest('SUBSCRIBE', { topics: on ? ['modules'] : [] });
+}
+
+// { event: 'CHANGES', data: { modules: [...] } } carries the latest state of each module
+// that changed; RESYNC means changes were lost and the list must be fetched again
+function handlePush(push) {
+    if (!currentStudent) {
+        return;
+    }
+    if (push.event === 'RESYNC') {
+        loadModules();
+        return;
+    }
+    const changed = push.data && push.data.modules;
+    if (push.event !== 'CHANGES' || !changed || !moduleCatalog) {
+        return;
+    }
+    // The catalog keeps its old version, so the next VIEW_MODULES still fetches it whole
+    changed.forEach(module => {
+        const index = moduleCatalog.modules.findIndex(m => m.moduleCode === module.moduleCode);
+        if (index >= 0) {
+            moduleCatalog.modules[index] = module;
+        } else {
+            moduleCatalog.modules.push(module);
+        }
+    });
+    moduleCatalog.modules.sort((a, b) => a.moduleCode < b.moduleCode ? -1 : a.moduleCode > b.moduleCode ? 1 : 0);
+    displayModules(moduleCatalog.modules);
 }
 
 function logout() {
+    subscribeToChanges(false);
+    if (sessionToken) {
+        sendRequest('LOGOUT', { token: sessionToken });
+        sessionToken = null;
+    }
     currentStudent = null;
     
     // Show login section, hide dashboard
@@ -114,7 +205,7 @@ function logout() {
 // Module functions
 function loadModules() {
     currentAction = 'VIEW_MODULES';
-    sendRequest('VIEW_MODULES');
+    sendRequest('VIEW_MODULES', { knownVersion: moduleCatalog ? moduleCatalog.version : 0 });
 }
 
 function loadRegisteredModules() {
@@ -124,7 +215,7 @@ function loadRegisteredModules() {
     }
     
     currentAction = 'VIEW_REGISTERED_MODULES';
-    sendRequest('VIEW_REGISTERED_MODULES', { studentId: currentStudent.studentId });
+    sendRequest('VIEW_REGISTERED_MODULES', { studentId: currentStudent.studentId, token: sessionToken });
 }
 
 function registerModule(moduleCode) {
@@ -137,6 +228,7 @@ function registerModule(moduleCode) {
         currentAction = 'REGISTER_MODULE';
         sendRequest('REGISTER_MODULE', {
             studentId: currentStudent.studentId,
+            token: sessionToken,
             moduleCode: moduleCode
         });
     }
@@ -153,7 +245,7 @@ function displayModules(modules) {
     console.log('Current Student:', currentStudent);
     console.log('Registered Modules:', currentStudent ? currentStudent.registeredModules : 'No student');
     
-    let html = '<table><thead><tr><th>Code</th><th>Module Name</th><th>Description</th><th>Credits</th><th>Action</th></tr></thead><tbody>';
+    let html = '<table><thead><tr><th>Code</th><th>Module Name</th><th>Description</th><th>Credits</th><th>Seats</th><th>Action</th></tr></thead><tbody>';
     modules.forEach(module => {
         // Check if module is registered (ensure registeredModules is an array)
         const registeredModules = currentStudent && currentStudent.registeredModules ? 
@@ -168,6 +260,7 @@ function displayModules(modules) {
             <td>${module.moduleName}</td>
             <td>${module.description}</td>
             <td>${module.credits}</td>
+            <td>${module.capacity ? module.capacity : 'Unlimited'}</td>
             <td>
                 ${isRegistered ? 
                     '<span class="badge-registered">Registered</span>' : 
@@ -0,0 +1,86 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Adaptive limit on how many requests may execute at once, driven by their latency.
+// A long-run average of latency stands for what the system does unloaded; each window
+// (100 ms and at least 10 requests) compares its own average with it. While the two
+// stay within the tolerance the limit grows by about its square root per window, so it
+// keeps probing for headroom. When recent requests get slower than that, they are
+// queueing for something (CPU, locks, the disk) rather than running, and the limit
+// shrinks in proportion. Changes are smoothed so one slow window does not halve it.
+// Callers that get no slot should refuse the request at once, not wait for one.
+public final class ConcurrencyLimiter {
+    private static final long WINDOW_NANOS = 100_000_000L;
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    // How much slower than the long-run average a window may be before the limit drops
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    // Windows in the long-run average
+    private static final int LONG_WINDOWS = 60;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    private final LongAdder windowNanos = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicInteger windowPeak = new AtomicInteger();
+    private volatile long windowStart = System.nanoTime();
+    private double longNanos; // guarded by this
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    // True if the caller may run a request now; it must then call release exactly once
+    public boolean tryAcquire() {
+        int max = (int) limit;
+        while (true) {
+            int current = inFlight.get();
+            if (current >= max) return false;
+            if (inFlight.compareAndSet(current, current + 1)) {
+                windowPeak.accumulateAndGet(current + 1, Math::max);
+                return true;
+            }
+        }
+    }
+
+    public void release(long latencyNanos) {
+        inFlight.decrementAndGet();
+        windowNanos.add(latencyNanos);
+        windowSamples.increment();
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS) endWindow(now);
+    }
+
+    public int limit() { return (int) limit; }
+
+    public int inFlight() { return inFlight.get(); }
+
+    private synchronized void endWindow(long now) {
+        if (now - windowStart < WINDOW_NANOS || windowSamples.sum() < MIN_WINDOW_SAMPLES) return;
+        double shortNanos = (double) windowNanos.sumThenReset() / windowSamples.sumThenReset();
+        int peak = windowPeak.getAndSet(0);
+        windowStart = now;
+
+        if (longNanos == 0) {
+            longNanos = shortNanos;
+        } else {
+            longNanos += (shortNanos - longNanos) * 2 / (LONG_WINDOWS + 1);
+            // Back from an overload that raised the average: let it come down quickly
+            if (longNanos > 2 * shortNanos) longNanos = (longNanos + shortNanos) / 2;
+        }
+
+        double current = limit;
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longNanos / shortNanos));
+        // Only grow a limit the traffic actually came near; an idle server says nothing
+        double headroom = peak * 2 >= current ? Math.sqrt(current) : 0;
+        double next = current * gradient + headroom;
+        next = current * (1 - SMOOTHING) + next * SMOOTHING;
+        limit = Math.min(maxLimit, Math.max(minLimit, next));
+    }
+}
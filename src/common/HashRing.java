@@ -0,0 +1,87 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Consistent hashing: every node is placed on a 64-bit ring at many points (virtual
+// nodes) and a key belongs to the node owning the first point at or after the key's own
+// hash, wrapping around at the end. Adding a node only takes over the arcs just before
+// its new points, about 1/(N+1) of the keys and all of them from other nodes; no key
+// moves between the nodes that were already there. Many points per node even out the
+// arcs: with 128 each, a node's share of the keys stays within about 10% of 1/N.
+//
+// Points depend on node names only, so every process given the same names (the gateway,
+// tools.ShardRebalancer) builds the same ring. Immutable; a lookup is one hash and a
+// binary search.
+public final class HashRing<T> {
+    private final long[] points;
+    private final Object[] owners;
+    private final Map<String, T> nodes;
+
+    // nodes: name -> node, in a stable order (it breaks ties between equal points)
+    public HashRing(Map<String, T> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("A ring needs at least one node");
+        if (virtualNodes < 1) throw new IllegalArgumentException("virtualNodes must be positive");
+        this.nodes = Collections.unmodifiableMap(new LinkedHashMap<>(nodes));
+        int count = nodes.size() * virtualNodes;
+        long[] hashes = new long[count];
+        Integer[] order = new Integer[count];
+        List<T> byPoint = new ArrayList<>(count);
+        for (Map.Entry<String, T> node : nodes.entrySet()) {
+            for (int v = 0; v < virtualNodes; v++) {
+                int i = byPoint.size();
+                hashes[i] = hash(node.getKey() + "#" + v);
+                order[i] = i;
+                byPoint.add(node.getValue());
+            }
+        }
+        Arrays.sort(order, (a, b) -> hashes[a] != hashes[b] ? Long.compare(hashes[a], hashes[b]) : Integer.compare(a, b));
+        this.points = new long[count];
+        this.owners = new Object[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = byPoint.get(order[i]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T owner(String key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) i = -i - 1;
+        return (T) owners[i == points.length ? 0 : i];
+    }
+
+    public Map<String, T> nodes() {
+        return nodes;
+    }
+
+    // Fraction of the ring (and so of uniformly hashed keys) each node owns
+    public Map<String, Double> shares() {
+        Map<Object, Double> byOwner = new IdentityHashMap<>();
+        for (int i = 0; i < points.length; i++) {
+            // Unsigned distance from the previous point, wrapping around for the first one
+            long arc = points[i] - (i == 0 ? points[points.length - 1] : points[i - 1]);
+            double length = points.length == 1 ? 0x1p64 : (arc >>> 1) * 2.0 + (arc & 1);
+            byOwner.merge(owners[i], length / 0x1p64, Double::sum);
+        }
+        Map<String, Double> shares = new LinkedHashMap<>();
+        nodes.forEach((name, node) -> shares.put(name, byOwner.getOrDefault(node, 0.0)));
+        return shares;
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, then MurmurHash3's finalizer to spread nearby
+    // inputs (host:port#0, host:port#1, ...) across the whole ring
+    public static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,199 @@
+package common;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Leveled logging that never makes a handler thread wait on stdout.
+//
+// A call copies the level, time, thread name, template and arguments into a slot of a
+// bounded lock-free ring (one compare-and-set to claim it) and returns; a daemon writer
+// thread formats the events and prints them in batches. If the ring is full the event is
+// dropped and counted instead of blocking, and the writer reports how many were lost.
+// Formatting happens on the writer, so arguments should be values that do not change
+// afterwards (strings, numbers). "{}" in the template is replaced by the next argument.
+//
+// Per-request events go through sample(), which logs roughly one call in
+// log.sampleRate so their cost stays flat however busy the server is.
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final Level THRESHOLD = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+    private static final int SAMPLE_RATE = Math.max(1, Integer.getInteger("log.sampleRate", 100));
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("log.bufferSize", 8192)));
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private static final class Event {
+        Level level;
+        long timeMillis;
+        String thread;
+        String logger;
+        String template;
+        Object[] args;
+        Throwable error;
+    }
+
+    // Bounded multi-producer ring: slot i is free for position p when sequences[i] == p
+    // and holds a published event for position p when sequences[i] == p + 1
+    private static final Event[] ring = new Event[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static final Object[] NO_ARGS = new Object[0];
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event();
+            sequences.set(i, i);
+        }
+        Thread writer = new Thread(Log::drainForever, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private final String name;
+
+    private Log(String name) {
+        this.name = name;
+    }
+
+    public static Log get(String name) {
+        return new Log(name);
+    }
+
+    // Events lost to a full buffer since startup
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    public boolean enabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    public void debug(String template, Object... args) {
+        if (enabled(Level.DEBUG)) publish(Level.DEBUG, template, args, null);
+    }
+
+    public void info(String template, Object... args) {
+        if (enabled(Level.INFO)) publish(Level.INFO, template, args, null);
+    }
+
+    public void warn(String template, Object... args) {
+        if (enabled(Level.WARN)) publish(Level.WARN, template, args, null);
+    }
+
+    public void error(String message, Throwable error) {
+        publish(Level.ERROR, message, NO_ARGS, error);
+    }
+
+    // An INFO event for a hot path, kept for about one call in log.sampleRate. Fixed
+    // arities so a call that is not kept allocates nothing.
+    public void sample(String template, Object arg) {
+        if (sampled()) publish(Level.INFO, template, new Object[] {arg}, null);
+    }
+
+    public void sample(String template, Object arg1, Object arg2) {
+        if (sampled()) publish(Level.INFO, template, new Object[] {arg1, arg2}, null);
+    }
+
+    private boolean sampled() {
+        return enabled(Level.INFO) && (SAMPLE_RATE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0);
+    }
+
+    private void publish(Level level, String template, Object[] args, Throwable error) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & (CAPACITY - 1));
+            long sequence = sequences.get(index);
+            if (sequence < position) {
+                // The writer has not freed this slot yet: the ring is full
+                dropped.increment();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) break;
+        }
+        Event event = ring[index];
+        event.level = level;
+        event.timeMillis = System.currentTimeMillis();
+        event.thread = Thread.currentThread().getName();
+        event.logger = name;
+        event.template = template;
+        event.args = args;
+        event.error = error;
+        sequences.set(index, position + 1);
+    }
+
+    private static long head; // next position to read; writer thread (or the shutdown hook) only
+    private static long reportedDrops;
+
+    private static void drainForever() {
+        while (true) {
+            if (!drain()) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    // Prints every published event; false if there was nothing to print
+    private static synchronized boolean drain() {
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            int index = (int) (head & (CAPACITY - 1));
+            if (sequences.get(index) != head + 1) break;
+            Event event = ring[index];
+            format(event, out);
+            event.args = null;
+            event.error = null;
+            sequences.set(index, head + CAPACITY);
+            head++;
+            if (out.length() > 64 * 1024) flush(out);
+        }
+        long lost = dropped.sum();
+        if (lost != reportedDrops) {
+            out.append(TIME.format(Instant.now())).append(" WARN  [log-writer] log: buffer full, dropped ")
+                    .append(lost - reportedDrops).append(" messages\n");
+            reportedDrops = lost;
+        }
+        if (out.length() == 0) return false;
+        flush(out);
+        return true;
+    }
+
+    private static void flush(StringBuilder out) {
+        System.out.print(out);
+        System.out.flush();
+        out.setLength(0);
+    }
+
+    private static void format(Event event, StringBuilder out) {
+        out.append(TIME.format(Instant.ofEpochMilli(event.timeMillis))).append(' ');
+        String level = event.level.name();
+        out.append(level);
+        for (int i = level.length(); i < 6; i++) out.append(' ');
+        out.append('[').append(event.thread).append("] ").append(event.logger).append(": ");
+        String template = event.template;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < event.args.length && (at = template.indexOf("{}", from)) >= 0) {
+            out.append(template, from, at).append(event.args[arg++]);
+            from = at + 2;
+        }
+        out.append(template, from, template.length()).append('\n');
+        if (event.error != null) {
+            StringWriter trace = new StringWriter();
+            event.error.printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// One process's instrumentation: per-action timers (a latency histogram plus an error
+// count), counters and gauges. Recording never locks: finding an action's timer is a
+// map read once it exists, and the timer itself is a Histogram and a LongAdder. Gauges
+// are read only when a snapshot is taken.
+//
+// snapshot() turns everything into plain maps, lists and numbers, so it travels through
+// either wire codec and can be rendered as text by a process other than the one that
+// recorded it (the gateway's /metrics page shows the TCP server's numbers too).
+public final class Metrics {
+    // The timer entry in a snapshot holding every action of a family merged
+    public static final String ALL_ACTIONS = "*";
+
+    public static final class Timer {
+        private final Histogram histogram = new Histogram();
+        private final LongAdder errors = new LongAdder();
+
+        public void record(long nanos, boolean success) {
+            histogram.record(nanos);
+            if (!success) errors.increment();
+        }
+    }
+
+    private final String process;
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<String, Map<String, Timer>> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public Metrics(String process) {
+        this.process = process;
+    }
+
+    // family: what is timed, e.g. "request"; action: the action name
+    public Timer timer(String family, String action) {
+        Map<String, Timer> byAction = timers.get(family);
+        if (byAction == null) byAction = timers.computeIfAbsent(family, f -> new ConcurrentHashMap<>());
+        Timer timer = byAction.get(action);
+        return timer != null ? timer : byAction.computeIfAbsent(action, a -> new Timer());
+    }
+
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // {process, uptimeMs, counters: {name: n}, gauges: {name: n},
+    //  timers: {family: {action: {count, errors, sumNanos, p50Nanos, p90Nanos, p99Nanos, p999Nanos, maxNanos}}}}
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("process", process);
+        snapshot.put("uptimeMs", System.currentTimeMillis() - startMillis);
+        Map<String, Object> counterValues = new TreeMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        snapshot.put("counters", counterValues);
+        Map<String, Object> gaugeValues = new TreeMap<>();
+        gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.getAsLong()));
+        snapshot.put("gauges", gaugeValues);
+        Map<String, Object> families = new TreeMap<>();
+        timers.forEach((family, byAction) -> {
+            Map<String, Object> actions = new TreeMap<>();
+            Histogram all = new Histogram();
+            long allErrors = 0;
+            for (Map.Entry<String, Timer> e : byAction.entrySet()) {
+                Timer timer = e.getValue();
+                actions.put(e.getKey(), summary(timer.histogram, timer.errors.sum()));
+                all.merge(timer.histogram);
+                allErrors += timer.errors.sum();
+            }
+            actions.put(ALL_ACTIONS, summary(all, allErrors));
+            families.put(family, actions);
+        });
+        snapshot.put("timers", families);
+        return snapshot;
+    }
+
+    private static Map<String, Object> summary(Histogram histogram, long errors) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.count());
+        summary.put("errors", errors);
+        summary.put("sumNanos", histogram.sum());
+        summary.put("p50Nanos", histogram.percentile(0.50));
+        summary.put("p90Nanos", histogram.percentile(0.90));
+        summary.put("p99Nanos", histogram.percentile(0.99));
+        summary.put("p999Nanos", histogram.percentile(0.999));
+        summary.put("maxNanos", histogram.max());
+        return summary;
+    }
+
+    // Renders a snapshot (this process's or one received from another) in the plain-text
+    // exposition format scrapers such as Prometheus read
+    public static void renderText(Map<?, ?> snapshot, StringBuilder out) {
+        String process = "process=\"" + snapshot.get("process") + "\"";
+        line(out, "sms_uptime_seconds", process, number(snapshot.get("uptimeMs")) / 1e3);
+        for (Map.Entry<?, ?> e : sorted(snapshot.get("counters")).entrySet()) {
+            line(out, "sms_" + e.getKey(), process, number(e.getValue()));
+        }
+        for (Map.Entry<?, ?> e : sorted(snapshot.get("gauges")).entrySet()) {
+            line(out, "sms_" + e.getKey(), process, number(e.getValue()));
+        }
+        for (Map.Entry<?, ?> family : sorted(snapshot.get("timers")).entrySet()) {
+            String name = "sms_" + family.getKey() + "_seconds";
+            for (Map.Entry<?, ?> action : sorted(family.getValue()).entrySet()) {
+                Map<?, ?> summary = (Map<?, ?>) action.getValue();
+                String labels = process + ",action=\"" + action.getKey() + "\"";
+                line(out, name, labels + ",quantile=\"0.5\"", number(summary.get("p50Nanos")) / 1e9);
+                line(out, name, labels + ",quantile=\"0.9\"", number(summary.get("p90Nanos")) / 1e9);
+                line(out, name, labels + ",quantile=\"0.99\"", number(summary.get("p99Nanos")) / 1e9);
+                line(out, name, labels + ",quantile=\"0.999\"", number(summary.get("p999Nanos")) / 1e9);
+                line(out, name + "_max", labels, number(summary.get("maxNanos")) / 1e9);
+                line(out, name + "_sum", labels, number(summary.get("sumNanos")) / 1e9);
+                line(out, name + "_count", labels, number(summary.get("count")));
+                line(out, "sms_" + family.getKey() + "_errors_total", labels, number(summary.get("errors")));
+            }
+        }
+    }
+
+    private static Map<?, ?> sorted(Object map) {
+        return map instanceof Map ? new TreeMap<>((Map<?, ?>) map) : new TreeMap<>();
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append('{').append(labels).append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
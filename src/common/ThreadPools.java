@@ -0,0 +1,69 @@
+package common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Executor selection shared by the TCP server and the gateway.
+// "platform" keeps the original cached thread pool; "virtual" runs every task on its
+// own virtual thread. The virtual-thread factory is looked up reflectively so the
+// sources still compile on JDKs older than 21.
+public final class ThreadPools {
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private ThreadPools() {}
+
+    // Property lookup order: <component>.executor, then executor, then "platform"
+    public static String configuredMode(String component) {
+        return System.getProperty(component + ".executor", System.getProperty("executor", PLATFORM));
+    }
+
+    public static ExecutorService newConnectionExecutor(String mode, String threadNamePrefix) {
+        if (VIRTUAL.equalsIgnoreCase(mode)) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) return virtual;
+            System.out.println("Virtual threads need JDK 21+ (running " + Runtime.version()
+                    + "), falling back to platform threads for " + threadNamePrefix);
+        }
+        AtomicInteger id = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> new Thread(r, threadNamePrefix + "-" + id.incrementAndGet()));
+    }
+
+    // Fixed number of threads in front of a bounded queue, for requests rather than
+    // connections. When both are full, execute throws RejectedExecutionException so the
+    // caller can turn the request away at once instead of letting the backlog grow.
+    public static ThreadPoolExecutor newBoundedExecutor(String threadNamePrefix, int threads, int queueCapacity) {
+        AtomicInteger id = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+                    Thread t = new Thread(r, threadNamePrefix + "-" + id.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public static boolean virtualThreadsSupported() {
+        return findFactory() != null;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        Method factory = findFactory();
+        if (factory == null) return null;
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Method findFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// Hashed timing wheel: a ring of slots, each a lock-free stack of timeouts. One daemon
+// thread advances a slot every tick and hands every timeout that is due to the handler;
+// timeouts more than a full turn away stay in their slot until the turn they are due.
+// Scheduling is one compare-and-set and costs the same with a million timeouts pending
+// as with one; no tick ever scans more than its own slot.
+//
+// Timeouts fire up to one tick late, never early (a full turn late in the rare case one
+// is scheduled for the very tick being processed). There is no cancel: handlers check
+// whether the item still needs to expire (and may schedule it again), which is cheaper
+// than tracking cancellation for timeouts that are usually extended.
+public final class TimingWheel<T> {
+    private static final class Timeout<T> {
+        final T item;
+        final long deadlineTick;
+        Timeout<T> next;
+
+        Timeout(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final AtomicReferenceArray<Timeout<T>> slots;
+    private final Consumer<T> handler;
+    private final long startNanos = System.nanoTime();
+    private volatile long currentTick; // last tick processed
+
+    public TimingWheel(String name, long tickMs, int slotCount, Consumer<T> handler) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("slotCount must be a power of two");
+        }
+        this.tickMs = tickMs;
+        this.mask = slotCount - 1;
+        this.slots = new AtomicReferenceArray<>(slotCount);
+        this.handler = handler;
+        Thread ticker = new Thread(this::run, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // Milliseconds on the wheel's own monotonic clock
+    public long now() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    // Runs handler.accept(item) once now() >= deadlineMs (rounded up to the next tick)
+    public void schedule(T item, long deadlineMs) {
+        long tick = Math.max((deadlineMs + tickMs - 1) / tickMs, currentTick + 1);
+        Timeout<T> timeout = new Timeout<>(item, tick);
+        push((int) (tick & mask), timeout);
+    }
+
+    private void push(int slot, Timeout<T> timeout) {
+        Timeout<T> head;
+        do {
+            head = slots.get(slot);
+            timeout.next = head;
+        } while (!slots.compareAndSet(slot, head, timeout));
+    }
+
+    private void run() {
+        long tick = 0;
+        while (true) {
+            long sleep = (tick + 1) * tickMs - now();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            int slot = (int) (tick & mask);
+            currentTick = tick; // new timeouts now go to later slots
+            // Take the whole slot at once; anything pushed from now on waits for the next turn
+            Timeout<T> timeout = slots.getAndSet(slot, null);
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.deadlineTick <= tick) {
+                    try {
+                        handler.accept(timeout.item);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    push(slot, timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+}
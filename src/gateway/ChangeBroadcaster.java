@@ -0,0 +1,371 @@
+package gateway;
+
+import common.Log;
+import common.Metrics;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import models.Request;
+import models.Response;
+import protocol.Framing;
+import protocol.WireCodec;
+import protocol.WireCodecs;
+
+// Pushes module and enrollment changes to browsers that sent SUBSCRIBE, so they need not
+// poll VIEW_MODULES or LIST_MODULES. One connection of its own to the TCP server carries
+// the change feed (SUBSCRIBE_CHANGES); each batch is merged into every subscriber's
+// pending changes, which a pusher thread sends a moment later as one message. Pending
+// changes are coalesced (the latest state of each module, the highest count of each
+// enrollment), so a subscriber that is slow to take them gets fewer, larger messages.
+//
+// The feed reader never writes to a browser, so nobody can stall it. A subscriber whose
+// pending changes outgrow the limit gets RESYNC (refetch everything) instead; one whose
+// socket has not taken a message for STALL_MS is disconnected and reconnects on its own.
+//
+// On a sharded cluster every shard's feed is followed. Module changes are taken from the
+// first shard only, since every shard applies the same ones (ShardRouter). A shard's
+// enrollment counts are only its own students, so changed modules are noted instead and,
+// once per COALESCE_MS, their totals fetched with ENROLLMENT_COUNTS through the router.
+final class ChangeBroadcaster {
+    private static final Log LOG = Log.get("push");
+    // How long changes are collected before they are pushed
+    private static final long COALESCE_MS = Long.getLong("gateway.push.coalesceMs", 50);
+    // Distinct pending changes per subscriber before it is sent RESYNC instead
+    private static final int MAX_PENDING = Integer.getInteger("gateway.push.maxPending", 1000);
+    // How long one push may block on a subscriber's socket before it is disconnected
+    private static final long STALL_MS = Long.getLong("gateway.push.stallMs", 5000);
+    private static final int PUSH_THREADS = Integer.getInteger("gateway.push.threads", 4);
+    private static final long RECONNECT_BACKOFF_MS = 1000;
+    // The TCP server sends an empty batch at least this often
+    private static final int FEED_READ_TIMEOUT_MS = 45000;
+
+    // Where a subscriber's pushes go; implemented by the browser connection. The push
+    // methods return false, without sending, while the connection is busy sending
+    // something else (such as a streamed list); the push is then tried again later.
+    interface Target {
+        // {"modules": [...], "enrolled": {code: count}}, either part possibly absent
+        boolean pushChanges(Map<String, Object> changes) throws IOException;
+
+        boolean pushResync() throws IOException;
+
+        void close();
+    }
+
+    private static final class Subscriber {
+        final Target target;
+        final boolean modules;
+        final boolean enrollments;
+        // Guarded by this
+        final Map<String, models.Module> pendingModules = new TreeMap<>();
+        final Map<String, Integer> pendingEnrolled = new TreeMap<>();
+        boolean resync;
+        boolean scheduled; // a push is scheduled or running
+        long pushStarted;  // System.nanoTime() when the running push began, 0 if none
+
+        Subscriber(Target target, boolean modules, boolean enrollments) {
+            this.target = target;
+            this.modules = modules;
+            this.enrollments = enrollments;
+        }
+    }
+
+    private final ShardRouter router;
+    private final WireCodec preferredCodec;
+    private final Map<Target, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService pushers;
+    private final ScheduledExecutorService watchdog;
+    private final LongAdder batchesReceived;
+    private final LongAdder messagesPushed;
+    private final LongAdder resyncsSent;
+    private final LongAdder subscribersDropped;
+    private final AtomicInteger feedsConnected = new AtomicInteger();
+    // Modules whose total enrollment changed on some shard since the last refresh
+    private final Set<String> changedCounts = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+    ChangeBroadcaster(ShardRouter router, WireCodec preferredCodec, Metrics metrics) {
+        this.router = router;
+        this.preferredCodec = preferredCodec;
+        AtomicInteger id = new AtomicInteger();
+        this.pushers = Executors.newScheduledThreadPool(PUSH_THREADS, r -> {
+            Thread t = new Thread(r, "push-" + id.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "push-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        this.batchesReceived = metrics.counter("push_batches_received_total");
+        this.messagesPushed = metrics.counter("push_messages_total");
+        this.resyncsSent = metrics.counter("push_resyncs_total");
+        this.subscribersDropped = metrics.counter("push_subscribers_dropped_total");
+        metrics.gauge("push_subscribers", subscribers::size);
+        metrics.gauge("push_feed_connected", feedsConnected::get);
+    }
+
+    void start() {
+        for (ShardRouter.Shard shard : router.shards()) {
+            Thread reader = new Thread(() -> followFeed(shard),
+                    router.clustered() ? "push-feed-" + shard.index : "push-feed");
+            reader.setDaemon(true);
+            reader.start();
+        }
+        watchdog.scheduleWithFixedDelay(this::dropStalled, 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    // Replaces the target's earlier subscription, if any; no topics unsubscribes
+    void subscribe(Target target, boolean modules, boolean enrollments) {
+        if (!modules && !enrollments) {
+            subscribers.remove(target);
+        } else {
+            subscribers.put(target, new Subscriber(target, modules, enrollments));
+        }
+    }
+
+    void unsubscribe(Target target) {
+        subscribers.remove(target);
+    }
+
+    // Reads the change feed for as long as the gateway runs, reconnecting after a
+    // failure. The last sequence number seen is sent on reconnect, so nothing in between
+    // is missed; if the server no longer has it, everyone is told to resync.
+    private void followFeed(ShardRouter.Shard shard) {
+        Long lastSeq = null;
+        boolean connected = false;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(shard.host, shard.port), FEED_READ_TIMEOUT_MS);
+                socket.setSoTimeout(FEED_READ_TIMEOUT_MS);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                Framing.writeFrame(out, WireCodecs.hello(preferredCodec));
+                out.flush();
+                byte[] ack = Framing.readFrame(in);
+                if (ack == null) throw new EOFException("TCP server closed during codec negotiation");
+                WireCodec codec = WireCodecs.parseAck(ack);
+
+                Request subscribe = new Request("SUBSCRIBE_CHANGES");
+                subscribe.setCorrelationId(1);
+                if (lastSeq != null) subscribe.addData("afterSeq", lastSeq);
+                Framing.writeFrame(out, codec.encodeRequest(subscribe));
+                out.flush();
+
+                while (true) {
+                    byte[] frame = Framing.readFrame(in);
+                    if (frame == null) throw new EOFException("TCP server closed the change feed");
+                    Response response = codec.decodeResponse(frame, 0, frame.length);
+                    if (!response.isSuccess() || !(response.getData() instanceof Map)) {
+                        throw new IOException("Change feed refused: " + response.getMessage());
+                    }
+                    if (!connected) {
+                        connected = true;
+                        feedsConnected.incrementAndGet();
+                        LOG.info("Change feed from {} connected", shard.name);
+                    }
+                    Map<?, ?> batch = (Map<?, ?>) response.getData();
+                    batchesReceived.increment();
+                    if (Boolean.TRUE.equals(batch.get("resync"))) {
+                        resyncAll();
+                    }
+                    receive(shard, (List<?>) batch.get("events"));
+                    lastSeq = ((Number) batch.get("seq")).longValue();
+                }
+            } catch (Exception e) {
+                if (connected) {
+                    connected = false;
+                    feedsConnected.decrementAndGet();
+                    LOG.warn("Change feed from {} lost ({}), reconnecting", shard.name, e.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_BACKOFF_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Coalesces the batch once, then delivers the result
+    private void receive(ShardRouter.Shard shard, List<?> events) {
+        if (events == null || events.isEmpty()) return;
+        Map<String, models.Module> modules = new HashMap<>();
+        Map<String, Integer> enrolled = new HashMap<>();
+        for (Object e : events) {
+            Map<?, ?> event = (Map<?, ?>) e;
+            if ("module".equals(event.get("type"))) {
+                if (shard.index != 0) continue;
+                models.Module module = (models.Module) event.get("module");
+                modules.put(module.getModuleCode(), module);
+            } else if ("enrollment".equals(event.get("type"))) {
+                String moduleCode = (String) event.get("moduleCode");
+                if (router.clustered()) {
+                    changedCounts.add(moduleCode);
+                } else {
+                    enrolled.merge(moduleCode, ((Number) event.get("enrolled")).intValue(), Math::max);
+                }
+            }
+        }
+        deliver(modules, enrolled);
+        if (!changedCounts.isEmpty() && refreshScheduled.compareAndSet(false, true)) {
+            pushers.schedule(this::refreshCounts, COALESCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Fetches the cluster-wide totals of the modules noted as changed. On failure they
+    // stay noted and are tried again after a while.
+    private void refreshCounts() {
+        refreshScheduled.set(false);
+        Set<String> codes = new HashSet<>(changedCounts);
+        changedCounts.removeAll(codes);
+        long delay = COALESCE_MS;
+        try {
+            Response response = router.send(new Request("ENROLLMENT_COUNTS"), FEED_READ_TIMEOUT_MS);
+            if (!response.isSuccess() || !(response.getData() instanceof Map)) {
+                throw new IOException(response.getMessage());
+            }
+            Map<String, Integer> enrolled = new HashMap<>();
+            for (Map.Entry<?, ?> count : ((Map<?, ?>) response.getData()).entrySet()) {
+                if (codes.contains(count.getKey()) && count.getValue() instanceof Number) {
+                    enrolled.put((String) count.getKey(), ((Number) count.getValue()).intValue());
+                }
+            }
+            deliver(Collections.emptyMap(), enrolled);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            LOG.warn("Could not refresh enrollment counts ({}), retrying", e.getMessage());
+            changedCounts.addAll(codes);
+            delay = RECONNECT_BACKOFF_MS;
+        }
+        if (!changedCounts.isEmpty() && refreshScheduled.compareAndSet(false, true)) {
+            pushers.schedule(this::refreshCounts, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Merges coalesced changes into each interested subscriber
+    private void deliver(Map<String, models.Module> modules, Map<String, Integer> enrolled) {
+        if (modules.isEmpty() && enrolled.isEmpty()) return;
+        for (Subscriber s : subscribers.values()) {
+            boolean wantsModules = s.modules && !modules.isEmpty();
+            boolean wantsEnrolled = s.enrollments && !enrolled.isEmpty();
+            if (!wantsModules && !wantsEnrolled) continue;
+            synchronized (s) {
+                if (!s.resync) {
+                    if (wantsModules) s.pendingModules.putAll(modules);
+                    if (wantsEnrolled) {
+                        for (Map.Entry<String, Integer> count : enrolled.entrySet()) {
+                            s.pendingEnrolled.merge(count.getKey(), count.getValue(), Math::max);
+                        }
+                    }
+                    if (s.pendingModules.size() + s.pendingEnrolled.size() > MAX_PENDING) {
+                        s.pendingModules.clear();
+                        s.pendingEnrolled.clear();
+                        s.resync = true;
+                    }
+                }
+                schedule(s);
+            }
+        }
+    }
+
+    private void resyncAll() {
+        for (Subscriber s : subscribers.values()) {
+            synchronized (s) {
+                s.pendingModules.clear();
+                s.pendingEnrolled.clear();
+                s.resync = true;
+                schedule(s);
+            }
+        }
+    }
+
+    // Caller holds s
+    private void schedule(Subscriber s) {
+        if (s.scheduled) return;
+        s.scheduled = true;
+        pushers.schedule(() -> push(s), COALESCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // One push per subscriber runs at a time; changes that arrive meanwhile wait for
+    // the next one, which is scheduled when this one is done
+    private void push(Subscriber s) {
+        boolean resync;
+        Map<String, models.Module> modules;
+        Map<String, Integer> enrolled;
+        synchronized (s) {
+            resync = s.resync;
+            modules = new TreeMap<>(s.pendingModules);
+            enrolled = new TreeMap<>(s.pendingEnrolled);
+            s.pendingModules.clear();
+            s.pendingEnrolled.clear();
+            s.resync = false;
+            s.pushStarted = System.nanoTime();
+        }
+        boolean sent = true;
+        try {
+            if (resync) {
+                sent = s.target.pushResync();
+                if (sent) {
+                    resyncsSent.increment();
+                    messagesPushed.increment();
+                }
+            } else if (!modules.isEmpty() || !enrolled.isEmpty()) {
+                Map<String, Object> changes = new LinkedHashMap<>();
+                if (!modules.isEmpty()) changes.put("modules", new ArrayList<>(modules.values()));
+                if (!enrolled.isEmpty()) changes.put("enrolled", enrolled);
+                sent = s.target.pushChanges(changes);
+                if (sent) messagesPushed.increment();
+            }
+        } catch (IOException e) {
+            drop(s);
+            return;
+        }
+        synchronized (s) {
+            s.pushStarted = 0;
+            s.scheduled = false;
+            if (!sent) {
+                // Put back under anything newer that arrived meanwhile
+                s.resync |= resync;
+                if (!s.resync) {
+                    modules.forEach(s.pendingModules::putIfAbsent);
+                    enrolled.forEach((code, count) -> s.pendingEnrolled.merge(code, count, Math::max));
+                }
+            }
+            if (s.resync || !s.pendingModules.isEmpty() || !s.pendingEnrolled.isEmpty()) {
+                schedule(s);
+            }
+        }
+    }
+
+    // Closing the socket also fails the blocked write, which frees its pusher thread
+    private void dropStalled() {
+        long now = System.nanoTime();
+        for (Subscriber s : subscribers.values()) {
+            long started;
+            synchronized (s) {
+                started = s.pushStarted;
+            }
+            if (started != 0 && now - started > STALL_MS * 1_000_000) {
+                LOG.warn("Dropping a push subscriber stalled for over {} ms", STALL_MS);
+                drop(s);
+            }
+        }
+    }
+
+    private void drop(Subscriber s) {
+        if (subscribers.remove(s.target, s)) {
+            subscribersDropped.increment();
+        }
+        s.target.close();
+    }
+}
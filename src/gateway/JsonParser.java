@@ -0,0 +1,355 @@
+package gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import models.Request;
+import protocol.Opcodes;
+
+// Single-pass JSON parser reading straight from the unmasked WebSocket payload bytes.
+// The envelope {"action": ..., "requestId": ..., "data": {...}} is turned into a Request directly;
+// nested values become HashMap / ArrayList / String / Integer / Long / Double / Boolean.
+// Strings without escapes are materialized with one copy out of the payload.
+// Not thread-safe: use one instance per connection.
+public class JsonParser {
+    private static final int MAX_DEPTH = 64;
+
+    // Field names the frontends send on almost every request; returned as shared
+    // constants instead of allocating a fresh key String each time
+    private static final String[] COMMON_KEYS = {
+            "action", "data", "requestId", "studentId", "name", "email", "password",
+            "moduleCode", "moduleName", "description", "credits", "capacity", "token",
+    };
+    private static final byte[][] COMMON_KEY_BYTES = new byte[COMMON_KEYS.length][];
+    static {
+        for (int i = 0; i < COMMON_KEYS.length; i++) {
+            COMMON_KEY_BYTES[i] = COMMON_KEYS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private char[] scratch = new char[64];
+
+    public Request parseRequest(byte[] payload, int offset, int length) {
+        this.buf = payload;
+        this.pos = offset;
+        this.limit = offset + length;
+
+        Request request = new Request();
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() != '}') {
+            while (true) {
+                skipWhitespace();
+                String key = readKey();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if ("action".equals(key)) {
+                    Object action = readValue(1);
+                    request.setAction(action instanceof String ? (String) action : null);
+                    request.setOpcode(Opcodes.of(request.getAction()));
+                } else if ("requestId".equals(key)) {
+                    Object requestId = readValue(1);
+                    request.setRequestId(requestId == null ? null : requestId.toString());
+                } else if ("data".equals(key)) {
+                    Object data = readValue(1);
+                    if (data instanceof Map) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, Object> map = (Map<String, Object>) data;
+                        request.setData(map);
+                    }
+                } else {
+                    readValue(1); // unknown envelope fields are ignored
+                }
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                    continue;
+                }
+                break;
+            }
+        }
+        expect('}');
+        skipWhitespace();
+        if (pos != limit) throw error("Trailing characters");
+        this.buf = null;
+        return request;
+    }
+
+    // Parses any single JSON value (used for nested content and by tooling)
+    public Object parseValue(byte[] payload, int offset, int length) {
+        this.buf = payload;
+        this.pos = offset;
+        this.limit = offset + length;
+        skipWhitespace();
+        Object value = readValue(0);
+        skipWhitespace();
+        if (pos != limit) throw error("Trailing characters");
+        this.buf = null;
+        return value;
+    }
+
+    private Object readValue(int depth) {
+        if (depth > MAX_DEPTH) throw error("Nesting too deep");
+        int c = peek();
+        switch (c) {
+            case '{':
+                return readObject(depth + 1);
+            case '[':
+                return readArray(depth + 1);
+            case '"':
+                return readString();
+            case 't':
+                expectLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectLiteral("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+                throw error("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject(int depth) {
+        expect('{');
+        Map<String, Object> map = new HashMap<>();
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            String key = readKey();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            map.put(key, readValue(depth));
+            skipWhitespace();
+            int c = next();
+            if (c == '}') return map;
+            if (c != ',') throw error("Expected ',' or '}'");
+        }
+    }
+
+    private List<Object> readArray(int depth) {
+        expect('[');
+        List<Object> list = new ArrayList<>();
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return list;
+        }
+        while (true) {
+            skipWhitespace();
+            list.add(readValue(depth));
+            skipWhitespace();
+            int c = next();
+            if (c == ']') return list;
+            if (c != ',') throw error("Expected ',' or ']'");
+        }
+    }
+
+    private String readKey() {
+        if (peek() != '"') throw error("Expected field name");
+        int start = pos + 1;
+        // Fast path: plain ASCII key matching a common field name
+        for (int i = start; i < limit; i++) {
+            byte b = buf[i];
+            if (b == '"') {
+                String known = commonKey(start, i - start);
+                if (known != null) {
+                    pos = i + 1;
+                    return known;
+                }
+                break;
+            }
+            if (b == '\\' || b < 0) break;
+        }
+        return readString();
+    }
+
+    private String commonKey(int start, int length) {
+        outer:
+        for (int k = 0; k < COMMON_KEY_BYTES.length; k++) {
+            byte[] candidate = COMMON_KEY_BYTES[k];
+            if (candidate.length != length) continue;
+            for (int i = 0; i < length; i++) {
+                if (candidate[i] != buf[start + i]) continue outer;
+            }
+            return COMMON_KEYS[k];
+        }
+        return null;
+    }
+
+    private String readString() {
+        expect('"');
+        int start = pos;
+        boolean ascii = true;
+        // Scan once; if the string has no escapes it is copied straight out of the payload
+        for (int i = start; i < limit; i++) {
+            byte b = buf[i];
+            if (b == '"') {
+                pos = i + 1;
+                return new String(buf, start, i - start, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            }
+            if (b == '\\') {
+                return readEscapedString(start);
+            }
+            if (b < 0) {
+                ascii = false;
+            } else if (b < 0x20) {
+                throw error("Unescaped control character in string");
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    // Slow path: decode UTF-8 and escapes into the scratch buffer
+    private String readEscapedString(int start) {
+        int n = 0;
+        pos = start;
+        while (true) {
+            if (pos >= limit) throw error("Unterminated string");
+            int b = buf[pos++] & 0xFF;
+            if (n + 2 > scratch.length) scratch = Arrays.copyOf(scratch, scratch.length * 2);
+
+            if (b == '"') {
+                return new String(scratch, 0, n);
+            } else if (b == '\\') {
+                if (pos >= limit) throw error("Unterminated escape");
+                int e = buf[pos++];
+                switch (e) {
+                    case '"': scratch[n++] = '"'; break;
+                    case '\\': scratch[n++] = '\\'; break;
+                    case '/': scratch[n++] = '/'; break;
+                    case 'b': scratch[n++] = '\b'; break;
+                    case 'f': scratch[n++] = '\f'; break;
+                    case 'n': scratch[n++] = '\n'; break;
+                    case 'r': scratch[n++] = '\r'; break;
+                    case 't': scratch[n++] = '\t'; break;
+                    case 'u': scratch[n++] = readHex4(); break;
+                    default: throw error("Invalid escape '\\" + (char) e + "'");
+                }
+            } else if (b < 0x80) {
+                if (b < 0x20) throw error("Unescaped control character in string");
+                scratch[n++] = (char) b;
+            } else if (b >= 0xC2 && b < 0xE0) {
+                scratch[n++] = (char) (((b & 0x1F) << 6) | continuation());
+            } else if (b >= 0xE0 && b < 0xF0) {
+                scratch[n++] = (char) (((b & 0x0F) << 12) | (continuation() << 6) | continuation());
+            } else if (b >= 0xF0 && b < 0xF5) {
+                int cp = ((b & 0x07) << 18) | (continuation() << 12) | (continuation() << 6) | continuation();
+                scratch[n++] = Character.highSurrogate(cp);
+                scratch[n++] = Character.lowSurrogate(cp);
+            } else {
+                throw error("Invalid UTF-8");
+            }
+        }
+    }
+
+    private int continuation() {
+        if (pos >= limit) throw error("Truncated UTF-8");
+        int b = buf[pos++] & 0xFF;
+        if ((b & 0xC0) != 0x80) throw error("Invalid UTF-8");
+        return b & 0x3F;
+    }
+
+    private char readHex4() {
+        if (pos + 4 > limit) throw error("Truncated \\u escape");
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            int c = buf[pos++];
+            int d = Character.digit(c, 16);
+            if (d < 0) throw error("Invalid \\u escape");
+            v = (v << 4) | d;
+        }
+        return (char) v;
+    }
+
+    private Object readNumber() {
+        int start = pos;
+        boolean negative = false;
+        if (buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        boolean overflow = false;
+        while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') {
+            int d = buf[pos++] - '0';
+            if (value > (Long.MAX_VALUE - d) / 10) overflow = true;
+            value = value * 10 + d;
+            digits++;
+        }
+        if (digits == 0) throw error("Invalid number");
+
+        boolean fractional = false;
+        if (pos < limit && buf[pos] == '.') {
+            fractional = true;
+            pos++;
+            while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') pos++;
+        }
+        if (pos < limit && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            fractional = true;
+            pos++;
+            if (pos < limit && (buf[pos] == '+' || buf[pos] == '-')) pos++;
+            while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') pos++;
+        }
+
+        if (fractional || overflow) {
+            return Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.ISO_8859_1));
+        }
+        long signed = negative ? -value : value;
+        if (signed >= Integer.MIN_VALUE && signed <= Integer.MAX_VALUE) {
+            return (int) signed;
+        }
+        return signed;
+    }
+
+    private void expectLiteral(String literal) {
+        int len = literal.length();
+        if (pos + len > limit) throw error("Unexpected end of input");
+        for (int i = 0; i < len; i++) {
+            if (buf[pos + i] != literal.charAt(i)) throw error("Invalid literal");
+        }
+        pos += len;
+    }
+
+    private void skipWhitespace() {
+        while (pos < limit) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return;
+            pos++;
+        }
+    }
+
+    private int peek() {
+        if (pos >= limit) throw error("Unexpected end of input");
+        return buf[pos];
+    }
+
+    private int next() {
+        if (pos >= limit) throw error("Unexpected end of input");
+        return buf[pos++];
+    }
+
+    private void expect(char c) {
+        if (next() != c) {
+            pos--;
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid JSON at byte " + pos + ": " + message);
+    }
+}
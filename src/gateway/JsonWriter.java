@@ -0,0 +1,258 @@
+package gateway;
+
+import java.util.*;
+import models.Module;
+import models.Response;
+import models.Student;
+
+// Streams Response / Student / Module / List / Map values as UTF-8 JSON straight into
+// a reusable byte buffer. The first HEADER_RESERVE bytes are kept free so the
+// WebSocket frame header can be written in front of the payload afterwards and the
+// whole frame sent without copying it again.
+// Not thread-safe: use one instance per connection.
+public class JsonWriter {
+    // Largest server-to-client frame header: 2 bytes + 8-byte extended length
+    public static final int HEADER_RESERVE = 10;
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+    // Buffers grown past this by one huge response are dropped after use
+    private static final int RETAIN_LIMIT = 1024 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int pos = HEADER_RESERVE;
+    private int frameStart = HEADER_RESERVE;
+
+    public void reset() {
+        if (buf.length > RETAIN_LIMIT) {
+            buf = new byte[INITIAL_CAPACITY];
+        }
+        pos = HEADER_RESERVE;
+        frameStart = HEADER_RESERVE;
+    }
+
+    public byte[] buffer() { return buf; }
+
+    public int payloadLength() { return pos - HEADER_RESERVE; }
+
+    // Start of the finished frame inside buffer(); valid after finishFrame
+    public int frameStart() { return frameStart; }
+
+    public int frameEnd() { return pos; }
+
+    // Writes the frame header immediately before the payload and returns its start offset
+    public int finishFrame(int firstByte) {
+        frameStart = writeFrameHeader(buf, payloadLength(), firstByte);
+        return frameStart;
+    }
+
+    // Same for any buffer whose payload starts at HEADER_RESERVE
+    static int writeFrameHeader(byte[] buf, long length, int firstByte) {
+        int headerLength = length <= 125 ? 2 : length <= 65535 ? 4 : 10;
+        int start = HEADER_RESERVE - headerLength;
+        buf[start] = (byte) firstByte;
+        if (headerLength == 2) {
+            buf[start + 1] = (byte) length;
+        } else if (headerLength == 4) {
+            buf[start + 1] = 126;
+            buf[start + 2] = (byte) (length >>> 8);
+            buf[start + 3] = (byte) length;
+        } else {
+            buf[start + 1] = 127;
+            for (int i = 0; i < 8; i++) {
+                buf[start + 2 + i] = (byte) (length >>> (56 - 8 * i));
+            }
+        }
+        return start;
+    }
+
+    // Copy of the payload written so far, for callers that cache encoded JSON
+    public byte[] payload() {
+        return Arrays.copyOfRange(buf, HEADER_RESERVE, pos);
+    }
+
+    public JsonWriter writeResponse(Response response) {
+        writeResponseStart(response.isSuccess(), response.getRequestId(), response.getMessage());
+        if (response.getErrorCode() != null) {
+            writeRaw(",\"errorCode\":");
+            writeString(response.getErrorCode());
+        }
+        if (response.getData() != null) {
+            writeRaw(",\"data\":");
+            writeValue(response.getData());
+        }
+        writeByte('}');
+        return this;
+    }
+
+    // Opens a response object up to and including "message"; the caller adds any
+    // "data" and the closing brace
+    public void writeResponseStart(boolean success, String requestId, String message) {
+        writeRaw("{\"success\":");
+        writeRaw(success ? "true" : "false");
+        if (requestId != null) {
+            writeRaw(",\"requestId\":");
+            writeString(requestId);
+        }
+        writeRaw(",\"message\":");
+        writeString(message == null ? "" : message);
+    }
+
+    public void writeValue(Object obj) {
+        if (obj == null) {
+            writeRaw("null");
+        } else if (obj instanceof String) {
+            writeString((String) obj);
+        } else if (obj instanceof Integer || obj instanceof Long || obj instanceof Short || obj instanceof Byte) {
+            writeLong(((Number) obj).longValue());
+        } else if (obj instanceof Number || obj instanceof Boolean) {
+            writeRaw(obj.toString());
+        } else if (obj instanceof Student) {
+            writeStudent((Student) obj);
+        } else if (obj instanceof Module) {
+            writeModule((Module) obj);
+        } else if (obj instanceof List) {
+            List<?> list = (List<?>) obj;
+            writeByte('[');
+            for (int i = 0, n = list.size(); i < n; i++) {
+                if (i > 0) writeByte(',');
+                writeValue(list.get(i));
+            }
+            writeByte(']');
+        } else if (obj instanceof Map) {
+            writeByte('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
+                if (!first) writeByte(',');
+                first = false;
+                writeString(String.valueOf(e.getKey()));
+                writeByte(':');
+                writeValue(e.getValue());
+            }
+            writeByte('}');
+        } else {
+            writeRaw("{}");
+        }
+    }
+
+    // Passwords are never sent to the browser
+    public void writeStudent(Student s) {
+        writeRaw("{\"studentId\":");
+        writeString(s.getStudentId());
+        writeRaw(",\"name\":");
+        writeString(s.getName());
+        writeRaw(",\"email\":");
+        writeString(s.getEmail());
+        writeRaw(",\"registeredModules\":");
+        writeValue(s.getRegisteredModules());
+        writeByte('}');
+    }
+
+    public void writeModule(Module m) {
+        writeRaw("{\"moduleCode\":");
+        writeString(m.getModuleCode());
+        writeRaw(",\"moduleName\":");
+        writeString(m.getModuleName());
+        writeRaw(",\"description\":");
+        writeString(m.getDescription());
+        writeRaw(",\"credits\":");
+        writeLong(m.getCredits());
+        writeRaw(",\"capacity\":");
+        writeLong(m.getCapacity());
+        writeByte('}');
+    }
+
+    // Escapes and UTF-8 encodes in one pass over the chars. Null is written as ""
+    // to match the original serializer.
+    public void writeString(String s) {
+        int len = s == null ? 0 : s.length();
+        ensure(len * 6 + 2); // worst case: every char becomes a six-byte escape
+        byte[] b = buf;
+        int p = pos;
+        b[p++] = '"';
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') b[p++] = '\\';
+                b[p++] = (byte) c;
+            } else if (c < 0x20) {
+                b[p++] = '\\';
+                switch (c) {
+                    case '\n': b[p++] = 'n'; break;
+                    case '\r': b[p++] = 'r'; break;
+                    case '\t': b[p++] = 't'; break;
+                    case '\b': b[p++] = 'b'; break;
+                    case '\f': b[p++] = 'f'; break;
+                    default:
+                        b[p++] = 'u';
+                        b[p++] = '0';
+                        b[p++] = '0';
+                        b[p++] = HEX[c >> 4];
+                        b[p++] = HEX[c & 0xF];
+                }
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xC0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte) (0xF0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                if (Character.isSurrogate(c)) c = '\uFFFD';
+                b[p++] = (byte) (0xE0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        b[p++] = '"';
+        pos = p;
+    }
+
+    public void writeLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            writeRaw("-9223372036854775808");
+            return;
+        }
+        ensure(20);
+        if (v < 0) {
+            buf[pos++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) digits++;
+        int end = pos + digits;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        pos = end;
+    }
+
+    // ASCII-only literal text
+    public void writeRaw(String ascii) {
+        int len = ascii.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            buf[pos++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    // Already-encoded JSON
+    public void writeRaw(byte[] json) {
+        ensure(json.length);
+        System.arraycopy(json, 0, buf, pos, json.length);
+        pos += json.length;
+    }
+
+    public void writeByte(int b) {
+        ensure(1);
+        buf[pos++] = (byte) b;
+    }
+
+    private void ensure(int extra) {
+        if (pos + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package gateway;
+
+import common.Metrics;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// RFC 7692 permessage-deflate for one WebSocket connection: picks an offer from the
+// browser's Sec-WebSocket-Extensions header, then compresses outgoing messages and
+// decompresses incoming ones. The Deflater and Inflater are created on first use and
+// kept for the connection, so with context takeover (the default) each message is
+// compressed against the ones before it; repeated keys and module codes then cost a few
+// bits each. That costs about 300 KB per connection that has compressed something, so
+// gateway.deflate.contextTakeover=false asks for server_no_context_takeover instead and
+// resets the Deflater after each message.
+//
+// The sender side is used under the connection's write lock, the receiver side by its
+// reading thread only.
+final class PerMessageDeflate {
+    static final String EXTENSION = "permessage-deflate";
+    // Empty stored block that a sync flush ends with; RFC 7692 strips it from each
+    // message, so the receiver appends it back before inflating
+    private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+    // Buffers grown past this by one huge message are dropped after use
+    private static final int RETAIN_LIMIT = 1024 * 1024;
+
+    // Counters and timers shared by every connection of one gateway
+    static final class Stats {
+        final LongAdder messages;
+        final LongAdder skipped;
+        final LongAdder bytesIn;
+        final LongAdder bytesOut;
+        final Metrics.Timer deflateTime;
+        final Metrics.Timer inflateTime;
+
+        Stats(Metrics metrics) {
+            this.messages = metrics.counter("deflate_messages_total");
+            this.skipped = metrics.counter("deflate_skipped_total");
+            this.bytesIn = metrics.counter("deflate_bytes_in_total");
+            this.bytesOut = metrics.counter("deflate_bytes_out_total");
+            this.deflateTime = metrics.timer("compress", "deflate");
+            this.inflateTime = metrics.timer("compress", "inflate");
+            // Compressed size as a percentage of the original, over every message so far
+            metrics.gauge("deflate_ratio_percent", () -> {
+                long in = bytesIn.sum();
+                return in == 0 ? 100 : bytesOut.sum() * 100 / in;
+            });
+        }
+    }
+
+    private final int level;
+    private final boolean contextTakeover;
+    private final String response;
+    private final Stats stats;
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean ended;
+    // Compressed frame: JsonWriter.HEADER_RESERVE bytes left free for the header
+    private byte[] out = new byte[INITIAL_CAPACITY];
+    private int outEnd;
+    private byte[] inflated = new byte[0];
+
+    private PerMessageDeflate(int level, boolean contextTakeover, String response, Stats stats) {
+        this.level = level;
+        this.contextTakeover = contextTakeover;
+        this.response = response;
+        this.stats = stats;
+    }
+
+    // Accepts the first permessage-deflate offer this side can honour, or returns null to
+    // go on without compression. java.util.zip always uses a 32 KB window, so an offer
+    // that limits the server's window (server_max_window_bits < 15) is declined;
+    // client_max_window_bits needs no answer, since any window the client picks inflates.
+    static PerMessageDeflate negotiate(String header, int level, boolean contextTakeover, Stats stats) {
+        if (header == null) return null;
+        for (String offer : header.split(",")) {
+            String[] parts = offer.split(";");
+            if (!parts[0].trim().equalsIgnoreCase(EXTENSION)) continue;
+            boolean noContextTakeover = !contextTakeover;
+            Set<String> seen = new HashSet<>();
+            boolean acceptable = true;
+            for (int i = 1; i < parts.length && acceptable; i++) {
+                String param = parts[i].trim();
+                int eq = param.indexOf('=');
+                String name = (eq < 0 ? param : param.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+                String value = eq < 0 ? null : param.substring(eq + 1).trim().replace("\"", "");
+                if (!seen.add(name)) {
+                    acceptable = false;
+                } else if (name.equals("server_no_context_takeover")) {
+                    acceptable = value == null;
+                    noContextTakeover = true;
+                } else if (name.equals("client_no_context_takeover")) {
+                    acceptable = value == null;
+                } else if (name.equals("server_max_window_bits")) {
+                    acceptable = "15".equals(value);
+                } else if (name.equals("client_max_window_bits")) {
+                    acceptable = value == null || value.matches("([89]|1[0-5])");
+                } else {
+                    acceptable = false;
+                }
+            }
+            if (acceptable) {
+                String response = EXTENSION + (noContextTakeover ? "; server_no_context_takeover" : "");
+                return new PerMessageDeflate(level, !noContextTakeover, response, stats);
+            }
+        }
+        return null;
+    }
+
+    // Value for the Sec-WebSocket-Extensions header of the handshake response
+    String response() {
+        return response;
+    }
+
+    // ---- Sending ----
+
+    // Compresses one message, or one fragment of it (last = false on all but the final
+    // one); the frame is then finished with finishFrame. The caller decides whether a
+    // message is worth compressing and must compress all of its fragments if any.
+    void deflate(byte[] src, int offset, int length, boolean last) throws IOException {
+        if (ended) throw new IOException("Connection closed");
+        long start = System.nanoTime();
+        if (deflater == null) deflater = new Deflater(level, true);
+        deflater.setInput(src, offset, length);
+        int pos = JsonWriter.HEADER_RESERVE;
+        while (true) {
+            if (pos == out.length) out = Arrays.copyOf(out, out.length * 2);
+            pos += deflater.deflate(out, pos, out.length - pos, Deflater.SYNC_FLUSH);
+            // Room left over means the flush is complete
+            if (pos < out.length) break;
+        }
+        if (last) {
+            pos -= TAIL.length;
+            if (!contextTakeover) deflater.reset();
+            stats.messages.increment();
+        }
+        outEnd = pos;
+        stats.bytesIn.add(length);
+        stats.bytesOut.add(pos - JsonWriter.HEADER_RESERVE);
+        stats.deflateTime.record(System.nanoTime() - start, true);
+    }
+
+    // A message sent uncompressed on a connection that could have compressed it
+    void skipped() {
+        stats.skipped.increment();
+    }
+
+    // Writes the frame header in front of the compressed payload; returns its start
+    int finishFrame(int firstByte) {
+        return JsonWriter.writeFrameHeader(out, outEnd - JsonWriter.HEADER_RESERVE, firstByte);
+    }
+
+    byte[] buffer() { return out; }
+
+    int frameEnd() { return outEnd; }
+
+    // Drops a buffer one huge message grew; call once the frame is written
+    void reset() {
+        if (out.length > RETAIN_LIMIT) out = new byte[INITIAL_CAPACITY];
+    }
+
+    // ---- Receiving ----
+
+    // Decompresses one whole message into inflated(); returns its length. Fails if the
+    // data is corrupt or would inflate to more than maxBytes.
+    int inflate(byte[] src, int offset, int length, int maxBytes) throws IOException {
+        if (ended) throw new IOException("Connection closed");
+        long start = System.nanoTime();
+        if (inflater == null) inflater = new Inflater(true);
+        if (inflated.length > RETAIN_LIMIT) inflated = new byte[0];
+        try {
+            inflater.setInput(src, offset, length);
+            int pos = drain(0, maxBytes);
+            if (!inflater.finished()) {
+                inflater.setInput(TAIL);
+                pos = drain(pos, maxBytes);
+            }
+            // A client may end its stream with a final block; the next message starts anew
+            if (inflater.finished()) inflater.reset();
+            stats.inflateTime.record(System.nanoTime() - start, true);
+            return pos;
+        } catch (DataFormatException e) {
+            stats.inflateTime.record(System.nanoTime() - start, false);
+            throw new WebSocketFrameCodec.ProtocolException(WebSocketFrameCodec.CLOSE_PROTOCOL_ERROR,
+                    "Invalid compressed message: " + e.getMessage());
+        }
+    }
+
+    private int drain(int pos, int maxBytes) throws DataFormatException, IOException {
+        while (true) {
+            if (pos == inflated.length) {
+                if (pos > maxBytes) {
+                    throw new WebSocketFrameCodec.ProtocolException(WebSocketFrameCodec.CLOSE_TOO_BIG,
+                            "Message exceeds " + maxBytes + " bytes");
+                }
+                inflated = Arrays.copyOf(inflated, Math.max(INITIAL_CAPACITY, Math.min(pos * 2, maxBytes + 1)));
+            }
+            int n = inflater.inflate(inflated, pos, inflated.length - pos);
+            pos += n;
+            if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+                if (pos > maxBytes) {
+                    throw new WebSocketFrameCodec.ProtocolException(WebSocketFrameCodec.CLOSE_TOO_BIG,
+                            "Message exceeds " + maxBytes + " bytes");
+                }
+                return pos;
+            }
+            if (n == 0 && inflater.needsDictionary()) {
+                throw new DataFormatException("Preset dictionary not supported");
+            }
+        }
+    }
+
+    byte[] inflated() { return inflated; }
+
+    // Frees the native zlib memory; later calls fail. Caller holds the write lock and is
+    // the reading thread, so neither side is in use.
+    void end() {
+        ended = true;
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+}
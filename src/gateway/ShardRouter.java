@@ -0,0 +1,633 @@
+package gateway;
+
+import common.HashRing;
+import common.Log;
+import common.ThreadPools;
+import java.util.*;
+import java.util.concurrent.*;
+import models.Module;
+import models.Request;
+import models.Response;
+import models.Student;
+import protocol.ActionSpec;
+import protocol.ActionSpec.Routing;
+import protocol.Actions;
+import protocol.WireCodec;
+
+// Sends each request to the TCP server that should answer it. With one server (the
+// default) everything goes to it unchanged.
+//
+// With several (gateway.shards=host:port,host:port,...) the students are partitioned
+// between them by a consistent-hash ring over their IDs (common.HashRing), and each
+// server, a shard, also holds a copy of the whole module catalog:
+//   - a request with a studentId goes to that student's shard; one with only a session
+//     token is tried on every shard, since only the one that issued it knows it
+//   - module changes go to the first shard, which validates them, then to all others;
+//     catalog reads are answered by the first shard
+//   - LIST_STUDENTS, MODULE_ROSTER and ENROLLMENT_COUNTS go to every shard and the replies
+//     are merged: pages in key order, counts added up
+//   - BULK_* rows are split by shard, sent at once, and the replies merged with every
+//     row keeping its number
+//   - a registration first takes a seat in the module's seat ledger (server.SeatLedger),
+//     kept by the shard the same ring places the module code on, so a module's capacity
+//     holds for the whole cluster; the student's shard then registers them without
+//     counting the seat again, and a seat whose registration failed is given back
+//
+// While tools.ShardRebalancer moves students after the list changed, the old list goes
+// in gateway.shards.previous: a request for a student the new owner does not have
+// (errorCode STUDENT_NOT_FOUND) is tried on the old one, and lists also ask shards that
+// are only in the old list. Seats are taken on a module code's old owner until the
+// rebalancer hands its ledger over, then on the new one.
+final class ShardRouter {
+    private static final Log LOG = Log.get("shards");
+    // Row errors a merged bulk reply lists, as many as one TCP server lists
+    private static final int MAX_REPORTED_ERRORS = 100;
+    // Results of TAKE_SEATS (TCPServer.handleTakeSeats), and BUSY for a shard that was
+    // too busy to answer; anything else is the reason the seat was refused
+    private static final String TAKEN = "taken";
+    private static final String HELD = "held";
+    private static final String FULL = "full";
+    private static final String MOVED = "moved";
+    private static final String PENDING = "pending";
+    private static final String BUSY = "busy";
+
+    static final class Shard {
+        final String name; // host:port; also what places the shard on the ring
+        final String host;
+        final int port;
+        final int index; // position in the shard list
+        final TCPConnectionPool pool;
+
+        Shard(String name, int index, int poolSize, long requestTimeoutMs, long healthCheckIntervalMs,
+              WireCodec preferredCodec) {
+            int colon = name.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Expected host:port, got " + name);
+            this.name = name;
+            this.host = name.substring(0, colon);
+            this.port = Integer.parseInt(name.substring(colon + 1));
+            this.index = index;
+            this.pool = new TCPConnectionPool(host, port, poolSize, requestTimeoutMs, healthCheckIntervalMs,
+                    preferredCodec);
+        }
+    }
+
+    // The current list, then any shard only in the previous one
+    private final List<Shard> shards = new ArrayList<>();
+    private final HashRing<Shard> ring;
+    private final HashRing<Shard> previousRing; // null unless students are being moved
+    private final ThreadPoolExecutor fanout;
+
+    ShardRouter(List<String> names, List<String> previousNames, int virtualNodes, int poolSize,
+                long requestTimeoutMs, long healthCheckIntervalMs, WireCodec preferredCodec, int fanoutThreads) {
+        Map<String, Shard> byName = new LinkedHashMap<>();
+        for (String name : names) {
+            byName.computeIfAbsent(name, n -> new Shard(n, byName.size(), poolSize, requestTimeoutMs,
+                    healthCheckIntervalMs, preferredCodec));
+        }
+        this.ring = new HashRing<>(byName, virtualNodes);
+        if (previousNames.isEmpty()) {
+            this.previousRing = null;
+        } else {
+            Map<String, Shard> previous = new LinkedHashMap<>();
+            for (String name : previousNames) {
+                previous.put(name, byName.computeIfAbsent(name, n -> new Shard(n, byName.size(), poolSize,
+                        requestTimeoutMs, healthCheckIntervalMs, preferredCodec)));
+            }
+            this.previousRing = new HashRing<>(previous, virtualNodes);
+        }
+        shards.addAll(byName.values());
+        this.fanout = ThreadPools.newBoundedExecutor("shard-fanout", fanoutThreads, fanoutThreads);
+    }
+
+    // "host:port,host:port" -> names; blanks are skipped
+    static List<String> parseList(String value) {
+        List<String> names = new ArrayList<>();
+        if (value == null) return names;
+        for (String name : value.split(",")) {
+            if (!name.trim().isEmpty()) names.add(name.trim());
+        }
+        return names;
+    }
+
+    List<Shard> shards() {
+        return shards;
+    }
+
+    boolean clustered() {
+        return shards.size() > 1;
+    }
+
+    Response send(Request request, long timeoutMs) throws InterruptedException {
+        // Only set here, once a seat was taken for the registration
+        request.getData().remove("seatTaken");
+        Response response = route(request, timeoutMs);
+        if (Actions.of(request) == Actions.STUDENT_LOGIN && Response.STUDENT_NOT_FOUND.equals(response.getErrorCode())) {
+            // A failed login must not tell whether the student exists
+            response.setErrorCode(null);
+        }
+        return response;
+    }
+
+    private Response route(Request request, long timeoutMs) throws InterruptedException {
+        if (!clustered()) return shards.get(0).pool.send(request, timeoutMs);
+
+        ActionSpec spec = Actions.of(request);
+        switch (spec == null ? Routing.BY_KEY : spec.routing()) {
+            case MERGE_LISTS:
+                return mergeLists(request, timeoutMs);
+            case SUM_COUNTS:
+                return sumCounts(request, timeoutMs);
+            case COLLECT_METRICS:
+                return collectMetrics(request, timeoutMs);
+            case REPLICATE:
+                return replicate(request, timeoutMs);
+            case SPLIT_BULK:
+                return splitBulk(request, "students", timeoutMs);
+            case REGISTER:
+                return registerModule(request, timeoutMs);
+            case BULK_REGISTER:
+                return bulkRegister(request, timeoutMs);
+            case SINGLE_SERVER:
+                // IMPORT_STUDENTS: the file would be read by one shard, which cannot store
+                // the others' students
+                return new Response(false, spec.name() + " is not available on a sharded cluster");
+            case ANY_SHARD:
+                return shards.get(0).pool.send(request, timeoutMs);
+            case BY_KEY:
+            default:
+                return sendByKey(request, timeoutMs);
+        }
+    }
+
+    private Response sendByKey(Request request, long timeoutMs) throws InterruptedException {
+        Object studentId = request.getData("studentId");
+        if (studentId instanceof String) {
+            return sendToOwner(request, (String) studentId, timeoutMs);
+        }
+        if (request.getData("token") instanceof String) {
+            return firstSuccess(request, timeoutMs);
+        }
+        // No key to route by; the first shard answers (or explains what is missing)
+        return shards.get(0).pool.send(request, timeoutMs);
+    }
+
+    private Response sendToOwner(Request request, String studentId, long timeoutMs) {
+        Shard owner = ring.owner(studentId);
+        Response response = owner.pool.send(request, timeoutMs);
+        // Moving students: this one may not have reached its new shard yet. Only a reply
+        // saying so is retried on the old one; any other refusal is the answer, and a new
+        // student is only ever created on its new shard.
+        if (previousRing == null || !Response.STUDENT_NOT_FOUND.equals(response.getErrorCode())
+                || Actions.of(request) == Actions.ADD_STUDENT) {
+            return response;
+        }
+        Shard previous = previousRing.owner(studentId);
+        if (previous == owner) return response;
+        return previous.pool.send(request, timeoutMs);
+    }
+
+    // The seat is taken first, so the student's shard registers them without a capacity
+    // check of its own; a seat taken for a registration that fails is given back
+    private Response registerModule(Request request, long timeoutMs) throws InterruptedException {
+        Object studentId = request.getData("studentId");
+        Object moduleCode = request.getData("moduleCode");
+        if (!(studentId instanceof String) || !(moduleCode instanceof String)) {
+            // A session token alone does not say whose seat to take
+            return new Response(false, "REGISTER_MODULE needs a studentId and a moduleCode on a sharded cluster");
+        }
+        List<Map<String, Object>> seat = Collections.singletonList(seat((String) studentId, (String) moduleCode));
+        String result = takeSeats(seat, timeoutMs).get(0);
+        if (!result.equals(TAKEN) && !result.equals(HELD)) return seatRefusal(result);
+
+        Request copy = copy(request);
+        copy.addData("seatTaken", true);
+        Response response = sendToOwner(copy, (String) studentId, timeoutMs);
+        if (result.equals(TAKEN) && !response.isSuccess()) releaseSeats(seat, timeoutMs);
+        return response;
+    }
+
+    // Seats are taken for every row at once; the rows that got one go to their students'
+    // shards, and the seats of those that then failed are given back. Rows without a
+    // studentId or moduleCode go along too, for their shard to report.
+    private Response bulkRegister(Request request, long timeoutMs) throws InterruptedException {
+        Object rows = request.getData("registrations");
+        if (!(rows instanceof List)) return shards.get(0).pool.send(request, timeoutMs);
+        List<?> list = (List<?>) rows;
+        List<Map<String, Object>> seats = new ArrayList<>();
+        int[] seatOfRow = new int[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            Map<?, ?> row = list.get(i) instanceof Map ? (Map<?, ?>) list.get(i) : Collections.emptyMap();
+            seatOfRow[i] = -1;
+            if (row.get("studentId") instanceof String && row.get("moduleCode") instanceof String) {
+                seatOfRow[i] = seats.size();
+                seats.add(seat((String) row.get("studentId"), (String) row.get("moduleCode")));
+            }
+        }
+        List<String> results = takeSeats(seats, timeoutMs);
+
+        List<Integer> sent = new ArrayList<>();
+        List<Map<String, Object>> errors = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++) {
+            String result = seatOfRow[i] < 0 ? TAKEN : results.get(seatOfRow[i]);
+            if (result.equals(TAKEN) || result.equals(HELD)) {
+                sent.add(i);
+            } else {
+                errors.add(rowError(i, seatRefusal(result).getMessage()));
+            }
+        }
+        Request copy = copy(request);
+        copy.addData("seatTaken", true);
+        List<Integer> failedRows = new ArrayList<>();
+        Response response = splitBulk(copy, "registrations", sent, errors, failedRows, timeoutMs);
+
+        List<Map<String, Object>> unused = new ArrayList<>();
+        for (int row : failedRows) {
+            if (seatOfRow[row] >= 0 && results.get(seatOfRow[row]).equals(TAKEN)) unused.add(seats.get(seatOfRow[row]));
+        }
+        if (!unused.isEmpty()) releaseSeats(unused, timeoutMs);
+        return response;
+    }
+
+    private static Map<String, Object> seat(String studentId, String moduleCode) {
+        Map<String, Object> seat = new HashMap<>();
+        seat.put("studentId", studentId);
+        seat.put("moduleCode", moduleCode);
+        return seat;
+    }
+
+    private static Response seatRefusal(String result) {
+        if (result.equals(FULL)) return new Response(false, "Module is full");
+        if (result.equals(MOVED) || result.equals(PENDING)) {
+            return Response.overloaded("Seats of this module are being moved, please try again");
+        }
+        if (result.equals(BUSY)) return Response.overloaded("Server busy, please try again");
+        return new Response(false, result);
+    }
+
+    // One result per {studentId, moduleCode} seat. A module's ledger is on its module
+    // code's owner, or while students are being moved on its previous owner, until
+    // tools.ShardRebalancer hands it over and that shard answers MOVED.
+    private List<String> takeSeats(List<Map<String, Object>> seats, long timeoutMs) throws InterruptedException {
+        String[] results = new String[seats.size()];
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < seats.size(); i++) all.add(i);
+        takeSeats(seats, all, previousRing == null ? ring : previousRing, false, results, timeoutMs);
+        if (previousRing != null) {
+            List<Integer> moved = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].equals(MOVED)) moved.add(i);
+            }
+            if (!moved.isEmpty()) takeSeats(seats, moved, ring, true, results, timeoutMs);
+        }
+        return Arrays.asList(results);
+    }
+
+    private void takeSeats(List<Map<String, Object>> seats, List<Integer> numbers, HashRing<Shard> ledgers,
+                           boolean afterMove, String[] results, long timeoutMs) throws InterruptedException {
+        Map<Shard, List<Integer>> byShard = byLedger(seats, numbers, ledgers);
+        List<Shard> targets = new ArrayList<>(byShard.keySet());
+        List<Response> replies = sendAll(targets, seatRequests(Actions.TAKE_SEATS, seats, byShard, afterMove),
+                timeoutMs);
+        for (int s = 0; s < targets.size(); s++) {
+            List<Integer> sent = byShard.get(targets.get(s));
+            Response reply = replies.get(s);
+            Object data = reply.getData();
+            Object taken = reply.isSuccess() && data instanceof Map ? ((Map<?, ?>) data).get("results") : null;
+            for (int k = 0; k < sent.size(); k++) {
+                if (taken instanceof List && k < ((List<?>) taken).size()) {
+                    results[sent.get(k)] = String.valueOf(((List<?>) taken).get(k));
+                } else {
+                    results[sent.get(k)] = Response.OVERLOADED.equals(reply.getErrorCode()) ? BUSY : reply.getMessage();
+                }
+            }
+        }
+    }
+
+    // Best effort: a seat that is not given back only leaves its module a seat short
+    private void releaseSeats(List<Map<String, Object>> seats, long timeoutMs) throws InterruptedException {
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < seats.size(); i++) all.add(i);
+        List<Integer> moved = releaseSeats(seats, all, previousRing == null ? ring : previousRing, timeoutMs);
+        if (previousRing != null && !moved.isEmpty()) releaseSeats(seats, moved, ring, timeoutMs);
+    }
+
+    // Returns the seats whose ledger had been handed over to another shard
+    private List<Integer> releaseSeats(List<Map<String, Object>> seats, List<Integer> numbers, HashRing<Shard> ledgers,
+                                       long timeoutMs) throws InterruptedException {
+        Map<Shard, List<Integer>> byShard = byLedger(seats, numbers, ledgers);
+        List<Shard> targets = new ArrayList<>(byShard.keySet());
+        List<Response> replies = sendAll(targets, seatRequests(Actions.RELEASE_SEATS, seats, byShard, false),
+                timeoutMs);
+        List<Integer> moved = new ArrayList<>();
+        for (int s = 0; s < targets.size(); s++) {
+            List<Integer> sent = byShard.get(targets.get(s));
+            Response reply = replies.get(s);
+            if (!reply.isSuccess() || !(reply.getData() instanceof Map)) {
+                LOG.warn("Could not give back {} seats on {}: {}", sent.size(), targets.get(s).name, reply.getMessage());
+                continue;
+            }
+            Object handedOver = ((Map<?, ?>) reply.getData()).get("moved");
+            for (int i : sent) {
+                if (handedOver instanceof List && ((List<?>) handedOver).contains(seats.get(i))) moved.add(i);
+            }
+        }
+        return moved;
+    }
+
+    private static Map<Shard, List<Integer>> byLedger(List<Map<String, Object>> seats, List<Integer> numbers,
+                                                      HashRing<Shard> ledgers) {
+        Map<Shard, List<Integer>> byShard = new LinkedHashMap<>();
+        for (int i : numbers) {
+            Shard shard = ledgers.owner((String) seats.get(i).get("moduleCode"));
+            byShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(i);
+        }
+        return byShard;
+    }
+
+    private static List<Request> seatRequests(ActionSpec action, List<Map<String, Object>> seats,
+                                              Map<Shard, List<Integer>> byShard, boolean afterMove) {
+        List<Request> requests = new ArrayList<>();
+        for (List<Integer> part : byShard.values()) {
+            List<Object> rows = new ArrayList<>();
+            for (int i : part) rows.add(seats.get(i));
+            Request request = new Request(action.name());
+            request.addData("seats", rows);
+            if (afterMove) request.addData("afterMove", true);
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    // A token is known to the shard that issued it only, so at most one can succeed
+    private Response firstSuccess(Request request, long timeoutMs) throws InterruptedException {
+        List<Response> replies = sendAll(shards, copies(request), timeoutMs);
+        for (Response reply : replies) {
+            if (reply.isSuccess()) return reply;
+        }
+        return replies.get(0);
+    }
+
+    // The first shard validates a module change; the others then apply it too, so every
+    // shard has the whole catalog. One that fails leaves the catalogs different until the
+    // change is made again or tools.ShardRebalancer copies the catalog.
+    private Response replicate(Request request, long timeoutMs) throws InterruptedException {
+        Response first = shards.get(0).pool.send(request, timeoutMs);
+        if (!first.isSuccess()) return first;
+        List<Shard> others = shards.subList(1, shards.size());
+        List<Request> copies = new ArrayList<>();
+        for (int i = 0; i < others.size(); i++) copies.add(copy(request));
+        List<Response> replies = sendAll(others, copies, timeoutMs);
+
+        List<String> failures = new ArrayList<>();
+        for (int i = 0; i < replies.size(); i++) {
+            if (!replies.get(i).isSuccess()) failures.add(others.get(i).name + ": " + replies.get(i).getMessage());
+        }
+        if (failures.isEmpty()) return first;
+        LOG.warn("{} applied on {} of {} shards: {}", request.getAction(), shards.size() - failures.size(),
+                shards.size(), failures);
+        return new Response(false, first.getMessage() + " on " + (shards.size() - failures.size()) + " of "
+                + shards.size() + " shards (" + String.join("; ", failures) + ")", first.getData());
+    }
+
+    // Whole lists are joined in key order. Pages are merged so that none skips a key:
+    // every shard returned its next keys after the cursor, so the merged page may only
+    // reach as far as the lowest last key of a shard that has more, and then at most
+    // "limit" items. A student being moved may be on two shards; it is listed once.
+    private Response mergeLists(Request request, long timeoutMs) throws InterruptedException {
+        List<Response> replies = sendAll(shards, copies(request), timeoutMs);
+        Response failure = firstFailure(replies);
+        if (failure != null) return failure;
+
+        TreeMap<String, Object> items = new TreeMap<>();
+        if (!(replies.get(0).getData() instanceof Map)) {
+            for (Response reply : replies) {
+                if (reply.getData() instanceof List) {
+                    for (Object item : (List<?>) reply.getData()) items.putIfAbsent(key(item), item);
+                }
+            }
+            return new Response(true, replies.get(0).getMessage(), new ArrayList<>(items.values()));
+        }
+
+        String bound = null;
+        long enrolled = 0;
+        for (Response reply : replies) {
+            Map<?, ?> page = (Map<?, ?>) reply.getData();
+            if (page.get("items") instanceof List) {
+                for (Object item : (List<?>) page.get("items")) items.putIfAbsent(key(item), item);
+            }
+            Object next = page.get("nextCursor");
+            if (next instanceof String && (bound == null || ((String) next).compareTo(bound) < 0)) {
+                bound = (String) next;
+            }
+            if (page.get("enrolled") instanceof Number) enrolled += ((Number) page.get("enrolled")).longValue();
+        }
+        Object limitValue = request.getData("limit");
+        int limit = limitValue instanceof Number ? Math.max(1, ((Number) limitValue).intValue()) : Integer.MAX_VALUE;
+        List<Object> page = new ArrayList<>();
+        String last = null;
+        for (Map.Entry<String, Object> item : (bound == null ? items : items.headMap(bound, true)).entrySet()) {
+            if (page.size() == limit) break;
+            page.add(item.getValue());
+            last = item.getKey();
+        }
+        Map<String, Object> merged = new HashMap<>();
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) replies.get(0).getData()).entrySet()) {
+            merged.put(String.valueOf(e.getKey()), e.getValue());
+        }
+        merged.put("items", page);
+        merged.put("nextCursor", bound != null || page.size() < items.size() ? last : null);
+        if (merged.containsKey("enrolled")) merged.put("enrolled", (int) enrolled);
+        return new Response(true, replies.get(0).getMessage(), merged);
+    }
+
+    private static String key(Object item) {
+        if (item instanceof Student) return ((Student) item).getStudentId();
+        if (item instanceof Module) return ((Module) item).getModuleCode();
+        return String.valueOf(item);
+    }
+
+    // {moduleCode: enrolled} from every shard, added up
+    private Response sumCounts(Request request, long timeoutMs) throws InterruptedException {
+        List<Response> replies = sendAll(shards, copies(request), timeoutMs);
+        Response failure = firstFailure(replies);
+        if (failure != null) return failure;
+        Map<String, Object> totals = new LinkedHashMap<>();
+        for (Response reply : replies) {
+            if (!(reply.getData() instanceof Map)) continue;
+            for (Map.Entry<?, ?> count : ((Map<?, ?>) reply.getData()).entrySet()) {
+                if (!(count.getValue() instanceof Number)) continue;
+                totals.merge(String.valueOf(count.getKey()), ((Number) count.getValue()).intValue(),
+                        (a, b) -> (Integer) a + (Integer) b);
+            }
+        }
+        return new Response(true, replies.get(0).getMessage(), totals);
+    }
+
+    // Every reachable shard's snapshot, each labelled with its address
+    private Response collectMetrics(Request request, long timeoutMs) throws InterruptedException {
+        List<Response> replies = sendAll(shards, copies(request), timeoutMs);
+        List<Object> snapshots = new ArrayList<>();
+        for (int i = 0; i < replies.size(); i++) {
+            if (!replies.get(i).isSuccess() || !(replies.get(i).getData() instanceof Map)) continue;
+            Map<Object, Object> snapshot = new LinkedHashMap<>((Map<?, ?>) replies.get(i).getData());
+            snapshot.put("process", snapshot.get("process") + "@" + shards.get(i).name);
+            snapshots.add(snapshot);
+        }
+        if (snapshots.isEmpty()) return replies.get(0);
+        return new Response(true, "Metrics retrieved", snapshots);
+    }
+
+    private Response splitBulk(Request request, String field, long timeoutMs) throws InterruptedException {
+        Object rows = request.getData(field);
+        if (!(rows instanceof List)) return shards.get(0).pool.send(request, timeoutMs);
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < ((List<?>) rows).size(); i++) numbers.add(i);
+        return splitBulk(request, field, numbers, new ArrayList<>(), null, timeoutMs);
+    }
+
+    // Each shard gets the rows of its own students (rows without a studentId go to the
+    // first shard, which reports them); the replies are merged into one, every row under
+    // the number it had in the request. Only the numbered rows are sent: errors already
+    // holds those of the others, and failedRows, unless null, collects the number of
+    // every row that failed.
+    private Response splitBulk(Request request, String field, List<Integer> numbers, List<Map<String, Object>> errors,
+                               List<Integer> failedRows, long timeoutMs) throws InterruptedException {
+        List<?> list = (List<?>) request.getData(field);
+        Map<Shard, List<Integer>> rowsByShard = new LinkedHashMap<>();
+        for (int i : numbers) {
+            Object row = list.get(i);
+            Object studentId = row instanceof Map ? ((Map<?, ?>) row).get("studentId") : null;
+            Shard shard = studentId instanceof String ? ring.owner((String) studentId) : shards.get(0);
+            rowsByShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(i);
+        }
+        // No rows to send: the first shard still answers, with what the rows would be
+        if (rowsByShard.isEmpty()) rowsByShard.put(shards.get(0), new ArrayList<>());
+
+        List<Shard> targets = new ArrayList<>(rowsByShard.keySet());
+        List<Request> requests = new ArrayList<>();
+        for (Shard shard : targets) {
+            List<Object> part = new ArrayList<>();
+            for (int i : rowsByShard.get(shard)) part.add(list.get(i));
+            Request copy = copy(request);
+            copy.addData(field, part);
+            requests.add(copy);
+        }
+        List<Response> replies = sendAll(targets, requests, timeoutMs);
+
+        int applied = 0;
+        int failed = errors.size();
+        String what = null;
+        for (int s = 0; s < targets.size(); s++) {
+            List<Integer> sent = rowsByShard.get(targets.get(s));
+            Response reply = replies.get(s);
+            Object data = reply.getData();
+            if (data instanceof Map && ((Map<?, ?>) data).get("applied") instanceof Number) {
+                Map<?, ?> result = (Map<?, ?>) data;
+                applied += ((Number) result.get("applied")).intValue();
+                failed += ((Number) result.get("failed")).intValue();
+                if (result.get("errors") instanceof List) {
+                    for (Object e : (List<?>) result.get("errors")) {
+                        Map<?, ?> error = (Map<?, ?>) e;
+                        errors.add(rowError(sent.get(((Number) error.get("row")).intValue()), error.get("message")));
+                    }
+                }
+                if (failedRows != null && result.get("failedRows") instanceof List) {
+                    for (Object row : (List<?>) result.get("failedRows")) {
+                        failedRows.add(sent.get(((Number) row).intValue()));
+                    }
+                }
+                if (what == null) what = reply.getMessage().replaceFirst("^\\d+ ", "").replaceFirst(", \\d+ failed$", "");
+            } else {
+                // Refused before any of its rows was applied
+                failed += sent.size();
+                for (int row : sent) errors.add(rowError(row, reply.getMessage()));
+                if (failedRows != null) failedRows.addAll(sent);
+            }
+        }
+        // Nothing applied anywhere: pass the refusal on as it is (OVERLOADED may be retried)
+        if (what == null) return replies.get(0);
+
+        errors.sort(Comparator.comparingInt(e -> (Integer) e.get("row")));
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("applied", applied);
+        data.put("failed", failed);
+        data.put("errors", new ArrayList<>(errors.subList(0, Math.min(errors.size(), MAX_REPORTED_ERRORS))));
+        return new Response(failed == 0, applied + " " + what + (failed == 0 ? "" : ", " + failed + " failed"), data);
+    }
+
+    private static Map<String, Object> rowError(int row, Object message) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("row", row);
+        error.put("message", message);
+        return error;
+    }
+
+    private static Response firstFailure(List<Response> replies) {
+        for (Response reply : replies) {
+            if (!reply.isSuccess()) return reply;
+        }
+        return null;
+    }
+
+    // The pool sets each request's correlation ID, so requests sent at once are copies
+    private List<Request> copies(Request request) {
+        List<Request> copies = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) copies.add(copy(request));
+        return copies;
+    }
+
+    private static Request copy(Request request) {
+        Request copy = new Request(request.getAction());
+        copy.setOpcode(request.getOpcode());
+        copy.setRequestId(request.getRequestId());
+        copy.setData(new HashMap<>(request.getData()));
+        return copy;
+    }
+
+    // Sends requests.get(i) to targets.get(i), all at once; the first from the calling
+    // thread, the rest from the fan-out pool (or the calling thread too when it is busy).
+    // Replies come back in the same order.
+    private List<Response> sendAll(List<Shard> targets, List<Request> requests, long timeoutMs)
+            throws InterruptedException {
+        List<FutureTask<Response>> others = new ArrayList<>();
+        for (int i = 1; i < targets.size(); i++) {
+            Shard shard = targets.get(i);
+            Request request = requests.get(i);
+            FutureTask<Response> task = new FutureTask<>(() -> shard.pool.send(request, timeoutMs));
+            try {
+                fanout.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+            others.add(task);
+        }
+        List<Response> replies = new ArrayList<>();
+        replies.add(targets.get(0).pool.send(requests.get(0), timeoutMs));
+        for (FutureTask<Response> task : others) {
+            try {
+                replies.add(task.get());
+            } catch (ExecutionException e) {
+                replies.add(new Response(false, "Error: " + e.getCause().getMessage()));
+            }
+        }
+        return replies;
+    }
+
+    // Summed over every shard's pool
+    TCPConnectionPool.Stats poolStats() {
+        TCPConnectionPool.Stats total = new TCPConnectionPool.Stats();
+        for (Shard shard : shards) {
+            TCPConnectionPool.Stats stats = shard.pool.getStats();
+            total.poolSize += stats.poolSize;
+            total.openConnections += stats.openConnections;
+            total.inFlight += stats.inFlight;
+            total.requestsSent += stats.requestsSent;
+            total.requestsFailed += stats.requestsFailed;
+            total.requestsTimedOut += stats.requestsTimedOut;
+            total.connectsOpened += stats.connectsOpened;
+            total.connectsFailed += stats.connectsFailed;
+            total.healthChecksFailed += stats.healthChecksFailed;
+        }
+        return total;
+    }
+}
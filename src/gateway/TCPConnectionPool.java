@@ -0,0 +1,339 @@
+package gateway;
+
+import common.Log;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import models.Request;
+import models.Response;
+import protocol.Framing;
+import protocol.WireCodec;
+import protocol.WireCodecs;
+
+// Shared pool of long-lived connections to the TCP server. Each connection carries
+// many requests at once; replies are matched back to callers by correlation ID.
+public class TCPConnectionPool {
+    private static final Log LOG = Log.get("tcp-pool");
+    private static final long RECONNECT_BACKOFF_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final long requestTimeoutMs;
+    private final WireCodec preferredCodec;
+    private final PooledConnection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private final ScheduledExecutorService healthChecker;
+
+    // Metrics
+    private final AtomicLong requestsSent = new AtomicLong();
+    private final AtomicLong requestsFailed = new AtomicLong();
+    private final AtomicLong requestsTimedOut = new AtomicLong();
+    private final AtomicLong connectsOpened = new AtomicLong();
+    private final AtomicLong connectsFailed = new AtomicLong();
+    private final AtomicLong healthChecksFailed = new AtomicLong();
+
+    public TCPConnectionPool(String host, int port, int size, long requestTimeoutMs, long healthCheckIntervalMs,
+                             WireCodec preferredCodec) {
+        this.host = host;
+        this.port = port;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.preferredCodec = preferredCodec;
+        this.connections = new PooledConnection[size];
+        for (int i = 0; i < size; i++) {
+            connections[i] = new PooledConnection(i);
+        }
+
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tcp-pool-health");
+            t.setDaemon(true);
+            return t;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth,
+                healthCheckIntervalMs, healthCheckIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public Response send(Request request) {
+        return send(request, requestTimeoutMs);
+    }
+
+    public Response send(Request request, long timeoutMs) {
+        PooledConnection connection = acquire();
+        if (connection == null) {
+            requestsFailed.incrementAndGet();
+            return new Response(false, "Failed to connect to TCP server at " + host + ":" + port);
+        }
+
+        long correlationId = nextCorrelationId.incrementAndGet();
+        request.setCorrelationId(correlationId);
+
+        // A request the codec cannot encode fails on its own; the connection it would
+        // have gone out on is shared and still fine
+        byte[] payload;
+        try {
+            payload = connection.encode(request);
+        } catch (IOException | RuntimeException e) {
+            requestsFailed.incrementAndGet();
+            return new Response(false, "Failed to encode request for TCP server: " + e.getMessage());
+        }
+
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        connection.pending.put(correlationId, future);
+        try {
+            connection.write(payload);
+            requestsSent.incrementAndGet();
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            requestsTimedOut.incrementAndGet();
+            return new Response(false, "TCP server did not respond within " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            requestsFailed.incrementAndGet();
+            return new Response(false, "Interrupted while waiting for TCP server");
+        } catch (IOException e) {
+            // The write failed: the connection is broken for every request on it
+            requestsFailed.incrementAndGet();
+            connection.close(e);
+            return new Response(false, "Failed to connect to TCP server: " + e.getMessage());
+        } catch (ExecutionException e) {
+            // The reader lost the connection and has already closed it
+            requestsFailed.incrementAndGet();
+            return new Response(false, "Failed to connect to TCP server: " + e.getCause().getMessage());
+        } finally {
+            connection.pending.remove(correlationId);
+        }
+    }
+
+    // Picks the least loaded open connection, starting round-robin so ties spread out.
+    // Falls back to (re)connecting a closed one.
+    private PooledConnection acquire() {
+        int size = connections.length;
+        int start = Math.floorMod(nextConnection.getAndIncrement(), size);
+
+        PooledConnection best = null;
+        for (int i = 0; i < size; i++) {
+            PooledConnection c = connections[(start + i) % size];
+            if (c.isOpen() && (best == null || c.pending.size() < best.pending.size())) {
+                best = c;
+            }
+        }
+        if (best != null) return best;
+
+        for (int i = 0; i < size; i++) {
+            PooledConnection c = connections[(start + i) % size];
+            if (c.ensureOpen()) return c;
+        }
+        return null;
+    }
+
+    private void checkHealth() {
+        for (PooledConnection c : connections) {
+            try {
+                if (!c.isOpen()) {
+                    // Keep the pool warm: reconnect dead connections in the background
+                    c.ensureOpen();
+                } else if (c.pending.isEmpty() && c.idleMillis() >= requestTimeoutMs / 2) {
+                    ping(c);
+                }
+            } catch (Exception e) {
+                LOG.warn("TCP pool health check error: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void ping(PooledConnection connection) {
+        long correlationId = nextCorrelationId.incrementAndGet();
+        Request ping = new Request("PING");
+        ping.setCorrelationId(correlationId);
+
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        connection.pending.put(correlationId, future);
+        try {
+            connection.write(connection.encode(ping));
+            future.get(requestTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            healthChecksFailed.incrementAndGet();
+            connection.close(e);
+        } finally {
+            connection.pending.remove(correlationId);
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.poolSize = connections.length;
+        for (PooledConnection c : connections) {
+            if (c.isOpen()) stats.openConnections++;
+            stats.inFlight += c.pending.size();
+        }
+        stats.requestsSent = requestsSent.get();
+        stats.requestsFailed = requestsFailed.get();
+        stats.requestsTimedOut = requestsTimedOut.get();
+        stats.connectsOpened = connectsOpened.get();
+        stats.connectsFailed = connectsFailed.get();
+        stats.healthChecksFailed = healthChecksFailed.get();
+        return stats;
+    }
+
+    public void close() {
+        healthChecker.shutdownNow();
+        for (PooledConnection c : connections) {
+            c.close(new IOException("Pool closed"));
+        }
+    }
+
+    public static class Stats {
+        public int poolSize;
+        public int openConnections;
+        public int inFlight;
+        public long requestsSent;
+        public long requestsFailed;
+        public long requestsTimedOut;
+        public long connectsOpened;
+        public long connectsFailed;
+        public long healthChecksFailed;
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "poolSize=" + poolSize +
+                    ", open=" + openConnections +
+                    ", inFlight=" + inFlight +
+                    ", sent=" + requestsSent +
+                    ", failed=" + requestsFailed +
+                    ", timedOut=" + requestsTimedOut +
+                    ", connects=" + connectsOpened +
+                    ", connectFailures=" + connectsFailed +
+                    ", healthCheckFailures=" + healthChecksFailed +
+                    '}';
+        }
+    }
+
+    private class PooledConnection {
+        private final int index;
+        private final ConcurrentHashMap<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final ReentrantLock connectLock = new ReentrantLock();
+        private volatile Socket socket;
+        private volatile DataOutputStream out;
+        private volatile WireCodec codec;
+        private volatile long lastActivity;
+        private volatile long nextConnectAttempt;
+
+        PooledConnection(int index) {
+            this.index = index;
+        }
+
+        boolean isOpen() {
+            return out != null;
+        }
+
+        long idleMillis() {
+            return System.currentTimeMillis() - lastActivity;
+        }
+
+        boolean ensureOpen() {
+            if (isOpen()) return true;
+            if (System.currentTimeMillis() < nextConnectAttempt) return false;
+
+            connectLock.lock();
+            try {
+                if (isOpen()) return true;
+                if (System.currentTimeMillis() < nextConnectAttempt) return false;
+
+                Socket s = new Socket();
+                try {
+                    s.setTcpNoDelay(true);
+                    s.setKeepAlive(true);
+                    s.connect(new InetSocketAddress(host, port), (int) requestTimeoutMs);
+                    DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    DataInputStream i = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                    
+                    // Negotiate the payload codec before any request goes out
+                    s.setSoTimeout((int) requestTimeoutMs);
+                    Framing.writeFrame(o, WireCodecs.hello(preferredCodec));
+                    o.flush();
+                    byte[] ack = Framing.readFrame(i);
+                    if (ack == null) throw new EOFException("TCP server closed during codec negotiation");
+                    WireCodec negotiated = WireCodecs.parseAck(ack);
+                    codec = negotiated;
+                    s.setSoTimeout(0);
+
+                    socket = s;
+                    lastActivity = System.currentTimeMillis();
+                    Thread reader = new Thread(() -> readLoop(s, i, negotiated), "tcp-pool-reader-" + index);
+                    reader.setDaemon(true);
+                    reader.start();
+                    out = o;
+                    connectsOpened.incrementAndGet();
+                    return true;
+                } catch (IOException e) {
+                    connectsFailed.incrementAndGet();
+                    nextConnectAttempt = System.currentTimeMillis() + RECONNECT_BACKOFF_MS;
+                    try { s.close(); } catch (IOException ignored) {}
+                    return false;
+                }
+            } finally {
+                connectLock.unlock();
+            }
+        }
+
+        // Encodes with the connection's negotiated codec. Done before write() and outside
+        // its lock, so concurrent senders only serialize on the socket write.
+        byte[] encode(Request request) throws IOException {
+            return codec.encodeRequest(request);
+        }
+
+        void write(byte[] payload) throws IOException {
+            writeLock.lock();
+            try {
+                DataOutputStream o = out;
+                if (o == null) throw new IOException("Connection closed");
+                Framing.writeFrame(o, payload);
+                o.flush();
+                lastActivity = System.currentTimeMillis();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void readLoop(Socket s, DataInputStream in, WireCodec codec) {
+            try {
+                while (true) {
+                    byte[] frame = Framing.readFrame(in);
+                    if (frame == null) throw new EOFException("TCP server closed the connection");
+                    Response response = codec.decodeResponse(frame, 0, frame.length);
+                    lastActivity = System.currentTimeMillis();
+                    CompletableFuture<Response> future = pending.get(response.getCorrelationId());
+                    if (future != null) {
+                        future.complete(response);
+                    }
+                }
+            } catch (Exception e) {
+                if (socket == s) close(e);
+            }
+        }
+
+        void close(Throwable cause) {
+            connectLock.lock();
+            try {
+                Socket s = socket;
+                if (s == null) return;
+                socket = null;
+                out = null;
+                try { s.close(); } catch (IOException ignored) {}
+            } finally {
+                connectLock.unlock();
+            }
+
+            IOException failure = new IOException("Connection to TCP server lost", cause);
+            for (CompletableFuture<Response> future : pending.values()) {
+                future.completeExceptionally(failure);
+            }
+            LOG.warn("TCP pool connection {} closed ({}), {}", index, cause.getMessage(), getStats());
+        }
+    }
+}
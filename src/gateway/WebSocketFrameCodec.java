@@ -0,0 +1,375 @@
+package gateway;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// RFC 6455 frame decoder over a single pooled heap ByteBuffer per connection.
+//
+// Bytes arrive either from a blocking InputStream (fill) or from an NIO event loop
+// (feed). The HTTP upgrade request is parsed out of the same buffer, so no frame bytes
+// are lost to a separate reader. Payloads are unmasked in place, eight bytes at a time,
+// and single-frame messages are handed out as a view into the buffer (array/offset/length)
+// that stays valid until the next decode. Fragmented messages are reassembled. Once
+// permessage-deflate is negotiated, messages with RSV1 set are inflated before they are
+// handed out.
+// Not thread-safe: one instance per connection, used by its reading thread only.
+public class WebSocketFrameCodec {
+    public static final int OP_CONTINUATION = 0x0;
+    public static final int OP_TEXT = 0x1;
+    public static final int OP_BINARY = 0x2;
+    public static final int OP_CLOSE = 0x8;
+    public static final int OP_PING = 0x9;
+    public static final int OP_PONG = 0xA;
+
+    // decode() result when more bytes are needed
+    public static final int NEED_MORE = -1;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    private static final int MAX_HANDSHAKE_BYTES = 16 * 1024;
+    private static final BufferPool POOL = new BufferPool(16 * 1024, 4096);
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final int maxMessageBytes;
+    // Read mode between calls: position = next undecoded byte, limit = end of data
+    private ByteBuffer buf;
+
+    // Reassembly of fragmented data messages
+    private byte[] fragments;
+    private int fragmentsLength;
+    private int fragmentOpcode = -1;
+    private boolean fragmentsCompressed;
+    // Set once permessage-deflate is negotiated
+    private PerMessageDeflate deflate;
+
+    // Last decoded message or control frame
+    private byte[] messageArray;
+    private int messageOffset;
+    private int messageLength;
+
+    public WebSocketFrameCodec(int maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+        this.buf = POOL.acquire();
+        buf.flip();
+    }
+
+    // Returns the buffer to the shared pool; the codec must not be used afterwards
+    public void release() {
+        POOL.release(buf);
+        buf = null;
+        fragments = null;
+    }
+
+    public byte[] array() { return messageArray; }
+
+    public int offset() { return messageOffset; }
+
+    public int length() { return messageLength; }
+
+    // Accept compressed messages (RSV1) from now on, inflating them with this context
+    void enableDeflate(PerMessageDeflate deflate) {
+        this.deflate = deflate;
+    }
+
+    public String text() {
+        return new String(messageArray, messageOffset, messageLength, StandardCharsets.UTF_8);
+    }
+
+    // Status code of the last decoded close frame, 1005 (no status) if absent
+    public int closeCode() {
+        if (messageLength < 2) return 1005;
+        return ((messageArray[messageOffset] & 0xFF) << 8) | (messageArray[messageOffset + 1] & 0xFF);
+    }
+
+    // ---- Input ----
+
+    // Blocking input: reads whatever is available (at least one byte). False on end of stream.
+    public boolean fill(InputStream in) throws IOException {
+        buf.compact();
+        if (!buf.hasRemaining()) grow(buf.capacity() * 2);
+        int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        if (n > 0) buf.position(buf.position() + n);
+        buf.flip();
+        return n > 0;
+    }
+
+    // NIO input: copies the readable bytes of src into the codec buffer
+    public void feed(ByteBuffer src) {
+        buf.compact();
+        if (buf.remaining() < src.remaining()) grow(buf.position() + src.remaining());
+        buf.put(src);
+        buf.flip();
+    }
+
+    private void grow(int minCapacity) {
+        // buf is in write mode here
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(minCapacity, buf.capacity() * 2));
+        buf.flip();
+        bigger.put(buf);
+        POOL.release(buf);
+        buf = bigger;
+    }
+
+    // Swap an oversized buffer back for a pooled one once it has drained, and drop a
+    // reassembly buffer that one huge fragmented message left behind
+    private void shrinkIfIdle() {
+        if (!buf.hasRemaining() && buf.capacity() != POOL.bufferSize()) {
+            buf = POOL.acquire();
+            buf.flip();
+        }
+        if (fragmentOpcode < 0 && fragments != null && fragments.length > POOL.bufferSize() * 64) {
+            fragments = null;
+        }
+    }
+
+    // ---- Handshake ----
+
+    public static class Handshake {
+        public final String requestLine;
+        // Header names lower-cased
+        public final Map<String, String> headers;
+
+        Handshake(String requestLine, Map<String, String> headers) {
+            this.requestLine = requestLine;
+            this.headers = headers;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public boolean isUpgrade() {
+            String upgrade = header("Upgrade");
+            return upgrade != null && upgrade.equalsIgnoreCase("websocket") && header("Sec-WebSocket-Key") != null;
+        }
+    }
+
+    // Parses the HTTP request head if it is complete; returns null if more bytes are needed.
+    // Bytes after the blank line stay in the buffer as the first frames.
+    public Handshake decodeHandshake() throws IOException {
+        byte[] a = buf.array();
+        int start = buf.arrayOffset() + buf.position();
+        int end = buf.arrayOffset() + buf.limit();
+        for (int i = start; i + 3 < end; i++) {
+            if (a[i] == '\r' && a[i + 1] == '\n' && a[i + 2] == '\r' && a[i + 3] == '\n') {
+                String head = new String(a, start, i - start, StandardCharsets.ISO_8859_1);
+                buf.position(buf.position() + (i + 4 - start));
+                return parseHandshake(head);
+            }
+        }
+        if (buf.remaining() >= MAX_HANDSHAKE_BYTES) {
+            throw new IOException("HTTP request head too large");
+        }
+        return null;
+    }
+
+    public Handshake readHandshake(InputStream in) throws IOException {
+        while (true) {
+            Handshake handshake = decodeHandshake();
+            if (handshake != null) return handshake;
+            if (!fill(in)) throw new EOFException("Connection closed during handshake");
+        }
+    }
+
+    private static Handshake parseHandshake(String head) {
+        String[] lines = head.split("\r\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        lines[i].substring(colon + 1).trim());
+            }
+        }
+        return new Handshake(lines.length > 0 ? lines[0] : "", headers);
+    }
+
+    // ---- Frames ----
+
+    // Blocking: returns the opcode of the next complete data message (OP_TEXT/OP_BINARY)
+    // or control frame (OP_PING/OP_PONG/OP_CLOSE), or -1 on end of stream
+    public int readFrame(InputStream in) throws IOException {
+        while (true) {
+            int opcode = decode();
+            if (opcode != NEED_MORE) return opcode;
+            if (!fill(in)) return -1;
+        }
+    }
+
+    // Decodes from buffered bytes only. Returns NEED_MORE when a whole frame is not yet
+    // buffered. Data frames that do not finish a message are absorbed and decoding continues.
+    public int decode() throws ProtocolException {
+        while (true) {
+            shrinkIfIdle();
+            int available = buf.remaining();
+            if (available < 2) return NEED_MORE;
+
+            int p = buf.position();
+            int b0 = buf.get(p) & 0xFF;
+            int b1 = buf.get(p + 1) & 0xFF;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            int headerLength = 2;
+
+            // RSV1 marks a compressed message, allowed only on its first frame
+            boolean compressed = (b0 & 0x40) != 0;
+            if ((b0 & 0x30) != 0 || compressed && (deflate == null || opcode == OP_CONTINUATION || opcode >= 0x8)) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Reserved bits set");
+            }
+            if (!masked) throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+
+            if (length == 126) {
+                if (available < 4) return NEED_MORE;
+                length = buf.getShort(p + 2) & 0xFFFF;
+                headerLength = 4;
+            } else if (length == 127) {
+                if (available < 10) return NEED_MORE;
+                length = buf.getLong(p + 2);
+                headerLength = 10;
+            }
+
+            boolean control = opcode >= 0x8;
+            if (control && (!fin || length > 125)) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+            }
+            if (length < 0 || length + fragmentsLength > maxMessageBytes) {
+                throw new ProtocolException(CLOSE_TOO_BIG, "Message exceeds " + maxMessageBytes + " bytes");
+            }
+
+            int frameLength = headerLength + 4 + (int) length;
+            if (available < frameLength) {
+                if (buf.capacity() < frameLength) {
+                    buf.compact();
+                    grow(frameLength);
+                    buf.flip();
+                }
+                return NEED_MORE;
+            }
+
+            int maskKey = buf.getInt(p + headerLength);
+            int payloadStart = buf.arrayOffset() + p + headerLength + 4;
+            int payloadLength = (int) length;
+            unmask(buf.array(), payloadStart, payloadLength, maskKey);
+            buf.position(p + frameLength);
+
+            if (control) {
+                expose(buf.array(), payloadStart, payloadLength);
+                return opcode;
+            }
+
+            if (opcode == OP_CONTINUATION) {
+                if (fragmentOpcode < 0) throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame");
+                appendFragment(buf.array(), payloadStart, payloadLength);
+                if (fin) {
+                    int messageOpcode = fragmentOpcode;
+                    fragmentOpcode = -1;
+                    if (fragmentsCompressed) {
+                        exposeInflated(fragments, 0, fragmentsLength);
+                    } else {
+                        expose(fragments, 0, fragmentsLength);
+                    }
+                    fragmentsLength = 0;
+                    return messageOpcode;
+                }
+                continue;
+            }
+
+            if (opcode != OP_TEXT && opcode != OP_BINARY) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+            if (fragmentOpcode >= 0) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "New message before previous one finished");
+            }
+            if (fin) {
+                // Common case: the message is read in place from the buffer
+                if (compressed) {
+                    exposeInflated(buf.array(), payloadStart, payloadLength);
+                } else {
+                    expose(buf.array(), payloadStart, payloadLength);
+                }
+                return opcode;
+            }
+            fragmentOpcode = opcode;
+            fragmentsCompressed = compressed;
+            fragmentsLength = 0;
+            appendFragment(buf.array(), payloadStart, payloadLength);
+        }
+    }
+
+    private void expose(byte[] array, int offset, int length) {
+        messageArray = array;
+        messageOffset = offset;
+        messageLength = length;
+    }
+
+    private void exposeInflated(byte[] array, int offset, int length) throws ProtocolException {
+        int inflatedLength;
+        try {
+            inflatedLength = deflate.inflate(array, offset, length, maxMessageBytes);
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ProtocolException(CLOSE_PROTOCOL_ERROR, e.getMessage());
+        }
+        expose(deflate.inflated(), 0, inflatedLength);
+    }
+
+    private void appendFragment(byte[] src, int offset, int length) {
+        if (fragments == null || fragments.length < fragmentsLength + length) {
+            int capacity = Math.max(fragmentsLength + length, fragments == null ? 1024 : fragments.length * 2);
+            fragments = fragments == null ? new byte[capacity] : Arrays.copyOf(fragments, capacity);
+        }
+        System.arraycopy(src, offset, fragments, fragmentsLength, length);
+        fragmentsLength += length;
+    }
+
+    // XORs the payload with the 4-byte mask a long at a time, then finishes the tail bytewise
+    static void unmask(byte[] a, int offset, int length, int maskKey) {
+        long mask = ((long) maskKey << 32) | (maskKey & 0xFFFFFFFFL);
+        int i = 0;
+        for (int end = length - 7; i < end; i += 8) {
+            LONGS.set(a, offset + i, (long) LONGS.get(a, offset + i) ^ mask);
+        }
+        for (; i < length; i++) {
+            a[offset + i] ^= (byte) (maskKey >>> (24 - 8 * (i & 3)));
+        }
+    }
+
+    // ---- Output (server frames are never masked) ----
+
+    public static byte[] encodeControl(int opcode, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[2 + length];
+        frame[0] = (byte) (0x80 | opcode);
+        frame[1] = (byte) length;
+        System.arraycopy(payload, offset, frame, 2, length);
+        return frame;
+    }
+
+    public static byte[] encodeClose(int code) {
+        return new byte[] {(byte) (0x80 | OP_CLOSE), 2, (byte) (code >>> 8), (byte) code};
+    }
+
+    public static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int closeCode;
+
+        public ProtocolException(int closeCode, String message) {
+            super(message);
+            this.closeCode = closeCode;
+        }
+
+        public int closeCode() {
+            return closeCode;
+        }
+    }
+}
@@ -6,24 +6,131 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import common.ThreadPools;
+import common.Log;
+import common.Metrics;
 import models.*;
+import protocol.ActionSpec;
+import protocol.Actions;
+import protocol.WireCodecs;
 
 public class WebSocketGateway {
-    private static final String TCP_SERVER_HOST = "localhost";
-    private static final int TCP_SERVER_PORT = 8888;
+    private static final Log LOG = Log.get("gateway");
+    // The TCP servers, host:port,host:port,...; with more than one, students are sharded
+    // between them (ShardRouter)
+    private static final String SHARDS = System.getProperty("gateway.shards", "localhost:8888");
+    // The list before the latest change, while tools.ShardRebalancer moves students
+    private static final String PREVIOUS_SHARDS = System.getProperty("gateway.shards.previous");
+    private static final int VIRTUAL_NODES = Integer.getInteger("gateway.shards.virtualNodes", 128);
+    private static final int FANOUT_THREADS = Integer.getInteger("gateway.shards.fanoutThreads", 32);
     private static final int WEBSOCKET_PORT = 8080;
+    private static final int POOL_SIZE = Integer.getInteger("gateway.pool.size", 4);
+    private static final long REQUEST_TIMEOUT_MS = Long.getLong("gateway.requestTimeoutMs", 10000);
+    private static final long HEALTH_CHECK_INTERVAL_MS = Long.getLong("gateway.pool.healthCheckMs", 5000);
+    private static final String EXECUTOR = ThreadPools.configuredMode("gateway");
+    private static final String CODEC = System.getProperty("gateway.codec", "binary");
+    private static final int MAX_MESSAGE_BYTES = Integer.getInteger("gateway.maxMessageBytes", 16 * 1024 * 1024);
+    // Requests carrying a requestId that one browser connection may have in flight at once
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("gateway.maxInFlightPerConnection", 16);
+    // Items fetched from the TCP server per page when a list is streamed
+    private static final int STREAM_PAGE_SIZE = Integer.getInteger("gateway.streamPageSize", 500);
+    // Mutating requests in flight to the TCP server at once, across all browser connections
+    private static final int MAX_CONCURRENT_WRITES = Integer.getInteger("gateway.maxConcurrentWrites", 32);
+    // How long a write may wait for one of those slots before it is refused as overloaded
+    private static final long WRITE_WAIT_MS = Long.getLong("gateway.writeWaitMs", 100);
+    // Browser connections beyond this get 503 instead of a WebSocket
+    private static final int MAX_CONNECTIONS = Integer.getInteger("gateway.maxConnections", 4096);
+    // Threads forwarding tagged requests, and how many such requests may wait for one
+    private static final int REQUEST_WORKERS = Integer.getInteger("gateway.requestWorkers", 64);
+    private static final int REQUEST_QUEUE = Integer.getInteger("gateway.requestQueue", 256);
+    // permessage-deflate: offered by browsers, accepted unless disabled. Messages smaller
+    // than the threshold are sent as they are; compressing them would save little.
+    private static final boolean DEFLATE = Boolean.parseBoolean(System.getProperty("gateway.deflate.enabled", "true"));
+    private static final int DEFLATE_THRESHOLD = Integer.getInteger("gateway.deflate.threshold", 1024);
+    // On list JSON level 3 compresses as well as 6 (within half a percent) at twice the speed
+    private static final int DEFLATE_LEVEL = Integer.getInteger("gateway.deflate.level", 3);
+    private static final boolean DEFLATE_CONTEXT_TAKEOVER =
+            Boolean.parseBoolean(System.getProperty("gateway.deflate.contextTakeover", "true"));
     private ExecutorService threadPool;
+    private final ThreadPoolExecutor requestPool =
+            ThreadPools.newBoundedExecutor("websocket-request", REQUEST_WORKERS, REQUEST_QUEUE);
+    private final ShardRouter router = new ShardRouter(ShardRouter.parseList(SHARDS),
+            ShardRouter.parseList(PREVIOUS_SHARDS), VIRTUAL_NODES, POOL_SIZE, REQUEST_TIMEOUT_MS,
+            HEALTH_CHECK_INTERVAL_MS, WireCodecs.byName(CODEC), FANOUT_THREADS);
+    // Keeps a burst of writes from taking every pooled connection away from reads
+    private final Semaphore writePermits = new Semaphore(MAX_CONCURRENT_WRITES);
+    // Latest module catalog from the TCP server, shared by all connections
+    private volatile CachedCatalog moduleCatalog;
+    // Served by the METRICS action and GET /metrics, next to the TCP server's own
+    private final Metrics metrics = new Metrics("gateway");
+    private final LongAdder bytesIn = metrics.counter("bytes_in_total");
+    private final LongAdder bytesOut = metrics.counter("bytes_out_total");
+    private final AtomicInteger openConnections = new AtomicInteger();
+    // Accepted sockets still being served, handshake or not; bounds MAX_CONNECTIONS
+    private final AtomicInteger acceptedConnections = new AtomicInteger();
+    private final LongAdder rejectedConnections = metrics.counter("connections_rejected_total");
+    private final LongAdder overloaded = metrics.counter("overloaded_responses_total");
+    private final PerMessageDeflate.Stats deflateStats = new PerMessageDeflate.Stats(metrics);
+    // Pushes catalog and enrollment changes to connections that sent SUBSCRIBE
+    private final ChangeBroadcaster broadcaster =
+            new ChangeBroadcaster(router, WireCodecs.byName(CODEC), metrics);
+    
+    private static final class CachedCatalog {
+        final long version;
+        final byte[] modulesJson; // the JSON array, encoded once per version
+        
+        CachedCatalog(long version, byte[] modulesJson) {
+            this.version = version;
+            this.modulesJson = modulesJson;
+        }
+    }
     
     public WebSocketGateway() {
-        this.threadPool = Executors.newCachedThreadPool();
+        this.threadPool = ThreadPools.newConnectionExecutor(EXECUTOR, "websocket-handler");
+        metrics.gauge("connections", openConnections::get);
+        metrics.gauge("threads", Thread::activeCount);
+        if (threadPool instanceof ThreadPoolExecutor) {
+            metrics.gauge("handler_threads_active", ((ThreadPoolExecutor) threadPool)::getActiveCount);
+        }
+        metrics.gauge("request_workers_active", requestPool::getActiveCount);
+        metrics.gauge("request_queue_depth", () -> requestPool.getQueue().size());
+        metrics.gauge("writes_waiting", writePermits::getQueueLength);
+        metrics.gauge("tcp_pool_open_connections", () -> router.poolStats().openConnections);
+        metrics.gauge("tcp_pool_in_flight", () -> router.poolStats().inFlight);
+        metrics.gauge("shards", () -> router.shards().size());
+        metrics.gauge("log_dropped", Log::dropped);
+    }
+    
+    // Browsers can send any action name; only known ones get a timer of their own
+    private static String timerName(ActionSpec spec) {
+        return spec == null ? "UNKNOWN" : spec.name();
+    }
+    
+    // Summed over the pools of all shards
+    public TCPConnectionPool.Stats getPoolStats() {
+        return router.poolStats();
     }
     
     public void start() {
+        broadcaster.start();
         try (ServerSocket serverSocket = new ServerSocket(WEBSOCKET_PORT)) {
-            System.out.println("WebSocket Gateway started on port " + WEBSOCKET_PORT);
+            System.out.println("WebSocket Gateway started on port " + WEBSOCKET_PORT + " (" + EXECUTOR + " threads)");
+            if (router.clustered()) {
+                System.out.println("Routing to " + router.shards().size() + " shards: " + SHARDS);
+            }
             
             while (true) {
                 Socket clientSocket = serverSocket.accept();
+                if (acceptedConnections.incrementAndGet() > MAX_CONNECTIONS) {
+                    acceptedConnections.decrementAndGet();
+                    rejectedConnections.increment();
+                    refuseConnection(clientSocket);
+                    continue;
+                }
                 threadPool.execute(new WebSocketClientHandler(clientSocket));
             }
         } catch (IOException e) {
@@ -31,11 +138,38 @@ public class WebSocketGateway {
         }
     }
     
-    class WebSocketClientHandler implements Runnable {
+    // Answers the upgrade request with 503 without reading it; browsers treat it as a
+    // failed connection and retry later
+    private static void refuseConnection(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoLinger(true, 0);
+            s.getOutputStream().write(("HTTP/1.1 503 Service Unavailable\r\n" +
+                    "Retry-After: 1\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException ignored) {
+        }
+    }
+    
+    class WebSocketClientHandler implements Runnable, ChangeBroadcaster.Target {
         private Socket socket;
-        private BufferedReader in;
+        private InputStream in;
         private OutputStream out;
         private boolean handshakeComplete = false;
+        private final WebSocketFrameCodec frameCodec = new WebSocketFrameCodec(MAX_MESSAGE_BYTES);
+        private final JsonParser jsonParser = new JsonParser();
+        private final JsonWriter jsonWriter = new JsonWriter();
+        // Guards out and jsonWriter: responses complete on pool threads
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private PerMessageDeflate deflate; // null unless negotiated
+        private boolean compressing; // the message being sent is compressed; writeLock held
+        // A streamed list has sent some of its fragments but not the last (writeLock held).
+        // Whole replies finished meanwhile wait in pendingMessages as JSON and go out right
+        // after it; another stream waits for messageClosed.
+        private boolean messageOpen;
+        private final List<byte[]> pendingMessages = new ArrayList<>();
+        private final Condition messageClosed = writeLock.newCondition();
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
         
         public WebSocketClientHandler(Socket socket) {
             this.socket = socket;
@@ -44,54 +178,148 @@ public class WebSocketGateway {
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                socket.setTcpNoDelay(true);
+                in = socket.getInputStream();
                 out = socket.getOutputStream();
                 
                 // Perform WebSocket handshake
                 performHandshake();
+                if (!handshakeComplete) return;
+                openConnections.incrementAndGet();
                 
-                // Read and process messages
+                // Read and process messages; control frames are answered inline
                 while (true) {
-                    String message = readWebSocketMessage();
-                    if (message == null) break;
+                    int opcode = frameCodec.readFrame(in);
+                    if (opcode == -1) break;
                     
-                    System.out.println("Received: " + message);
-                    String response = processMessage(message);
-                    sendWebSocketMessage(response);
+                    if (opcode == WebSocketFrameCodec.OP_PING) {
+                        writeFrame(WebSocketFrameCodec.encodeControl(WebSocketFrameCodec.OP_PONG,
+                                frameCodec.array(), frameCodec.offset(), frameCodec.length()));
+                        continue;
+                    }
+                    if (opcode == WebSocketFrameCodec.OP_PONG) continue;
+                    if (opcode == WebSocketFrameCodec.OP_CLOSE) {
+                        // Answer everything still in flight before the close frame
+                        inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+                        int code = frameCodec.closeCode();
+                        sendClose(code == 1005 ? WebSocketFrameCodec.CLOSE_NORMAL : code);
+                        break;
+                    }
+                    
+                    if (LOG.enabled(Log.Level.DEBUG)) LOG.debug("Received: {}", frameCodec.text());
+                    // Parsed here: the message is a view into the frame buffer, valid until the next read
+                    Request request;
+                    try {
+                        request = jsonParser.parseRequest(frameCodec.array(), frameCodec.offset(), frameCodec.length());
+                    } catch (Exception e) {
+                        sendWebSocketMessage(new Response(false, "Error: " + e.getMessage()));
+                        continue;
+                    }
+                    LOG.sample("Received: {} ({} bytes)", request.getAction(), frameCodec.length());
+                    bytesIn.add(frameCodec.length());
+                    
+                    if (request.getRequestId() == null) {
+                        // Untagged clients route replies by arrival order, so keep it
+                        inFlight.acquire(MAX_IN_FLIGHT);
+                        try {
+                            respond(request);
+                        } finally {
+                            inFlight.release(MAX_IN_FLIGHT);
+                        }
+                        continue;
+                    }
+                    
+                    // Tagged: forward concurrently, reply in completion order
+                    inFlight.acquire();
+                    try {
+                        requestPool.execute(() -> {
+                            try {
+                                respond(request);
+                            } catch (IOException e) {
+                                closeQuietly();
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        inFlight.release();
+                        overloaded.increment();
+                        Response busy = Response.overloaded("Server busy, please try again");
+                        busy.setRequestId(request.getRequestId());
+                        sendWebSocketMessage(busy);
+                    }
+                }
+                LOG.info("Client disconnected");
+            } catch (WebSocketFrameCodec.ProtocolException e) {
+                LOG.warn("Closing client after protocol error: {}", e.getMessage());
+                try {
+                    sendClose(e.closeCode());
+                } catch (IOException ignored) {
                 }
             } catch (Exception e) {
-                System.out.println("Client disconnected");
+                LOG.info("Client disconnected");
             } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                broadcaster.unsubscribe(this);
+                if (handshakeComplete) openConnections.decrementAndGet();
+                acceptedConnections.decrementAndGet();
+                frameCodec.release();
+                closeQuietly();
+                if (deflate != null) {
+                    writeLock.lock();
+                    try {
+                        deflate.end();
+                    } finally {
+                        writeLock.unlock();
+                    }
                 }
             }
         }
         
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.error("Could not close client socket", e);
+            }
+        }
+        
+        @Override
+        public void close() {
+            closeQuietly();
+        }
+        
         private void performHandshake() throws IOException {
-            StringBuilder request = new StringBuilder();
-            String line;
-            String key = null;
+            WebSocketFrameCodec.Handshake request = frameCodec.readHandshake(in);
             
-            while (!(line = in.readLine()).isEmpty()) {
-                request.append(line).append("\r\n");
-                if (line.startsWith("Sec-WebSocket-Key:")) {
-                    key = line.substring(19).trim();
+            if (request.isUpgrade()) {
+                String accept = generateAcceptKey(request.header("Sec-WebSocket-Key"));
+                if (DEFLATE) {
+                    deflate = PerMessageDeflate.negotiate(request.header("Sec-WebSocket-Extensions"),
+                            DEFLATE_LEVEL, DEFLATE_CONTEXT_TAKEOVER, deflateStats);
                 }
-            }
-            
-            if (key != null) {
-                String accept = generateAcceptKey(key);
                 String response = "HTTP/1.1 101 Switching Protocols\r\n" +
                         "Upgrade: websocket\r\n" +
                         "Connection: Upgrade\r\n" +
+                        (deflate != null ? "Sec-WebSocket-Extensions: " + deflate.response() + "\r\n" : "") +
                         "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+                if (deflate != null) frameCodec.enableDeflate(deflate);
                 out.write(response.getBytes(StandardCharsets.UTF_8));
                 out.flush();
                 handshakeComplete = true;
-                System.out.println("WebSocket handshake complete");
+                LOG.debug("WebSocket handshake complete");
+            } else if (request.requestLine.startsWith("GET /metrics ") || request.requestLine.startsWith("GET /metrics?")) {
+                byte[] body = metricsText().getBytes(StandardCharsets.UTF_8);
+                out.write(("HTTP/1.1 200 OK\r\n" +
+                        "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+                        "Content-Length: " + body.length + "\r\n" +
+                        "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+                out.flush();
+            } else {
+                out.write(("HTTP/1.1 400 Bad Request\r\n" +
+                        "Content-Length: 0\r\n" +
+                        "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
             }
         }
         
@@ -106,303 +334,372 @@ public class WebSocketGateway {
             }
         }
         
-        private String readWebSocketMessage() throws IOException {
-            InputStream in = socket.getInputStream();
-            
-            // Read first byte (FIN + opcode)
-            int firstByte = in.read();
-            if (firstByte == -1) return null;
-            
-            // Read second byte (MASK + payload length)
-            int secondByte = in.read();
-            if (secondByte == -1) return null;
-            
-            boolean masked = (secondByte & 0x80) != 0;
-            int payloadLength = secondByte & 0x7F;
-            
-            // Read extended payload length if needed
-            if (payloadLength == 126) {
-                payloadLength = (in.read() << 8) | in.read();
-            } else if (payloadLength == 127) {
-                payloadLength = 0;
-                for (int i = 0; i < 8; i++) {
-                    payloadLength = (payloadLength << 8) | in.read();
-                }
-            }
-            
-            // Read mask key if present
-            byte[] mask = new byte[4];
-            if (masked) {
-                for (int i = 0; i < 4; i++) {
-                    mask[i] = (byte) in.read();
-                }
-            }
-            
-            // Read payload data
-            byte[] payload = new byte[payloadLength];
-            int bytesRead = 0;
-            while (bytesRead < payloadLength) {
-                int read = in.read(payload, bytesRead, payloadLength - bytesRead);
-                if (read == -1) break;
-                bytesRead += read;
+        private void sendClose(int code) throws IOException {
+            writeFrame(WebSocketFrameCodec.encodeClose(code));
+        }
+        
+        private void writeFrame(byte[] frame) throws IOException {
+            writeLock.lock();
+            try {
+                out.write(frame);
+                out.flush();
+                bytesOut.add(frame.length);
+            } finally {
+                writeLock.unlock();
             }
-            
-            // Unmask if needed
-            if (masked) {
-                for (int i = 0; i < payload.length; i++) {
-                    payload[i] ^= mask[i % 4];
-                }
+        }
+        
+        // Serializes straight into the connection's buffer, then writes the frame
+        // header into the reserved space in front of it and sends it in one write
+        private void sendWebSocketMessage(Response response) throws IOException {
+            writeLock.lock();
+            try {
+                jsonWriter.reset();
+                jsonWriter.writeResponse(response);
+                sendWhole();
+                jsonWriter.reset();
+            } finally {
+                writeLock.unlock();
             }
-            
-            return new String(payload, StandardCharsets.UTF_8);
         }
         
-        private void sendWebSocketMessage(String message) throws IOException {
-            byte[] rawData = message.getBytes(StandardCharsets.UTF_8);
-            int frameSize = rawData.length;
-            
-            ByteArrayOutputStream frame = new ByteArrayOutputStream();
-            frame.write(0x81); // Text frame
-            
-            if (frameSize <= 125) {
-                frame.write(frameSize);
-            } else if (frameSize <= 65535) {
-                frame.write(126);
-                frame.write((frameSize >> 8) & 0xFF);
-                frame.write(frameSize & 0xFF);
-            } else {
-                frame.write(127);
-                for (int i = 7; i >= 0; i--) {
-                    frame.write((frameSize >> (8 * i)) & 0xFF);
+        // Times the whole exchange, from a parsed request to the reply written
+        private void respond(Request request) throws IOException {
+            ActionSpec spec = Actions.of(request);
+            long start = System.nanoTime();
+            boolean sent = false;
+            try {
+                if (Boolean.TRUE.equals(request.getData("stream"))
+                        && (spec == Actions.LIST_STUDENTS || spec == Actions.LIST_MODULES)) {
+                    streamList(request);
+                } else if (spec == Actions.VIEW_MODULES) {
+                    sendModules(request);
+                } else if (spec == Actions.SUBSCRIBE) {
+                    sendWebSocketMessage(subscribe(request));
+                } else if (spec == Actions.METRICS) {
+                    Map<String, Object> both = new LinkedHashMap<>();
+                    both.put("gateway", metrics.snapshot());
+                    both.put("server", serverMetrics());
+                    Response response = new Response(true, "Metrics retrieved", both);
+                    response.setRequestId(request.getRequestId());
+                    sendWebSocketMessage(response);
+                } else {
+                    sendWebSocketMessage(processMessage(request));
                 }
+                sent = true;
+            } finally {
+                metrics.timer("request", timerName(spec)).record(System.nanoTime() - start, sent);
             }
-            
-            frame.write(rawData);
-            out.write(frame.toByteArray());
-            out.flush();
         }
         
-        private String processMessage(String message) {
-            try {
-                // Parse JSON manually
-                Map<String, Object> jsonRequest = parseJSON(message);
-                
-                // Create Request object for TCP server
-                Request request = new Request();
-                request.setAction((String) jsonRequest.get("action"));
-                
-                if (jsonRequest.containsKey("data") && jsonRequest.get("data") != null) {
-                    Object dataObj = jsonRequest.get("data");
-                    if (dataObj instanceof Map) {
-                        @SuppressWarnings("unchecked")
-                        Map<String, Object> data = (Map<String, Object>) dataObj;
-                        request.setData(new HashMap<>(data));
+        // SUBSCRIBE {topics: ["modules", "enrollments"]} replaces this connection's
+        // subscription; no topics ends it. Changes then arrive as messages without a
+        // requestId: {"event": "CHANGES", "data": {"modules": [...], "enrolled": {...}}},
+        // or {"event": "RESYNC"} when the client should refetch what it shows.
+        private Response subscribe(Request request) {
+            boolean modules = false;
+            boolean enrollments = false;
+            Object topics = request.getData("topics");
+            if (topics instanceof List) {
+                for (Object topic : (List<?>) topics) {
+                    if ("modules".equals(topic)) {
+                        modules = true;
+                    } else if ("enrollments".equals(topic)) {
+                        enrollments = true;
+                    } else {
+                        Response response = new Response(false, "Unknown topic: " + topic);
+                        response.setRequestId(request.getRequestId());
+                        return response;
                     }
                 }
-                
-                // Send to TCP server and get response
-                Response response = sendToTCPServer(request);
-                
-                // Convert response to JSON and return
-                return toJSON(response);
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                return "{\"success\":false,\"message\":\"Error: " + e.getMessage() + "\"}";
             }
+            broadcaster.subscribe(this, modules, enrollments);
+            Response response = new Response(true, modules || enrollments ? "Subscribed" : "Unsubscribed");
+            response.setRequestId(request.getRequestId());
+            return response;
         }
         
-        private Response sendToTCPServer(Request request) {
-            try (Socket socket = new Socket(TCP_SERVER_HOST, TCP_SERVER_PORT);
-                 ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                 ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-                
-                out.writeObject(request);
-                out.flush();
-                
-                Response response = (Response) in.readObject();
-                return response;
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                return new Response(false, "Failed to connect to TCP server: " + e.getMessage());
+        @Override
+        public boolean pushChanges(Map<String, Object> changes) throws IOException {
+            if (!writeLock.tryLock()) return false;
+            try {
+                if (messageOpen) return false;
+                jsonWriter.reset();
+                jsonWriter.writeRaw("{\"event\":\"CHANGES\",\"data\":");
+                jsonWriter.writeValue(changes);
+                jsonWriter.writeByte('}');
+                writeFragment(jsonWriter, true, true);
+                return true;
+            } finally {
+                jsonWriter.reset();
+                writeLock.unlock();
             }
         }
-    }
-    
-    // Simple JSON parser
-    private static Map<String, Object> parseJSON(String json) {
-        Map<String, Object> result = new HashMap<>();
-        json = json.trim();
         
-        // Handle empty object
-        if (json.equals("{}")) {
-            return result;
+        @Override
+        public boolean pushResync() throws IOException {
+            if (!writeLock.tryLock()) return false;
+            try {
+                if (messageOpen) return false;
+                jsonWriter.reset();
+                jsonWriter.writeRaw("{\"event\":\"RESYNC\"}");
+                writeFragment(jsonWriter, true, true);
+                return true;
+            } finally {
+                jsonWriter.reset();
+                writeLock.unlock();
+            }
         }
         
-        // Remove outer braces
-        if (json.startsWith("{") && json.endsWith("}")) {
-            json = json.substring(1, json.length() - 1);
+        // Sends a list as one WebSocket message split into fragments, one per page fetched
+        // from the TCP server, so neither side ever holds more than a page. The browser
+        // reassembles it into the same JSON a plain list request returns. Pages are fetched
+        // and encoded without writeLock, which is taken only to write each fragment. Data
+        // frames of different messages cannot interleave, so replies that complete while
+        // the message is open are held until it is done (pushes are retried later).
+        private void streamList(Request request) throws IOException {
+            JsonWriter json = new JsonWriter();
+            boolean opened = false;
+            boolean finished = false;
+            try {
+                String cursor = null;
+                boolean firstItem = true;
+                while (true) {
+                    Request pageRequest = new Request(request.getAction());
+                    pageRequest.addData("limit", STREAM_PAGE_SIZE);
+                    if (cursor != null) pageRequest.addData("cursor", cursor);
+                    Response page = processMessage(pageRequest);
+                    
+                    boolean isPage = page.isSuccess() && page.getData() instanceof Map;
+                    if (!opened && !isPage) {
+                        // Nothing sent yet: an error (or a server without paging) goes out as is
+                        page.setRequestId(request.getRequestId());
+                        sendWebSocketMessage(page);
+                        finished = true;
+                        return;
+                    }
+                    
+                    json.reset();
+                    boolean last;
+                    if (!isPage) {
+                        // Too late to change "success": close the array and report the failure
+                        json.writeRaw("],\"error\":");
+                        json.writeString(page.getMessage());
+                        json.writeByte('}');
+                        last = true;
+                    } else {
+                        if (!opened) {
+                            json.writeResponseStart(true, request.getRequestId(), page.getMessage());
+                            json.writeRaw(",\"data\":[");
+                        }
+                        Map<?, ?> map = (Map<?, ?>) page.getData();
+                        Object items = map.get("items");
+                        if (items instanceof List) {
+                            for (Object item : (List<?>) items) {
+                                if (!firstItem) json.writeByte(',');
+                                json.writeValue(item);
+                                firstItem = false;
+                            }
+                        }
+                        cursor = (String) map.get("nextCursor");
+                        last = cursor == null;
+                        if (last) json.writeRaw("]}");
+                    }
+                    
+                    writeLock.lock();
+                    try {
+                        if (!opened) {
+                            while (messageOpen) messageClosed.awaitUninterruptibly();
+                            messageOpen = true;
+                        }
+                        writeFragment(json, !opened, last);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    opened = true;
+                    if (last) {
+                        finished = true;
+                        return;
+                    }
+                }
+            } finally {
+                if (opened) closeMessage(finished);
+            }
         }
         
-        // Handle whitespace-only content
-        if (json.trim().isEmpty()) {
-            return result;
+        // Ends a streamed list's turn: sends the replies held meanwhile and lets the next
+        // stream start. A stream that failed halfway leaves a message the browser cannot
+        // finish, so the connection is closed instead.
+        private void closeMessage(boolean finished) throws IOException {
+            writeLock.lock();
+            try {
+                messageOpen = false;
+                messageClosed.signalAll();
+                if (!finished) {
+                    pendingMessages.clear();
+                    closeQuietly();
+                    return;
+                }
+                for (byte[] message : pendingMessages) {
+                    jsonWriter.reset();
+                    jsonWriter.writeRaw(message);
+                    writeFragment(jsonWriter, true, true);
+                }
+                pendingMessages.clear();
+            } finally {
+                jsonWriter.reset();
+                writeLock.unlock();
+            }
         }
         
-        // Split by commas not inside quotes or nested objects
-        List<String> pairs = splitByComma(json);
-        
-        for (String pair : pairs) {
-            if (pair == null || pair.trim().isEmpty()) {
-                continue;
-            }
-            
-            // Find the first colon that's not inside quotes or braces
-            int colonIndex = findFirstColon(pair);
-            if (colonIndex == -1) continue;
+        // Revalidates the shared catalog cache with the TCP server (a tiny "not modified"
+        // round trip while nothing changed) and answers from the cached JSON. Browsers that
+        // send knownVersion get the versioned form, or "not modified" if they are current.
+        private void sendModules(Request request) throws IOException {
+            CachedCatalog cached = moduleCatalog;
+            Request upstream = new Request("VIEW_MODULES");
+            // Any version asks for the versioned form; 0 is never a real one
+            upstream.addData("knownVersion", cached == null ? 0L : cached.version);
+            Response response = processMessage(upstream);
             
-            String key = pair.substring(0, colonIndex).trim().replaceAll("\"", "");
-            String value = pair.substring(colonIndex + 1).trim();
-            
-            if (value == null || value.isEmpty()) {
-                continue;
+            Object data = response.getData();
+            if (!response.isSuccess() || !(data instanceof Map)) {
+                // An error, or a TCP server that does not version its catalog
+                response.setRequestId(request.getRequestId());
+                sendWebSocketMessage(response);
+                return;
+            }
+            Map<?, ?> catalog = (Map<?, ?>) data;
+            if (cached == null || !Boolean.TRUE.equals(catalog.get("notModified"))) {
+                JsonWriter json = new JsonWriter();
+                json.writeValue(catalog.get("modules"));
+                cached = new CachedCatalog(((Number) catalog.get("version")).longValue(), json.payload());
+                moduleCatalog = cached;
             }
             
-            // Parse the value
-            result.put(key, parseValue(value));
+            Object known = request.getData("knownVersion");
+            boolean current = known instanceof Number && ((Number) known).longValue() == cached.version;
+            writeLock.lock();
+            try {
+                jsonWriter.reset();
+                jsonWriter.writeResponseStart(true, request.getRequestId(),
+                        current ? "Modules not modified" : "Modules retrieved");
+                jsonWriter.writeRaw(",\"data\":");
+                if (current) {
+                    jsonWriter.writeRaw("{\"version\":");
+                    jsonWriter.writeLong(cached.version);
+                    jsonWriter.writeRaw(",\"notModified\":true}");
+                } else if (known != null) {
+                    jsonWriter.writeRaw("{\"version\":");
+                    jsonWriter.writeLong(cached.version);
+                    jsonWriter.writeRaw(",\"modules\":");
+                    jsonWriter.writeRaw(cached.modulesJson);
+                    jsonWriter.writeByte('}');
+                } else {
+                    jsonWriter.writeRaw(cached.modulesJson);
+                }
+                jsonWriter.writeByte('}');
+                sendWhole();
+            } finally {
+                jsonWriter.reset();
+                writeLock.unlock();
+            }
         }
-        return result;
-    }
-    
-    private static List<String> splitByComma(String str) {
-        List<String> result = new ArrayList<>();
-        int braceDepth = 0;
-        boolean inQuotes = false;
-        StringBuilder current = new StringBuilder();
         
-        for (int i = 0; i < str.length(); i++) {
-            char c = str.charAt(i);
-            
-            if (c == '"' && (i == 0 || str.charAt(i - 1) != '\\')) {
-                inQuotes = !inQuotes;
-                current.append(c);
-            } else if (c == '{' && !inQuotes) {
-                braceDepth++;
-                current.append(c);
-            } else if (c == '}' && !inQuotes) {
-                braceDepth--;
-                current.append(c);
-            } else if (c == ',' && !inQuotes && braceDepth == 0) {
-                result.add(current.toString());
-                current = new StringBuilder();
+        // writeLock held, jsonWriter holds a whole message: sends it, or keeps it for
+        // when the streamed list being sent is complete
+        private void sendWhole() throws IOException {
+            if (messageOpen) {
+                pendingMessages.add(jsonWriter.payload());
             } else {
-                current.append(c);
+                writeFragment(jsonWriter, true, true);
             }
         }
         
-        if (current.length() > 0) {
-            result.add(current.toString());
+        // Sends what json holds as one fragment of a text message (or all of one);
+        // writeLock held. With permessage-deflate, a message is compressed if it is split
+        // into fragments (a streamed list) or reaches the threshold, decided on its first
+        // fragment; RSV1 on that fragment tells the browser.
+        private void writeFragment(JsonWriter json, boolean firstFrame, boolean last) throws IOException {
+            int opcode = firstFrame ? WebSocketFrameCodec.OP_TEXT : WebSocketFrameCodec.OP_CONTINUATION;
+            int firstByte = (last ? 0x80 : 0) | opcode;
+            if (firstFrame && deflate != null) {
+                compressing = !last || json.payloadLength() >= DEFLATE_THRESHOLD;
+                if (!compressing) deflate.skipped();
+            }
+            if (deflate != null && compressing) {
+                deflate.deflate(json.buffer(), JsonWriter.HEADER_RESERVE, json.payloadLength(), last);
+                int start = deflate.finishFrame(firstByte | (firstFrame ? 0x40 : 0));
+                out.write(deflate.buffer(), start, deflate.frameEnd() - start);
+                bytesOut.add(deflate.frameEnd() - start);
+                deflate.reset();
+            } else {
+                int start = json.finishFrame(firstByte);
+                out.write(json.buffer(), start, json.frameEnd() - start);
+                bytesOut.add(json.frameEnd() - start);
+            }
+            out.flush();
         }
         
-        return result;
-    }
-    
-    private static int findFirstColon(String str) {
-        boolean inQuotes = false;
-        int braceDepth = 0;
-        
-        for (int i = 0; i < str.length(); i++) {
-            char c = str.charAt(i);
-            
-            if (c == '"' && (i == 0 || str.charAt(i - 1) != '\\')) {
-                inQuotes = !inQuotes;
-            } else if (c == '{' && !inQuotes) {
-                braceDepth++;
-            } else if (c == '}' && !inQuotes) {
-                braceDepth--;
-            } else if (c == ':' && !inQuotes && braceDepth == 0) {
-                return i;
+        private Response processMessage(Request request) {
+            Response response;
+            long start = System.nanoTime();
+            try {
+                // Send to TCP server and get response
+                response = sendToTCPServer(request);
+            } catch (Exception e) {
+                LOG.error(request.getAction() + " request to TCP server failed", e);
+                response = new Response(false, "Error: " + e.getMessage());
             }
+            metrics.timer("upstream", timerName(Actions.of(request)))
+                    .record(System.nanoTime() - start, response.isSuccess());
+            if (Response.OVERLOADED.equals(response.getErrorCode())) overloaded.increment();
+            response.setRequestId(request.getRequestId());
+            return response;
         }
         
-        return -1;
-    }
-    
-    private static Object parseValue(String value) {
-        value = value.trim();
-        
-        if (value.startsWith("{") && value.endsWith("}")) {
-            // Nested object
-            return parseJSON(value);
-        } else if (value.startsWith("\"") && value.endsWith("\"")) {
-            // String value
-            return value.substring(1, value.length() - 1);
-        } else if (value.equals("true")) {
-            return Boolean.TRUE;
-        } else if (value.equals("false")) {
-            return Boolean.FALSE;
-        } else if (value.equals("null")) {
-            return null;
-        } else if (value.matches("-?\\d+")) {
-            // Integer
-            return Integer.parseInt(value);
-        } else if (value.matches("-?\\d*\\.\\d+")) {
-            // Double
-            return Double.parseDouble(value);
-        } else {
-            // Default to string
-            return value;
+        // The TCP server's snapshot (a list of them on a sharded cluster), or null if it
+        // cannot be reached
+        private Object serverMetrics() {
+            Response response = processMessage(new Request("METRICS"));
+            return response.isSuccess() ? response.getData() : null;
         }
-    }
-    
-    // Simple JSON serializer
-    private static String toJSON(Response response) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{");
-        sb.append("\"success\":").append(response.isSuccess()).append(",");
-        sb.append("\"message\":\"").append(escapeJSON(response.getMessage())).append("\"");
         
-        if (response.getData() != null) {
-            sb.append(",\"data\":");
-            sb.append(objectToJSON(response.getData()));
+        private String metricsText() {
+            StringBuilder text = new StringBuilder();
+            Metrics.renderText(metrics.snapshot(), text);
+            Object server = serverMetrics();
+            if (server instanceof Map) {
+                Metrics.renderText((Map<?, ?>) server, text);
+            } else if (server instanceof List) {
+                for (Object shard : (List<?>) server) Metrics.renderText((Map<?, ?>) shard, text);
+            } else {
+                text.append("# TCP server metrics unavailable\n");
+            }
+            return text.toString();
         }
         
-        sb.append("}");
-        return sb.toString();
-    }
-    
-    private static String objectToJSON(Object obj) {
-        if (obj == null) return "null";
-        if (obj instanceof String) return "\"" + escapeJSON((String) obj) + "\"";
-        if (obj instanceof Number || obj instanceof Boolean) return obj.toString();
-        if (obj instanceof List) {
-            List<?> list = (List<?>) obj;
-            StringBuilder sb = new StringBuilder("[");
-            for (int i = 0; i < list.size(); i++) {
-                if (i > 0) sb.append(",");
-                sb.append(objectToJSON(list.get(i)));
+        private Response sendToTCPServer(Request request) throws InterruptedException {
+            ActionSpec spec = Actions.of(request);
+            if (spec == null) {
+                // Unknown here; the TCP server gives the error (or handles a newer action)
+                return router.send(request, REQUEST_TIMEOUT_MS);
+            }
+            if (spec.internal()) {
+                return new Response(false, spec.name() + " is not available through the gateway");
+            }
+            if (spec.readOnly()) {
+                return router.send(request, spec.timeoutMs());
+            }
+            if (!writePermits.tryAcquire(Math.min(WRITE_WAIT_MS, spec.timeoutMs()), TimeUnit.MILLISECONDS)) {
+                return Response.overloaded("Server busy, please try again");
+            }
+            try {
+                return router.send(request, spec.timeoutMs());
+            } finally {
+                writePermits.release();
             }
-            sb.append("]");
-            return sb.toString();
-        }
-        if (obj instanceof models.Student) {
-            models.Student s = (models.Student) obj;
-            return "{\"studentId\":\"" + s.getStudentId() + "\",\"name\":\"" + escapeJSON(s.getName()) + 
-                   "\",\"email\":\"" + escapeJSON(s.getEmail()) + "\",\"registeredModules\":" + 
-                   objectToJSON(s.getRegisteredModules()) + "}";
-        }
-        if (obj instanceof models.Module) {
-            models.Module m = (models.Module) obj;
-            return "{\"moduleCode\":\"" + m.getModuleCode() + "\",\"moduleName\":\"" + escapeJSON(m.getModuleName()) + 
-                   "\",\"description\":\"" + escapeJSON(m.getDescription()) + "\",\"credits\":" + m.getCredits() + "}";
         }
-        return "{}";
-    }
-    
-    private static String escapeJSON(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r");
     }
     
     public static void main(String[] args) {
@@ -9,6 +9,7 @@ public class Module implements Serializable {
     private String moduleName;
     private String description;
     private int credits;
+    private int capacity; // seats; 0 = unlimited
     
     public Module() {}
     
@@ -19,6 +20,11 @@ public class Module implements Serializable {
         this.credits = credits;
     }
     
+    public Module(String moduleCode, String moduleName, String description, int credits, int capacity) {
+        this(moduleCode, moduleName, description, credits);
+        this.capacity = capacity;
+    }
+    
     // Getters and Setters
     public String getModuleCode() { return moduleCode; }
     public void setModuleCode(String moduleCode) { this.moduleCode = moduleCode; }
@@ -32,6 +38,9 @@ public class Module implements Serializable {
     public int getCredits() { return credits; }
     public void setCredits(int credits) { this.credits = credits; }
     
+    public int getCapacity() { return capacity; }
+    public void setCapacity(int capacity) { this.capacity = capacity; }
+    
     @Override
     public String toString() {
         return "Module{" +
@@ -39,6 +48,7 @@ public class Module implements Serializable {
                 ", moduleName='" + moduleName + '\'' +
                 ", description='" + description + '\'' +
                 ", credits=" + credits +
+                ", capacity=" + capacity +
                 '}';
     }
 }
@@ -9,6 +9,11 @@ public class Request implements Serializable {
     
     private String action;
     private Map<String, Object> data;
+    private long correlationId;
+    private String requestId;
+    // Wire opcode found while decoding, so the action is looked up by name only once;
+    // 0 = not resolved. Not serialized: every codec resolves it again.
+    private transient int opcode;
     
     public Request() {
         this.data = new HashMap<>();
@@ -20,7 +25,20 @@ public class Request implements Serializable {
     }
     
     public String getAction() { return action; }
-    public void setAction(String action) { this.action = action; }
+    public void setAction(String action) {
+        this.action = action;
+        this.opcode = 0;
+    }
+    
+    public int getOpcode() { return opcode; }
+    public void setOpcode(int opcode) { this.opcode = opcode; }
+    
+    public long getCorrelationId() { return correlationId; }
+    public void setCorrelationId(long correlationId) { this.correlationId = correlationId; }
+    
+    // Optional client-chosen ID; set when the client pipelines several requests
+    public String getRequestId() { return requestId; }
+    public void setRequestId(String requestId) { this.requestId = requestId; }
     
     public Map<String, Object> getData() { return data; }
     public void setData(Map<String, Object> data) { this.data = data; }
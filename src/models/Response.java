@@ -5,9 +5,20 @@ import java.io.Serializable;
 public class Response implements Serializable {
     private static final long serialVersionUID = 1L;
     
+    // errorCode of a request the server refused before running it because it is
+    // overloaded; the client may send it again after backing off
+    public static final String OVERLOADED = "OVERLOADED";
+    
+    // errorCode of a request about a student this server does not hold; in a sharded
+    // cluster that is being rebalanced the student may still be on its previous shard
+    public static final String STUDENT_NOT_FOUND = "STUDENT_NOT_FOUND";
+    
     private boolean success;
     private String message;
     private Object data;
+    private long correlationId;
+    private String requestId;
+    private String errorCode;
     
     public Response() {}
     
@@ -22,6 +33,18 @@ public class Response implements Serializable {
         this.data = data;
     }
     
+    public static Response overloaded(String message) {
+        Response response = new Response(false, message);
+        response.setErrorCode(OVERLOADED);
+        return response;
+    }
+    
+    public static Response studentNotFound(String message) {
+        Response response = new Response(false, message);
+        response.setErrorCode(STUDENT_NOT_FOUND);
+        return response;
+    }
+    
     // Getters and Setters
     public boolean isSuccess() { return success; }
     public void setSuccess(boolean success) { this.success = success; }
@@ -32,6 +55,18 @@ public class Response implements Serializable {
     public Object getData() { return data; }
     public void setData(Object data) { this.data = data; }
     
+    // Echoes Request.correlationId so multiplexed connections can match replies
+    public long getCorrelationId() { return correlationId; }
+    public void setCorrelationId(long correlationId) { this.correlationId = correlationId; }
+    
+    // Echoes Request.requestId back to the client that chose it
+    public String getRequestId() { return requestId; }
+    public void setRequestId(String requestId) { this.requestId = requestId; }
+    
+    // Machine-readable reason for a failure that clients act on; null for ordinary ones
+    public String getErrorCode() { return errorCode; }
+    public void setErrorCode(String errorCode) { this.errorCode = errorCode; }
+    
     @Override
     public String toString() {
         return "Response{" +
@@ -1,8 +1,10 @@
 package models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Student implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -11,10 +13,12 @@ public class Student implements Serializable {
     private String name;
     private String email;
     private String password;
+    // Copy-on-write: a student holds a handful of modules, registrations are rare next
+    // to reads, and readers (serializers, snapshots) can iterate without any lock
     private List<String> registeredModules;
     
     public Student() {
-        this.registeredModules = new ArrayList<>();
+        this.registeredModules = new CopyOnWriteArrayList<>();
     }
     
     public Student(String studentId, String name, String email, String password) {
@@ -22,7 +26,7 @@ public class Student implements Serializable {
         this.name = name;
         this.email = email;
         this.password = password;
-        this.registeredModules = new ArrayList<>();
+        this.registeredModules = new CopyOnWriteArrayList<>();
     }
     
     // Getters and Setters
@@ -40,12 +44,20 @@ public class Student implements Serializable {
     
     public List<String> getRegisteredModules() { return registeredModules; }
     public void setRegisteredModules(List<String> registeredModules) { 
-        this.registeredModules = registeredModules; 
+        this.registeredModules = new CopyOnWriteArrayList<>(registeredModules); 
     }
     
-    public void registerModule(String moduleCode) {
-        if (!registeredModules.contains(moduleCode)) {
-            registeredModules.add(moduleCode);
+    // Atomic check-and-add; returns false if the module was already registered
+    public boolean registerModule(String moduleCode) {
+        return ((CopyOnWriteArrayList<String>) registeredModules).addIfAbsent(moduleCode);
+    }
+    
+    // Peers may send any List implementation
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (!(registeredModules instanceof CopyOnWriteArrayList)) {
+            registeredModules = registeredModules == null ? new CopyOnWriteArrayList<>()
+                    : new CopyOnWriteArrayList<>(registeredModules);
         }
     }
     
@@ -0,0 +1,76 @@
+package protocol;
+
+// What the system knows about one action besides its name: its opcode on the binary
+// wire, whether it changes stored data, roughly what it costs, how long the gateway
+// waits for it, how a sharded gateway routes it and whether browsers may send it at
+// all. The TCP server uses this to decide where a request runs, the gateway to schedule
+// reads and writes differently and to pick the shards; see Actions for the table.
+public final class ActionSpec {
+    public enum Cost {
+        LIGHT,  // a map lookup or a cached value; fine to run on an I/O thread
+        NORMAL, // a log write or a bounded query
+        HEAVY,  // proportional to the whole dataset
+    }
+
+    // How the gateway of a sharded cluster spreads the action over the shards
+    // (ShardRouter); a single server gets every request as it is
+    public enum Routing {
+        BY_KEY,          // to the shard owning the studentId, else the one knowing the token
+        ANY_SHARD,       // catalog reads: every shard holds the whole catalog
+        REPLICATE,       // catalog writes: applied on every shard
+        MERGE_LISTS,     // a page from every shard, merged in key order
+        SUM_COUNTS,      // per-module counts from every shard, added up
+        COLLECT_METRICS, // every shard's metrics side by side
+        SPLIT_BULK,      // the records split by the shard owning them
+        REGISTER,        // a seat on the module's ledger shard first, then the student's shard
+        BULK_REGISTER,   // the same for a batch of registrations
+        SINGLE_SERVER,   // needs every record on one server; refused on a cluster
+    }
+
+    private final String name;
+    private final int opcode;
+    private final boolean readOnly;
+    private final Cost cost;
+    private final long timeoutMs;
+    private final Routing routing;
+    private final boolean internal;
+
+    ActionSpec(String name, int opcode, boolean readOnly, Cost cost, long timeoutMs, Routing routing,
+               boolean internal) {
+        this.name = name;
+        this.opcode = opcode;
+        this.readOnly = readOnly;
+        this.cost = cost;
+        this.timeoutMs = timeoutMs;
+        this.routing = routing;
+        this.internal = internal;
+    }
+
+    public String name() { return name; }
+
+    // Opcodes.UNKNOWN for actions outside the opcode table; they travel by name
+    public int opcode() { return opcode; }
+
+    // True if the action never changes durable data (it may touch in-memory state such
+    // as sessions)
+    public boolean readOnly() { return readOnly; }
+
+    public Cost cost() { return cost; }
+
+    // How long the gateway waits for the TCP server's reply
+    public long timeoutMs() { return timeoutMs; }
+
+    public Routing routing() { return routing; }
+
+    // Sent only between the processes of the system (the gateway's change feed, the
+    // rebalancer, seat bookkeeping); the gateway refuses it from browsers
+    public boolean internal() { return internal; }
+
+    // Cheap enough to run on the thread that read it instead of handing it off
+    public boolean runsInline() { return readOnly && cost == Cost.LIGHT; }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,123 @@
+package protocol;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import models.Request;
+import protocol.ActionSpec.Cost;
+import protocol.ActionSpec.Routing;
+
+// Registry of every action both processes know, resolved once per request to an
+// ActionSpec: by opcode (an array index) when the codec or parser already found one,
+// otherwise by name. New actions are added with define(); ones that also need a compact
+// wire code get it appended to Opcodes.
+public final class Actions {
+    private static final ActionSpec[] BY_OPCODE = new ActionSpec[Opcodes.count()];
+    private static final Map<String, ActionSpec> BY_NAME = new ConcurrentHashMap<>();
+
+    public static final ActionSpec PING = define("PING", true, Cost.LIGHT, 2000);
+    public static final ActionSpec METRICS = define("METRICS", true, Cost.LIGHT, 5000,
+            Routing.COLLECT_METRICS, false);
+
+    // Student operations. Login and logout only touch the in-memory session table, but
+    // login also checks the password and draws a token from SecureRandom, and is what a
+    // login storm floods, so it goes through admission control like other real work.
+    public static final ActionSpec STUDENT_LOGIN = define("STUDENT_LOGIN", true, Cost.NORMAL, 5000);
+    public static final ActionSpec LOGOUT = define("LOGOUT", true, Cost.LIGHT, 5000);
+    public static final ActionSpec VIEW_MODULES = define("VIEW_MODULES", true, Cost.LIGHT, 5000,
+            Routing.ANY_SHARD, false);
+    public static final ActionSpec REGISTER_MODULE = define("REGISTER_MODULE", false, Cost.NORMAL, 10000,
+            Routing.REGISTER, false);
+    public static final ActionSpec VIEW_REGISTERED_MODULES = define("VIEW_REGISTERED_MODULES", true, Cost.LIGHT, 5000);
+
+    // Admin operations - Student management
+    public static final ActionSpec ADD_STUDENT = define("ADD_STUDENT", false, Cost.NORMAL, 10000);
+    public static final ActionSpec EDIT_STUDENT = define("EDIT_STUDENT", false, Cost.NORMAL, 10000);
+    public static final ActionSpec VIEW_STUDENT = define("VIEW_STUDENT", true, Cost.LIGHT, 5000);
+    public static final ActionSpec LIST_STUDENTS = define("LIST_STUDENTS", true, Cost.HEAVY, 30000,
+            Routing.MERGE_LISTS, false);
+
+    // Admin operations - Module management
+    public static final ActionSpec ADD_MODULE = define("ADD_MODULE", false, Cost.NORMAL, 10000,
+            Routing.REPLICATE, false);
+    public static final ActionSpec EDIT_MODULE = define("EDIT_MODULE", false, Cost.NORMAL, 10000,
+            Routing.REPLICATE, false);
+    public static final ActionSpec VIEW_MODULE = define("VIEW_MODULE", true, Cost.LIGHT, 5000,
+            Routing.ANY_SHARD, false);
+    public static final ActionSpec LIST_MODULES = define("LIST_MODULES", true, Cost.HEAVY, 30000,
+            Routing.ANY_SHARD, false);
+    // These wait for the snapshot loader on startup, so they are not LIGHT
+    public static final ActionSpec MODULE_ROSTER = define("MODULE_ROSTER", true, Cost.NORMAL, 10000,
+            Routing.MERGE_LISTS, false);
+    public static final ActionSpec ENROLLMENT_COUNTS = define("ENROLLMENT_COUNTS", true, Cost.NORMAL, 10000,
+            Routing.SUM_COUNTS, false);
+
+    // Batch operations: many records in one request, applied in one pass and made durable
+    // together. IMPORT_STUDENTS streams a CSV file from the server's import directory.
+    public static final ActionSpec BULK_ADD_STUDENTS = define("BULK_ADD_STUDENTS", false, Cost.HEAVY, 60000,
+            Routing.SPLIT_BULK, false);
+    public static final ActionSpec BULK_EDIT_STUDENTS = define("BULK_EDIT_STUDENTS", false, Cost.HEAVY, 60000,
+            Routing.SPLIT_BULK, false);
+    public static final ActionSpec BULK_REGISTER_MODULES = define("BULK_REGISTER_MODULES", false, Cost.HEAVY, 60000,
+            Routing.BULK_REGISTER, false);
+    public static final ActionSpec IMPORT_STUDENTS = define("IMPORT_STUDENTS", false, Cost.HEAVY, 600000,
+            Routing.SINGLE_SERVER, false);
+
+    // Change notifications. SUBSCRIBE_CHANGES turns a TCP connection into a stream of
+    // change batches (the gateway holds one); SUBSCRIBE is a browser's request to the
+    // gateway for pushes and never reaches the TCP server.
+    public static final ActionSpec SUBSCRIBE_CHANGES = define("SUBSCRIBE_CHANGES", true, Cost.LIGHT, 5000,
+            Routing.BY_KEY, true);
+    public static final ActionSpec SUBSCRIBE = define("SUBSCRIBE", true, Cost.LIGHT, 5000);
+
+    // Rebalancing a sharded cluster: whole student records, registrations included, are
+    // copied to the shard that now owns them, then removed from the one they came from
+    // (tools.ShardRebalancer). Like SUBSCRIBE_CHANGES, the gateway does not forward them.
+    public static final ActionSpec PUT_STUDENTS = define("PUT_STUDENTS", false, Cost.HEAVY, 60000,
+            Routing.BY_KEY, true);
+    public static final ActionSpec REMOVE_STUDENTS = define("REMOVE_STUDENTS", false, Cost.HEAVY, 60000,
+            Routing.BY_KEY, true);
+
+    // Seats of a sharded cluster: the gateway takes a seat on the shard keeping the
+    // module's ledger before registering the student on theirs, and gives it back if that
+    // fails; a rebalance hands ledgers over to the shard that keeps them next. Internal to
+    // the cluster like PUT_STUDENTS.
+    public static final ActionSpec TAKE_SEATS = define("TAKE_SEATS", false, Cost.NORMAL, 10000, Routing.BY_KEY, true);
+    public static final ActionSpec RELEASE_SEATS = define("RELEASE_SEATS", false, Cost.NORMAL, 10000,
+            Routing.BY_KEY, true);
+    public static final ActionSpec HANDOVER_SEATS = define("HANDOVER_SEATS", false, Cost.HEAVY, 60000,
+            Routing.BY_KEY, true);
+    public static final ActionSpec PUT_SEATS = define("PUT_SEATS", false, Cost.HEAVY, 60000, Routing.BY_KEY, true);
+
+    private Actions() {}
+
+    // Registers an action, replacing any earlier definition with the same name. Unless
+    // said otherwise it is routed by key and browsers may send it.
+    public static ActionSpec define(String name, boolean readOnly, Cost cost, long timeoutMs) {
+        return define(name, readOnly, cost, timeoutMs, Routing.BY_KEY, false);
+    }
+
+    public static ActionSpec define(String name, boolean readOnly, Cost cost, long timeoutMs, Routing routing,
+                                    boolean internal) {
+        ActionSpec spec = new ActionSpec(name, Opcodes.of(name), readOnly, cost, timeoutMs, routing, internal);
+        BY_NAME.put(name, spec);
+        if (spec.opcode() != Opcodes.UNKNOWN) {
+            BY_OPCODE[spec.opcode()] = spec;
+        }
+        return spec;
+    }
+
+    // Null if the action is not defined
+    public static ActionSpec of(Request request) {
+        int opcode = request.getOpcode();
+        if (opcode > 0 && opcode < BY_OPCODE.length) {
+            ActionSpec spec = BY_OPCODE[opcode];
+            if (spec != null) return spec;
+        }
+        String action = request.getAction();
+        return action == null ? null : BY_NAME.get(action);
+    }
+
+    public static ActionSpec of(String name) {
+        return name == null ? null : BY_NAME.get(name);
+    }
+}
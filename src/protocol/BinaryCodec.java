@@ -0,0 +1,297 @@
+package protocol;
+
+import java.io.IOException;
+import java.util.*;
+import models.Module;
+import models.Request;
+import models.Response;
+import models.Student;
+
+// Compact binary codec for Request/Response.
+//
+// Request:  version, varint opcode (0 = followed by action string), varlong correlationId,
+//           requestId string, varint field count, then per field: varint tag
+//           (0 = followed by key string), value
+// Response: version, flags (bit 0 = success, bit 1 = has errorCode), varlong correlationId,
+//           requestId string, message string, [errorCode string,] value
+//
+// Values are a type byte followed by a type-specific body. Student and Module have
+// purpose-written field-by-field encodings; a PreEncoded value is copied as already
+// encoded; anything else unsupported is rejected.
+public final class BinaryCodec implements WireCodec {
+    public static final byte ID = 2;
+    private static final int VERSION = 4;
+
+    // Value types
+    static final int T_NULL = 0;
+    static final int T_STRING = 1;
+    static final int T_INT = 2;
+    static final int T_LONG = 3;
+    static final int T_DOUBLE = 4;
+    static final int T_TRUE = 5;
+    static final int T_FALSE = 6;
+    static final int T_LIST = 7;
+    static final int T_MAP = 8;
+    static final int T_STUDENT = 9;
+    static final int T_MODULE = 10;
+
+    // Well-known field names, encoded as a one-byte tag instead of the key string.
+    // Append-only, like Opcodes.
+    private static final String[] FIELD_NAMES = {
+            null,
+            "studentId",
+            "name",
+            "email",
+            "password",
+            "moduleCode",
+            "moduleName",
+            "description",
+            "credits",
+            "capacity",
+            "token",
+            "students",
+            "registrations",
+    };
+    private static final Map<String, Integer> FIELD_TAGS = new HashMap<>();
+    static {
+        for (int i = 1; i < FIELD_NAMES.length; i++) {
+            FIELD_TAGS.put(FIELD_NAMES[i], i);
+        }
+    }
+
+    private static final ThreadLocal<BinaryWriter> WRITERS = ThreadLocal.withInitial(() -> new BinaryWriter(512));
+
+    @Override
+    public byte id() { return ID; }
+
+    @Override
+    public String name() { return "binary"; }
+
+    @Override
+    public byte[] encodeRequest(Request request) throws IOException {
+        BinaryWriter w = writer();
+        w.writeByte(VERSION);
+        int opcode = request.getOpcode() != Opcodes.UNKNOWN ? request.getOpcode() : Opcodes.of(request.getAction());
+        w.writeVarInt(opcode);
+        if (opcode == Opcodes.UNKNOWN) {
+            w.writeString(request.getAction());
+        }
+        w.writeVarLong(request.getCorrelationId());
+        w.writeString(request.getRequestId());
+        writeFields(w, request.getData());
+        return w.toByteArray();
+    }
+
+    @Override
+    public Request decodeRequest(byte[] payload, int offset, int length) throws IOException {
+        BinaryReader r = new BinaryReader(payload, offset, length);
+        checkVersion(r);
+        int opcode = r.readVarInt();
+        Request request = new Request(opcode == Opcodes.UNKNOWN ? r.readString() : Opcodes.name(opcode));
+        if (request.getAction() == null) {
+            throw new IOException("Unknown opcode: " + opcode);
+        }
+        request.setOpcode(opcode);
+        request.setCorrelationId(r.readVarLong());
+        request.setRequestId(r.readString());
+        request.setData(readFields(r));
+        return request;
+    }
+
+    @Override
+    public byte[] encodeResponse(Response response) throws IOException {
+        BinaryWriter w = writer();
+        w.writeByte(VERSION);
+        w.writeByte((response.isSuccess() ? 1 : 0) | (response.getErrorCode() != null ? 2 : 0));
+        w.writeVarLong(response.getCorrelationId());
+        w.writeString(response.getRequestId());
+        w.writeString(response.getMessage());
+        if (response.getErrorCode() != null) {
+            w.writeString(response.getErrorCode());
+        }
+        writeValue(w, response.getData());
+        return w.toByteArray();
+    }
+
+    @Override
+    public Response decodeResponse(byte[] payload, int offset, int length) throws IOException {
+        BinaryReader r = new BinaryReader(payload, offset, length);
+        checkVersion(r);
+        int flags = r.readByte();
+        Response response = new Response();
+        response.setSuccess((flags & 1) != 0);
+        response.setCorrelationId(r.readVarLong());
+        response.setRequestId(r.readString());
+        response.setMessage(r.readString());
+        if ((flags & 2) != 0) {
+            response.setErrorCode(r.readString());
+        }
+        response.setData(readValue(r));
+        return response;
+    }
+
+    private static BinaryWriter writer() {
+        BinaryWriter w = WRITERS.get();
+        w.reset();
+        return w;
+    }
+
+    private static void checkVersion(BinaryReader r) throws IOException {
+        int version = r.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary codec version: " + version);
+        }
+    }
+
+    private static void writeFields(BinaryWriter w, Map<String, ?> fields) throws IOException {
+        if (fields == null) {
+            w.writeVarInt(0);
+            return;
+        }
+        w.writeVarInt(fields.size());
+        for (Map.Entry<String, ?> e : fields.entrySet()) {
+            Integer tag = FIELD_TAGS.get(e.getKey());
+            if (tag != null) {
+                w.writeVarInt(tag);
+            } else {
+                w.writeVarInt(0);
+                w.writeString(e.getKey());
+            }
+            writeValue(w, e.getValue());
+        }
+    }
+
+    private static Map<String, Object> readFields(BinaryReader r) throws IOException {
+        int count = r.readVarInt();
+        Map<String, Object> fields = new HashMap<>(Math.max(4, count * 2));
+        for (int i = 0; i < count; i++) {
+            int tag = r.readVarInt();
+            String key;
+            if (tag == 0) {
+                key = r.readString();
+            } else if (tag < FIELD_NAMES.length) {
+                key = FIELD_NAMES[tag];
+            } else {
+                throw new IOException("Unknown field tag: " + tag);
+            }
+            fields.put(key, readValue(r));
+        }
+        return fields;
+    }
+
+    static void writeValue(BinaryWriter w, Object value) throws IOException {
+        if (value == null) {
+            w.writeByte(T_NULL);
+        } else if (value instanceof String) {
+            w.writeByte(T_STRING);
+            w.writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            w.writeByte(T_INT);
+            w.writeZigZagInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            w.writeByte(T_LONG);
+            w.writeZigZagLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            w.writeByte(T_DOUBLE);
+            w.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean) {
+            w.writeByte((Boolean) value ? T_TRUE : T_FALSE);
+        } else if (value instanceof PreEncoded) {
+            byte[] binary = ((PreEncoded) value).binary();
+            w.writeBytes(binary, 0, binary.length);
+        } else if (value instanceof Student) {
+            w.writeByte(T_STUDENT);
+            writeStudent(w, (Student) value);
+        } else if (value instanceof Module) {
+            w.writeByte(T_MODULE);
+            writeModule(w, (Module) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            w.writeByte(T_LIST);
+            w.writeVarInt(list.size());
+            for (Object item : list) {
+                writeValue(w, item);
+            }
+        } else if (value instanceof Map) {
+            w.writeByte(T_MAP);
+            @SuppressWarnings("unchecked")
+            Map<String, ?> map = (Map<String, ?>) value;
+            writeFields(w, map);
+        } else {
+            throw new IOException("Binary codec cannot encode " + value.getClass().getName());
+        }
+    }
+
+    static Object readValue(BinaryReader r) throws IOException {
+        int type = r.readByte();
+        switch (type) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return r.readString();
+            case T_INT:
+                return r.readZigZagInt();
+            case T_LONG:
+                return r.readZigZagLong();
+            case T_DOUBLE:
+                return Double.longBitsToDouble(r.readLong());
+            case T_TRUE:
+                return Boolean.TRUE;
+            case T_FALSE:
+                return Boolean.FALSE;
+            case T_STUDENT:
+                return readStudent(r);
+            case T_MODULE:
+                return readModule(r);
+            case T_LIST: {
+                int size = r.readVarInt();
+                List<Object> list = new ArrayList<>(Math.min(size, 1024));
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(r));
+                }
+                return list;
+            }
+            case T_MAP:
+                return readFields(r);
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    public static void writeStudent(BinaryWriter w, Student s) {
+        w.writeString(s.getStudentId());
+        w.writeString(s.getName());
+        w.writeString(s.getEmail());
+        w.writeString(s.getPassword());
+        List<String> registered = s.getRegisteredModules();
+        int count = registered == null ? 0 : registered.size();
+        w.writeVarInt(count);
+        for (int i = 0; i < count; i++) {
+            w.writeString(registered.get(i));
+        }
+    }
+
+    public static Student readStudent(BinaryReader r) throws IOException {
+        Student s = new Student(r.readString(), r.readString(), r.readString(), r.readString());
+        int count = r.readVarInt();
+        for (int i = 0; i < count; i++) {
+            s.getRegisteredModules().add(r.readString());
+        }
+        return s;
+    }
+
+    public static void writeModule(BinaryWriter w, Module m) {
+        w.writeString(m.getModuleCode());
+        w.writeString(m.getModuleName());
+        w.writeString(m.getDescription());
+        w.writeZigZagInt(m.getCredits());
+        w.writeVarInt(m.getCapacity());
+    }
+
+    // Log and snapshot records written before modules had a capacity end after credits
+    public static Module readModule(BinaryReader r) throws IOException {
+        Module m = new Module(r.readString(), r.readString(), r.readString(), r.readZigZagInt());
+        if (r.hasRemaining()) m.setCapacity(r.readVarInt());
+        return m;
+    }
+}
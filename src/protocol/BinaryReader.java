@@ -0,0 +1,98 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Bounds-checked reader over a byte range written by BinaryWriter
+public final class BinaryReader {
+    private final byte[] buf;
+    private final int limit;
+    private int pos;
+
+    public BinaryReader(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public boolean hasRemaining() {
+        return pos < limit;
+    }
+
+    private void require(int n) throws IOException {
+        if (n < 0 || limit - pos < n) {
+            throw new IOException("Truncated binary message");
+        }
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return buf[pos++] & 0xFF;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        int v = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+                | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+        pos += 4;
+        return v;
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (buf[pos++] & 0xFF);
+        }
+        return v;
+    }
+
+    public int readVarInt() throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    public int readZigZagInt() throws IOException {
+        int v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public long readZigZagLong() throws IOException {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public String readString() throws IOException {
+        int n = readVarInt();
+        if (n == 0) return null;
+        int len = n - 1;
+        require(len);
+        String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+
+    public void skip(int n) throws IOException {
+        require(n);
+        pos += n;
+    }
+}
@@ -0,0 +1,35 @@
+package protocol;
+
+import java.io.*;
+
+// Length-prefixed message framing shared by the TCP server and the gateway.
+// Every message is a 4-byte big-endian length followed by that many payload bytes,
+// so both blocking streams and NIO selector loops can find message boundaries.
+public final class Framing {
+    public static final int HEADER_BYTES = 4;
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private Framing() {}
+
+    public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    // Returns null on a clean end of stream between frames
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int b0 = in.read();
+        if (b0 == -1) return null;
+        int length = (b0 << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package protocol;
+
+import java.io.*;
+import models.Request;
+import models.Response;
+
+// Fallback codec: plain Java serialization, one independent stream per frame so
+// no handle table survives between messages on a long-lived connection
+public final class JavaSerializationCodec implements WireCodec {
+    public static final byte ID = 1;
+
+    @Override
+    public byte id() { return ID; }
+
+    @Override
+    public String name() { return "java"; }
+
+    @Override
+    public byte[] encodeRequest(Request request) throws IOException {
+        return serialize(request);
+    }
+
+    @Override
+    public Request decodeRequest(byte[] payload, int offset, int length) throws IOException {
+        return expect(Request.class, deserialize(payload, offset, length));
+    }
+
+    @Override
+    public byte[] encodeResponse(Response response) throws IOException {
+        return serialize(response);
+    }
+
+    @Override
+    public Response decodeResponse(byte[] payload, int offset, int length) throws IOException {
+        return expect(Response.class, deserialize(payload, offset, length));
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] payload, int offset, int length) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in frame: " + e.getMessage(), e);
+        }
+    }
+    
+    private static <T> T expect(Class<T> type, Object obj) throws IOException {
+        if (!type.isInstance(obj)) {
+            throw new IOException("Expected " + type.getSimpleName() + " but got "
+                    + (obj == null ? "null" : obj.getClass().getName()));
+        }
+        return type.cast(obj);
+    }
+}
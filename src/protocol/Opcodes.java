@@ -0,0 +1,59 @@
+package protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Numeric action codes used on the binary wire. Codes are append-only:
+// never renumber an existing action, only add new ones at the end.
+public final class Opcodes {
+    public static final int UNKNOWN = 0;
+
+    private static final String[] NAMES = {
+            null,
+            "PING",
+            "STUDENT_LOGIN",
+            "VIEW_MODULES",
+            "REGISTER_MODULE",
+            "VIEW_REGISTERED_MODULES",
+            "ADD_STUDENT",
+            "EDIT_STUDENT",
+            "VIEW_STUDENT",
+            "LIST_STUDENTS",
+            "ADD_MODULE",
+            "EDIT_MODULE",
+            "VIEW_MODULE",
+            "LIST_MODULES",
+            "MODULE_ROSTER",
+            "ENROLLMENT_COUNTS",
+            "LOGOUT",
+            "METRICS",
+            "BULK_ADD_STUDENTS",
+            "BULK_EDIT_STUDENTS",
+            "BULK_REGISTER_MODULES",
+            "IMPORT_STUDENTS",
+            "SUBSCRIBE_CHANGES",
+    };
+
+    private static final Map<String, Integer> CODES = new HashMap<>();
+    static {
+        for (int i = 1; i < NAMES.length; i++) {
+            CODES.put(NAMES[i], i);
+        }
+    }
+
+    private Opcodes() {}
+
+    public static int of(String action) {
+        if (action == null) return UNKNOWN;
+        Integer code = CODES.get(action);
+        return code == null ? UNKNOWN : code;
+    }
+
+    public static String name(int opcode) {
+        return opcode > 0 && opcode < NAMES.length ? NAMES[opcode] : null;
+    }
+
+    public static int count() {
+        return NAMES.length;
+    }
+}
@@ -0,0 +1,31 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+// A response value whose BinaryCodec encoding was computed once up front. BinaryCodec
+// copies the bytes instead of walking the value again; Java serialization sends the
+// plain value, so peers on either codec decode the same thing as before.
+// The value must not change after it is wrapped.
+public final class PreEncoded implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Object value;
+    private final transient byte[] binary;
+
+    public PreEncoded(Object value) throws IOException {
+        BinaryWriter w = new BinaryWriter(1024);
+        BinaryCodec.writeValue(w, value);
+        this.value = value;
+        this.binary = w.toByteArray();
+    }
+
+    public Object value() { return value; }
+
+    byte[] binary() { return binary; }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return value;
+    }
+}
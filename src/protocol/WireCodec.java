@@ -0,0 +1,21 @@
+package protocol;
+
+import java.io.IOException;
+import models.Request;
+import models.Response;
+
+// Encodes Request/Response payloads carried inside length-prefixed frames.
+// Implementations must be thread-safe.
+public interface WireCodec {
+    byte id();
+
+    String name();
+
+    byte[] encodeRequest(Request request) throws IOException;
+
+    Request decodeRequest(byte[] payload, int offset, int length) throws IOException;
+
+    byte[] encodeResponse(Response response) throws IOException;
+
+    Response decodeResponse(byte[] payload, int offset, int length) throws IOException;
+}
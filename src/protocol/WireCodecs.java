@@ -0,0 +1,78 @@
+package protocol;
+
+import java.io.IOException;
+
+// Codec registry and connect-time negotiation.
+//
+// The client's first frame is a hello: magic "SMW1" followed by the codec IDs it
+// supports, most preferred first. The server answers with magic plus the chosen ID.
+// A client whose first frame is not a hello is taken to predate negotiation: that
+// frame and the rest are decoded with Java serialization. Only framed peers are
+// served; a raw Java object stream without length prefixes is not detected, and its
+// first bytes (0xACED0005) are rejected as an invalid frame length.
+public final class WireCodecs {
+    public static final WireCodec JAVA = new JavaSerializationCodec();
+    public static final WireCodec BINARY = new BinaryCodec();
+
+    private static final byte[] MAGIC = {'S', 'M', 'W', '1'};
+
+    private WireCodecs() {}
+
+    public static WireCodec byId(int id) {
+        if (id == BinaryCodec.ID) return BINARY;
+        if (id == JavaSerializationCodec.ID) return JAVA;
+        return null;
+    }
+
+    // Unknown names fall back to Java serialization
+    public static WireCodec byName(String name) {
+        return BINARY.name().equalsIgnoreCase(name) ? BINARY : JAVA;
+    }
+
+    public static byte[] hello(WireCodec preferred) {
+        if (preferred == JAVA) {
+            return withMagic(JavaSerializationCodec.ID);
+        }
+        return withMagic(preferred.id(), JavaSerializationCodec.ID);
+    }
+
+    public static boolean isHello(byte[] frame) {
+        if (frame.length < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (frame[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    // Server side: first codec in the client's preference list that we support
+    public static WireCodec select(byte[] hello) throws IOException {
+        for (int i = MAGIC.length; i < hello.length; i++) {
+            WireCodec codec = byId(hello[i]);
+            if (codec != null) return codec;
+        }
+        throw new IOException("No common wire codec");
+    }
+
+    public static byte[] ack(WireCodec chosen) {
+        return withMagic(chosen.id());
+    }
+
+    // Client side
+    public static WireCodec parseAck(byte[] frame) throws IOException {
+        if (!isHello(frame) || frame.length != MAGIC.length + 1) {
+            throw new IOException("Invalid codec negotiation reply");
+        }
+        WireCodec codec = byId(frame[MAGIC.length]);
+        if (codec == null) {
+            throw new IOException("Server chose unknown codec " + frame[MAGIC.length]);
+        }
+        return codec;
+    }
+
+    private static byte[] withMagic(byte... ids) {
+        byte[] frame = new byte[MAGIC.length + ids.length];
+        System.arraycopy(MAGIC, 0, frame, 0, MAGIC.length);
+        System.arraycopy(ids, 0, frame, MAGIC.length, ids.length);
+        return frame;
+    }
+}
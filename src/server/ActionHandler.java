@@ -0,0 +1,10 @@
+package server;
+
+import models.Request;
+import models.Response;
+
+// Executes one action on the TCP server; registered with TCPServer.registerAction
+@FunctionalInterface
+public interface ActionHandler {
+    Response handle(Request request) throws Exception;
+}
@@ -0,0 +1,54 @@
+package server;
+
+import common.ConcurrencyLimiter;
+import common.Metrics;
+import java.util.concurrent.atomic.LongAdder;
+import models.Response;
+import protocol.ActionSpec;
+
+// Decides whether the TCP server runs a request or refuses it as overloaded. LIGHT
+// actions always run: they cost less than refusing them would save. Everything else
+// must get a slot from the adaptive concurrency limiter, and must not have waited in a
+// queue longer than the gateway waits for its reply (nobody would read the answer).
+// Refusals carry Response.OVERLOADED and happen before the handler runs, so a client
+// may safely send the request again later.
+final class AdmissionControl {
+    private final ConcurrencyLimiter limiter;
+    private final LongAdder refusedLimit;
+    private final LongAdder refusedExpired;
+    private final LongAdder refusedQueueFull;
+
+    AdmissionControl(Metrics metrics, int initialLimit, int minLimit, int maxLimit) {
+        this.limiter = new ConcurrencyLimiter(initialLimit, minLimit, maxLimit);
+        this.refusedLimit = metrics.counter("overload_refused_limit_total");
+        this.refusedExpired = metrics.counter("overload_refused_expired_total");
+        this.refusedQueueFull = metrics.counter("overload_refused_queue_full_total");
+        metrics.gauge("concurrency_limit", limiter::limit);
+        metrics.gauge("admitted_in_flight", limiter::inFlight);
+    }
+
+    // Null if the request was admitted, in which case the caller must call release;
+    // otherwise the refusal to send back
+    Response admit(ActionSpec spec, long receivedNanos) {
+        if (spec.cost() == ActionSpec.Cost.LIGHT) return null;
+        if (System.nanoTime() - receivedNanos > spec.timeoutMs() * 1_000_000) {
+            refusedExpired.increment();
+            return Response.overloaded("Server busy, please try again");
+        }
+        if (!limiter.tryAcquire()) {
+            refusedLimit.increment();
+            return Response.overloaded("Server busy, please try again");
+        }
+        return null;
+    }
+
+    void release(ActionSpec spec, long latencyNanos) {
+        if (spec.cost() != ActionSpec.Cost.LIGHT) limiter.release(latencyNanos);
+    }
+
+    // For a request the worker queue had no room for
+    Response queueFull() {
+        refusedQueueFull.increment();
+        return Response.overloaded("Server busy, please try again");
+    }
+}
@@ -0,0 +1,163 @@
+package server;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import models.Response;
+
+// Numbered stream of recent catalog and enrollment changes, for the gateway to push to
+// browsers instead of having them poll. Mutating handlers publish an event while they
+// still hold the changed entry's lock, so events for one key are numbered in the order
+// the changes were applied; publishing is therefore lock-free, a claimed number and a
+// slot in a ring. Only the newest `capacity` events are kept: a subscriber
+// that falls further behind (or resumes after a server restart) is told to resync,
+// i.e. to refetch what it shows, rather than being replayed everything it missed.
+//
+// A subscriber is a connection that sent SUBSCRIBE_CHANGES; serve() then runs on a
+// thread of its own and sends it batches of events as they appear. The first batch goes
+// out at once, so the subscriber learns where it starts; after that an empty batch every
+// heartbeat lets either side notice a dead connection.
+final class ChangeFeed {
+    // Sends one batch to the subscriber; throws once the connection is gone or too slow
+    interface Sink {
+        void send(Response batch) throws IOException;
+    }
+
+    private static final int MAX_BATCH = 512;
+    private static final long HEARTBEAT_MS = 15000;
+
+    // One published event with its sequence number. A reader checks the number against
+    // the one it expects: lower means the slot is claimed but not yet written, higher
+    // that it was overwritten by a newer event.
+    private static final class Slot {
+        final long seq;
+        final Object event;
+
+        Slot(long seq, Object event) {
+            this.seq = seq;
+            this.event = event;
+        }
+    }
+
+    private final AtomicReferenceArray<Slot> ring;
+    // Sequence number of the first event. Starts from the clock (in microseconds) so a
+    // restarted server never reuses numbers a subscriber saw from the last run.
+    private final long firstSeq = System.currentTimeMillis() * 1000;
+    // Sequence number the next event claims
+    private final AtomicLong nextSeq = new AtomicLong(firstSeq);
+    // Threads in serve(), unparked after every publish
+    private final Set<Thread> readers = ConcurrentHashMap.newKeySet();
+
+    ChangeFeed(int capacity) {
+        this.ring = new AtomicReferenceArray<>(Math.max(16, capacity));
+    }
+
+    // {"type": "module", "module": <state after the change>}
+    void moduleChanged(models.Module module) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "module");
+        event.put("module", new models.Module(module.getModuleCode(), module.getModuleName(),
+                module.getDescription(), module.getCredits(), module.getCapacity()));
+        publish(event);
+    }
+
+    // {"type": "enrollment", "moduleCode", "enrolled": <seats taken>}. Counts only ever
+    // grow, so a reader that sees two for one module may keep the larger.
+    void enrolled(String moduleCode, int enrolled) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "enrollment");
+        event.put("moduleCode", moduleCode);
+        event.put("enrolled", enrolled);
+        publish(event);
+    }
+
+    // Takes no lock, as it runs under the changed entry's lock: claims a number, fills
+    // its slot and unparks the readers, which then look for themselves.
+    private void publish(Map<String, Object> event) {
+        long seq = nextSeq.getAndIncrement();
+        ring.set(index(seq), new Slot(seq, event));
+        for (Thread reader : readers) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    // Sends batches of events after afterSeq until the sink fails or the thread is
+    // interrupted. A null afterSeq starts from the current end of the feed.
+    void serve(Long afterSeq, Sink sink) throws IOException, InterruptedException {
+        Thread self = Thread.currentThread();
+        readers.add(self);
+        try {
+            long cursor = afterSeq == null ? publishedEnd() : afterSeq;
+            boolean first = true;
+            while (true) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS);
+                long wait;
+                while (!first && !ready(cursor) && (wait = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    if (Thread.interrupted()) throw new InterruptedException();
+                }
+                List<Object> events = new ArrayList<>();
+                long end = nextSeq.get() - 1;
+                // Behind the oldest event kept, from an earlier run, or ahead of the newest
+                // (a restart)
+                boolean resync = cursor < Math.max(firstSeq - 1, end - ring.length()) || cursor > end;
+                for (long seq = cursor + 1; !resync && seq <= end && events.size() < MAX_BATCH; seq++) {
+                    Slot slot = ring.get(index(seq));
+                    if (slot == null || slot.seq < seq) break;
+                    if (slot.seq > seq) {
+                        resync = true;
+                    } else {
+                        events.add(slot.event);
+                    }
+                }
+                if (resync) {
+                    events.clear();
+                    cursor = publishedEnd();
+                }
+                long last = cursor + events.size();
+                Map<String, Object> batch = new LinkedHashMap<>();
+                batch.put("seq", last);
+                batch.put("resync", resync);
+                batch.put("events", events);
+                sink.send(new Response(true, "Changes", batch));
+                cursor = last;
+                first = false;
+            }
+        } finally {
+            readers.remove(self);
+        }
+    }
+
+    // Whether a reader at cursor has anything to send: the next event is written, or the
+    // reader has to resync.
+    private boolean ready(long cursor) {
+        long end = nextSeq.get() - 1;
+        if (cursor >= end) return cursor > end;
+        if (cursor < Math.max(firstSeq - 1, end - ring.length())) return true;
+        Slot slot = ring.get(index(cursor + 1));
+        return slot != null && slot.seq >= cursor + 1;
+    }
+
+    // The newest sequence number up to which every event is written, where a reader
+    // starts or resyncs. Stops before a number that is claimed but not yet written, so
+    // that event still reaches the reader.
+    private long publishedEnd() {
+        long end = nextSeq.get() - 1;
+        long seq = Math.max(firstSeq - 1, end - ring.length());
+        while (seq < end) {
+            Slot slot = ring.get(index(seq + 1));
+            if (slot == null || slot.seq < seq + 1) break;
+            seq++;
+        }
+        return seq;
+    }
+
+    private int index(long seq) {
+        return (int) (seq % ring.length());
+    }
+}
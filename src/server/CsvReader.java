@@ -0,0 +1,87 @@
+package server;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Streaming CSV reader (RFC 4180): comma-separated cells, optionally in double quotes,
+// with "" for a quote inside a quoted cell, which may also span lines. Reads one record
+// at a time, so memory is bounded by the longest record, not the file.
+final class CsvReader implements Closeable {
+    private final Reader in;
+    private int line = 1;     // line the next character is on
+    private int recordLine;   // line the last record started on
+    private int peeked = -2;  // -2 = nothing peeked
+
+    CsvReader(Reader in) {
+        this.in = in instanceof BufferedReader ? in : new BufferedReader(in);
+    }
+
+    // The next record's cells, or null at the end of the input
+    List<String> next() throws IOException {
+        int c = read();
+        if (c == -1) return null;
+        recordLine = line;
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        boolean cellStart = true;
+        while (true) {
+            if (quoted) {
+                if (c == -1) throw new IOException("Unterminated quote in the record starting on line " + recordLine);
+                if (c == '"') {
+                    if (peek() == '"') {
+                        cell.append('"');
+                        read();
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    if (c == '\n') line++;
+                    cell.append((char) c);
+                }
+            } else if (c == '"' && cellStart) {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+                cellStart = true;
+                c = read();
+                continue;
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r' && peek() == '\n') read();
+                if (c != -1) line++;
+                cells.add(cell.toString());
+                return cells;
+            } else {
+                cell.append((char) c);
+            }
+            cellStart = false;
+            c = read();
+        }
+    }
+
+    // Line number the record last returned by next() started on (the header is line 1)
+    int recordLine() {
+        return recordLine;
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return in.read();
+    }
+
+    private int peek() throws IOException {
+        if (peeked == -2) peeked = in.read();
+        return peeked;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
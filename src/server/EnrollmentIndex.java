@@ -0,0 +1,81 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import models.Student;
+
+// Reverse of Student.registeredModules: module code -> IDs of the students enrolled in
+// it, kept in sort order so rosters page by cursor, plus the number of seats taken per
+// module. Registrations are never cancelled; entries are only removed when a student
+// moves to another shard of a cluster. Adding one twice is harmless. A count and its
+// roster may briefly differ by changes in progress.
+public final class EnrollmentIndex {
+    private static final class Roster {
+        final ConcurrentSkipListSet<String> studentIds = new ConcurrentSkipListSet<>();
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    private final ConcurrentHashMap<String, Roster> byModule = new ConcurrentHashMap<>();
+
+    // Returns false if the student was already enrolled
+    public boolean add(String moduleCode, String studentId) {
+        Roster roster = roster(moduleCode);
+        if (!roster.studentIds.add(studentId)) return false;
+        roster.count.incrementAndGet();
+        return true;
+    }
+
+    // Takes a seat with a compare-and-set on the module's counter, so registrations of
+    // different students never block each other and a module is never oversubscribed.
+    // capacity <= 0 means unlimited. Returns false if the module is full. The caller
+    // holds the student's lock and has checked the student is not enrolled yet.
+    public boolean tryEnroll(String moduleCode, String studentId, int capacity) {
+        Roster roster = roster(moduleCode);
+        while (true) {
+            int taken = roster.count.get();
+            if (capacity > 0 && taken >= capacity) return false;
+            if (roster.count.compareAndSet(taken, taken + 1)) break;
+        }
+        if (!roster.studentIds.add(studentId)) {
+            roster.count.decrementAndGet(); // indexed already; don't count them twice
+        }
+        return true;
+    }
+
+    private Roster roster(String moduleCode) {
+        Roster roster = byModule.get(moduleCode);
+        return roster != null ? roster : byModule.computeIfAbsent(moduleCode, code -> new Roster());
+    }
+
+    // Caller must keep the student from changing while it is read
+    public void addAll(Student student) {
+        for (String moduleCode : student.getRegisteredModules()) {
+            add(moduleCode, student.getStudentId());
+        }
+    }
+
+    // Gives back the seats of a student who moved to another shard; caller holds the
+    // student's lock
+    public void removeAll(Student student) {
+        for (String moduleCode : student.getRegisteredModules()) {
+            Roster roster = byModule.get(moduleCode);
+            if (roster != null && roster.studentIds.remove(student.getStudentId())) {
+                roster.count.decrementAndGet();
+            }
+        }
+    }
+
+    public int count(String moduleCode) {
+        Roster roster = byModule.get(moduleCode);
+        return roster == null ? 0 : roster.count.get();
+    }
+
+    // Live, read-only view in student ID order
+    public NavigableSet<String> studentIds(String moduleCode) {
+        Roster roster = byModule.get(moduleCode);
+        return roster == null ? Collections.emptyNavigableSet()
+                : Collections.unmodifiableNavigableSet(roster.studentIds);
+    }
+}
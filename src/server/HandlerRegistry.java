@@ -0,0 +1,56 @@
+package server;
+
+import common.Metrics;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import models.Request;
+import protocol.ActionSpec;
+
+// Action -> handler table for the TCP server. Requests whose codec resolved an opcode
+// find their handler by array index; others (actions outside the opcode table) by name.
+// Registration copies the array, so lookups never lock and handlers can be added while
+// the server runs. Each entry carries its action's timer, so recording a request's
+// latency needs no further lookup.
+final class HandlerRegistry {
+    static final class Entry {
+        final ActionSpec spec;
+        final ActionHandler handler;
+        final Metrics.Timer timer;
+
+        Entry(ActionSpec spec, ActionHandler handler, Metrics.Timer timer) {
+            this.spec = spec;
+            this.handler = handler;
+            this.timer = timer;
+        }
+    }
+
+    private final Metrics metrics;
+    private volatile Entry[] byOpcode = new Entry[0];
+    private final Map<String, Entry> byName = new ConcurrentHashMap<>();
+
+    HandlerRegistry(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    synchronized void register(ActionSpec spec, ActionHandler handler) {
+        Entry entry = new Entry(spec, handler, metrics.timer("request", spec.name()));
+        byName.put(spec.name(), entry);
+        if (spec.opcode() > 0) {
+            Entry[] table = Arrays.copyOf(byOpcode, Math.max(byOpcode.length, spec.opcode() + 1));
+            table[spec.opcode()] = entry;
+            byOpcode = table;
+        }
+    }
+
+    // Null for an action nobody registered
+    Entry lookup(Request request) {
+        int opcode = request.getOpcode();
+        Entry[] table = byOpcode;
+        if (opcode > 0 && opcode < table.length && table[opcode] != null) {
+            return table[opcode];
+        }
+        String action = request.getAction();
+        return action == null ? null : byName.get(action);
+    }
+}
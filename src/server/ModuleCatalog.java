@@ -0,0 +1,43 @@
+package server;
+
+import java.io.IOException;
+import java.util.*;
+import models.Module;
+import protocol.PreEncoded;
+
+// Immutable copy of the module catalog at one version, with the reply values for
+// VIEW_MODULES encoded once when it is built. TCPServer rebuilds it lazily after
+// ADD_MODULE / EDIT_MODULE bump the version.
+final class ModuleCatalog {
+    private final long version;
+    private final List<Module> modules;
+    private final PreEncoded list;        // the bare list, for clients that send no version
+    private final PreEncoded versioned;   // {"version", "modules"}
+    private final PreEncoded notModified; // {"version", "notModified": true}
+
+    ModuleCatalog(long version, List<Module> modules) throws IOException {
+        this.version = version;
+        this.modules = Collections.unmodifiableList(new ArrayList<>(modules));
+        this.list = new PreEncoded(this.modules);
+
+        Map<String, Object> full = new LinkedHashMap<>();
+        full.put("version", version);
+        full.put("modules", this.modules);
+        this.versioned = new PreEncoded(full);
+
+        Map<String, Object> unchanged = new LinkedHashMap<>();
+        unchanged.put("version", version);
+        unchanged.put("notModified", true);
+        this.notModified = new PreEncoded(unchanged);
+    }
+
+    long version() { return version; }
+
+    List<Module> modules() { return modules; }
+
+    PreEncoded list() { return list; }
+
+    PreEncoded versioned() { return versioned; }
+
+    PreEncoded notModified() { return notModified; }
+}
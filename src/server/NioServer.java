@@ -0,0 +1,407 @@
+package server;
+
+import common.Log;
+import common.ThreadPools;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import models.Request;
+import models.Response;
+import protocol.Actions;
+import protocol.Framing;
+import protocol.WireCodec;
+import protocol.WireCodecs;
+
+// Non-blocking alternative to the thread-per-connection ClientHandler.
+// A fixed set of selector event loops owns all socket I/O; decoded requests are
+// handed to a separate worker pool that runs ClientHandler.processRequest.
+// Idle connections hold no thread and no read buffer. A connection with
+// TCPServer.MAX_IN_FLIGHT requests executing stops reading until one completes; once
+// the workers' queue is full, further requests are refused as overloaded. As in
+// blocking mode, a request without a correlation ID waits for everything before it and
+// runs alone, so a client that matches replies by order gets them in order.
+class NioServer {
+    private static final Log LOG = Log.get("tcp-server");
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    // Change batches a subscriber may leave unsent before it is disconnected
+    private static final int MAX_FEED_BACKLOG = 256;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    NioServer(int port, int eventLoops, int workerThreads) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        this.workers = ThreadPools.newBoundedExecutor("nio-worker", workerThreads, TCPServer.REQUEST_QUEUE);
+        TCPServer.METRICS.gauge("nio_workers_active", workers::getActiveCount);
+        TCPServer.METRICS.gauge("nio_queue_depth", () -> workers.getQueue().size());
+    }
+
+    void start() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("TCP Server (NIO, " + loops.length + " event loops) started on port " + port);
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                if (TCPServer.openConnections.get() >= TCPServer.MAX_CONNECTIONS) {
+                    TCPServer.REJECTED_CONNECTIONS.increment();
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                LOG.info("New client connected: {}", channel.socket().getInetAddress());
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        // Shared by every connection on this loop; only partial frames are copied out
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingResumes = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleResume(Connection connection) {
+            pendingResumes.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = pendingRegistrations.poll()) != null) {
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new Connection(this, channel, key));
+                    }
+
+                    Connection pending;
+                    while ((pending = pendingWrites.poll()) != null) {
+                        pending.flush();
+                    }
+                    while ((pending = pendingResumes.poll()) != null) {
+                        try {
+                            pending.resume();
+                        } catch (IOException e) {
+                            pending.close();
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) continue;
+                        try {
+                            if (key.isReadable()) connection.read();
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    LOG.error("Event loop error", e);
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean paused; // reads stopped at the in-flight cap; set by the event loop
+        private boolean writeBlocked; // waiting for OP_WRITE, event loop only
+        private ByteBuffer partial; // leftover bytes of an incomplete frame, event loop only
+        private WireCodec codec; // negotiated by the first frame, event loop only
+        // An untagged request waiting for the ones in flight to finish, event loop only
+        private Request waiting;
+        private WireCodec waitingCodec;
+        private long waitingReceived;
+        private volatile Thread changeFeed; // streams SUBSCRIBE_CHANGES batches, if subscribed
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            TCPServer.openConnections.incrementAndGet();
+        }
+
+        // Event loop thread only
+        void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            while (true) {
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n == -1) {
+                    LOG.info("Client disconnected");
+                    close();
+                    return;
+                }
+                if (n == 0) return;
+                buffer.flip();
+                consume(buffer);
+                if (paused) return;
+            }
+        }
+
+        // Event loop thread, after a worker finished while reads were paused
+        void resume() throws IOException {
+            if (!paused || !key.isValid()) return;
+            paused = false;
+            if (partial != null) {
+                partial.flip();
+                dispatchFrames(partial);
+                partial = partial.hasRemaining() ? partial.compact() : null;
+            } else {
+                startWaiting();
+            }
+            updateInterest();
+        }
+
+        private void consume(ByteBuffer buffer) throws IOException {
+            if (partial != null) {
+                partial = append(partial, buffer);
+                partial.flip();
+                dispatchFrames(partial);
+                partial = partial.hasRemaining() ? partial.compact() : null;
+            } else {
+                dispatchFrames(buffer);
+                if (buffer.hasRemaining()) {
+                    partial = append(ByteBuffer.allocate(Math.max(buffer.remaining(), 256)), buffer);
+                }
+            }
+        }
+
+        private void dispatchFrames(ByteBuffer buffer) throws IOException {
+            while (buffer.remaining() >= Framing.HEADER_BYTES) {
+                if (!startWaiting()) return;
+                if (inFlight.get() >= TCPServer.MAX_IN_FLIGHT) {
+                    // Publish paused before re-checking, so a worker finishing now either
+                    // sees it and schedules a resume or is seen here as a free slot
+                    paused = true;
+                    if (inFlight.get() >= TCPServer.MAX_IN_FLIGHT) {
+                        updateInterest();
+                        return;
+                    }
+                    paused = false;
+                }
+                int length = buffer.getInt(buffer.position());
+                Framing.checkLength(length);
+                if (buffer.remaining() < Framing.HEADER_BYTES + length) return;
+
+                byte[] payload = new byte[length];
+                TCPServer.BYTES_IN.add(Framing.HEADER_BYTES + length);
+                buffer.position(buffer.position() + Framing.HEADER_BYTES);
+                buffer.get(payload);
+                
+                if (codec == null) {
+                    if (WireCodecs.isHello(payload)) {
+                        codec = WireCodecs.select(payload);
+                        enqueue(WireCodecs.ack(codec));
+                        continue;
+                    }
+                    // A framed request without a hello: a client from before negotiation, which
+                    // speaks Java serialization
+                    codec = WireCodecs.JAVA;
+                }
+                long received = System.nanoTime();
+                Request request;
+                try {
+                    request = codec.decodeRequest(payload, 0, payload.length);
+                } catch (RuntimeException e) {
+                    throw new IOException("Malformed request", e);
+                }
+                if (request.getCorrelationId() == 0) {
+                    // Client does not match replies by ID: answer strictly in order
+                    waiting = request;
+                    waitingCodec = codec;
+                    waitingReceived = received;
+                    continue;
+                }
+                execute(codec, request, received, 1);
+            }
+            startWaiting();
+        }
+
+        // Starts the waiting untagged request once nothing else is in flight. It takes
+        // every slot while it runs, so reads stay paused until it is done. Returns false,
+        // with reads paused, while it still has to wait.
+        private boolean startWaiting() throws IOException {
+            if (waiting == null) return true;
+            if (inFlight.get() != 0) {
+                // Same handshake with finishing workers as for the in-flight cap
+                paused = true;
+                if (inFlight.get() != 0) {
+                    updateInterest();
+                    return false;
+                }
+                paused = false;
+            }
+            Request request = waiting;
+            waiting = null;
+            execute(waitingCodec, request, waitingReceived, TCPServer.MAX_IN_FLIGHT);
+            return true;
+        }
+
+        private void execute(WireCodec codec, Request request, long received, int slots) throws IOException {
+            inFlight.addAndGet(slots);
+            try {
+                workers.execute(() -> handle(codec, request, received, slots));
+            } catch (RejectedExecutionException e) {
+                inFlight.addAndGet(-slots);
+                refuse(codec, request);
+            }
+        }
+
+        // partial is in write mode on entry and on return
+        private ByteBuffer append(ByteBuffer partial, ByteBuffer src) {
+            if (partial.remaining() < src.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(partial.capacity() * 2, partial.position() + src.remaining()));
+                partial.flip();
+                grown.put(partial);
+                partial = grown;
+            }
+            partial.put(src);
+            return partial;
+        }
+
+        // Event loop thread: the worker queue is full, so answer without running it
+        private void refuse(WireCodec codec, Request request) throws IOException {
+            enqueue(codec.encodeResponse(TCPServer.ClientHandler.reply(request,
+                    TCPServer.ClientHandler.ADMISSION.queueFull())));
+        }
+
+        // Worker thread
+        private void handle(WireCodec codec, Request request, long receivedNanos, int slots) {
+            try {
+                if (Actions.of(request) == Actions.SUBSCRIBE_CHANGES) {
+                    subscribe(codec, request);
+                    return;
+                }
+                enqueue(codec.encodeResponse(TCPServer.ClientHandler.respond(request, receivedNanos)));
+            } catch (Exception e) {
+                LOG.error("Request failed, closing connection", e);
+                close();
+            } finally {
+                inFlight.addAndGet(-slots);
+                if (paused) loop.scheduleResume(this);
+            }
+        }
+        
+        // Worker thread. The feed thread queues its batches like a worker queues replies;
+        // a subscriber that stops reading is disconnected once MAX_FEED_BACKLOG pile up.
+        private synchronized void subscribe(WireCodec codec, Request request) {
+            if (changeFeed != null) changeFeed.interrupt();
+            changeFeed = TCPServer.ClientHandler.subscribe(request, batch -> {
+                if (closed.get()) throw new IOException("Connection closed");
+                if (writeQueue.size() >= MAX_FEED_BACKLOG) {
+                    close();
+                    throw new IOException("Subscriber is not reading");
+                }
+                enqueue(codec.encodeResponse(batch));
+            });
+            // Closed while the thread started: close() may have missed it
+            if (closed.get()) changeFeed.interrupt();
+        }
+        
+        // Any thread
+        private void enqueue(byte[] body) {
+            ByteBuffer frame = ByteBuffer.allocate(Framing.HEADER_BYTES + body.length);
+            TCPServer.BYTES_OUT.add(frame.capacity());
+            frame.putInt(body.length).put(body).flip();
+            writeQueue.add(frame);
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        // Event loop thread only
+        void flush() {
+            try {
+                ByteBuffer head;
+                while ((head = writeQueue.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        // Socket buffer full: wait for OP_WRITE
+                        writeBlocked = true;
+                        updateInterest();
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+                writeBlocked = false;
+                updateInterest();
+                writeScheduled.set(false);
+                // A worker may have queued a frame after the last peek but before the reset
+                if (!writeQueue.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+                    loop.scheduleWrite(this);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        // Event loop thread only
+        private void updateInterest() {
+            if (!key.isValid()) return;
+            key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (writeBlocked ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            TCPServer.openConnections.decrementAndGet();
+            Thread feed = changeFeed;
+            if (feed != null) feed.interrupt();
+            key.cancel();
+            writeQueue.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.error("Could not close client channel", e);
+            }
+        }
+    }
+}
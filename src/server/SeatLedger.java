@@ -0,0 +1,50 @@
+package server;
+
+import java.io.IOException;
+import java.util.*;
+import protocol.BinaryReader;
+import protocol.BinaryWriter;
+
+// The seats of one module in a sharded cluster: IDs of the students holding one,
+// whichever shard stores them. Each module's ledger is kept by the shard the gateway's
+// hash ring places the module code on; the gateway takes a seat there (TAKE_SEATS)
+// before it registers the student on their own shard, so a module's capacity holds for
+// the whole cluster. A ledger starts out with the module's enrollments on its shard
+// (TCPServer.newSeatLedger). When a rebalance gives the module code to another shard,
+// the ledger is marked moved here and its holders are put on that shard.
+//
+// Changed only under its entry's lock in TCPServer.seatLedgers. Logged and snapshotted
+// whole: moduleCode, moved flag, holder count, holders.
+final class SeatLedger {
+    final String moduleCode;
+    final Set<String> holders = new HashSet<>();
+    // Handed over to another shard; takes no more seats until a ledger is put back here
+    boolean moved;
+
+    SeatLedger(String moduleCode) {
+        this.moduleCode = moduleCode;
+    }
+
+    SeatLedger copy() {
+        SeatLedger copy = new SeatLedger(moduleCode);
+        copy.holders.addAll(holders);
+        copy.moved = moved;
+        return copy;
+    }
+
+    void write(BinaryWriter w) {
+        w.writeString(moduleCode);
+        w.writeByte(moved ? 1 : 0);
+        w.writeVarInt(holders.size());
+        for (String studentId : holders) w.writeString(studentId);
+    }
+
+    static SeatLedger read(BinaryReader r) throws IOException {
+        SeatLedger ledger = new SeatLedger(r.readString());
+        ledger.moved = r.readByte() != 0;
+        int count = r.readVarInt();
+        if (count < 0) throw new IOException("Corrupt seat ledger of " + ledger.moduleCode);
+        for (int i = 0; i < count; i++) ledger.holders.add(r.readString());
+        return ledger;
+    }
+}
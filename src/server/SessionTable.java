@@ -0,0 +1,81 @@
+package server;
+
+import common.TimingWheel;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Login sessions: opaque random token -> student ID, with a sliding expiry.
+//
+// Resolving a token is one ConcurrentHashMap read (no lock) plus a volatile write to
+// push the expiry out, so it costs the same with ten sessions or a million. Expired
+// sessions are removed by a timing wheel rather than by scanning the table: each session
+// has one pending timeout, and when it fires on a session that was used meanwhile it is
+// simply scheduled again for the new deadline. A session past its deadline is refused
+// even if the wheel has not removed it yet.
+public final class SessionTable {
+    private static final int TOKEN_BYTES = 16;
+    private static final long TICK_MS = 1000;
+    private static final int SLOTS = 512;
+
+    private static final class Session {
+        final String token;
+        final String studentId;
+        volatile long expiresAt;
+
+        Session(String token, String studentId, long expiresAt) {
+            this.token = token;
+            this.studentId = studentId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlMs;
+    private final TimingWheel<Session> wheel;
+
+    public SessionTable(long ttlMs) {
+        this.ttlMs = ttlMs;
+        this.wheel = new TimingWheel<>("session-expiry", TICK_MS, SLOTS, this::expire);
+    }
+
+    public long ttlMs() { return ttlMs; }
+
+    public String create(String studentId) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session session = new Session(token, studentId, wheel.now() + ttlMs);
+        sessions.put(token, session);
+        wheel.schedule(session, session.expiresAt);
+        return token;
+    }
+
+    // The session's student ID, or null if the token is unknown or expired
+    public String resolve(String token) {
+        Session session = sessions.get(token);
+        if (session == null) return null;
+        long now = wheel.now();
+        if (session.expiresAt <= now) return null;
+        session.expiresAt = now + ttlMs;
+        return session.studentId;
+    }
+
+    public boolean remove(String token) {
+        return sessions.remove(token) != null;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    // Timing wheel thread
+    private void expire(Session session) {
+        if (session.expiresAt > wheel.now()) {
+            wheel.schedule(session, session.expiresAt);
+        } else {
+            sessions.remove(session.token, session);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import models.Module;
+import models.Student;
+import protocol.BinaryCodec;
+import protocol.BinaryReader;
+import protocol.BinaryWriter;
+
+// Versioned binary snapshot of every Student and Module, and of the seat ledgers a
+// shard of a cluster keeps, read through a memory mapping.
+//
+// Layout (big-endian):
+//   header   magic "SMSN", version, LSN of the last log record included, student count,
+//            module count, student index offset, student index slots, seat ledger count
+//   records  per record: int length, type byte, body (BinaryCodec encoding, or
+//            SeatLedger's); all modules first, then the seat ledgers, then the students
+//   index    open-addressing table of (int hash of studentId, int record offset) slots,
+//            offset 0 = empty
+//
+// Version 1 had no seat ledgers (the header's last int was 0); such files still open.
+//
+// Opening a snapshot maps the file and reads the header only. student(id) probes the
+// index and decodes just that record, so a server can start serving while the rest is
+// decoded in the background (forEachStudent). Files are written under a temporary name,
+// forced, then renamed into place, so a snapshot that can be opened is complete.
+public final class Snapshot {
+    private static final int MAGIC = 0x534D534E; // "SMSN"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 40;
+    private static final int TYPE_STUDENT = 1;
+    private static final int TYPE_MODULE = 2;
+    private static final int TYPE_SEATS = 3;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".dat";
+
+    private final Path file;
+    private final MappedByteBuffer map;
+    private final long lsn;
+    private final int studentCount;
+    private final int moduleCount;
+    private final int seatLedgerCount;
+    private final int indexOffset;
+    private final int indexMask;
+
+    private Snapshot(Path file, MappedByteBuffer map) throws IOException {
+        this.file = file;
+        this.map = map;
+        if (map.capacity() < HEADER_BYTES || map.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot: " + file);
+        }
+        int version = map.getInt(4);
+        if (version != VERSION && version != 1) {
+            throw new IOException("Unsupported snapshot version " + map.getInt(4) + ": " + file);
+        }
+        this.lsn = map.getLong(8);
+        this.studentCount = map.getInt(16);
+        this.moduleCount = map.getInt(20);
+        this.indexOffset = (int) map.getLong(24);
+        int slots = map.getInt(32);
+        this.seatLedgerCount = version == 1 ? 0 : map.getInt(36);
+        if (Integer.bitCount(slots) != 1 || seatLedgerCount < 0 || indexOffset < HEADER_BYTES
+                || (long) indexOffset + slots * 8L > map.capacity()) {
+            throw new IOException("Corrupt snapshot index: " + file);
+        }
+        this.indexMask = slots - 1;
+    }
+
+    public static Snapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot larger than 2 GB: " + file);
+            }
+            return new Snapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Newest snapshot in dir that opens cleanly, or null if there is none
+    public static Snapshot openLatest(Path dir) throws IOException {
+        List<Path> files = list(dir);
+        for (int i = files.size() - 1; i >= 0; i--) {
+            try {
+                return open(files.get(i));
+            } catch (IOException e) {
+                System.out.println("Skipping unreadable snapshot " + files.get(i) + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    // Snapshot files in dir, oldest first
+    static List<Path> list(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return files;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : stream) files.add(p);
+        }
+        files.sort(Comparator.comparing(p -> p.getFileName().toString()));
+        return files;
+    }
+
+    public Path file() { return file; }
+
+    public long lsn() { return lsn; }
+
+    public int studentCount() { return studentCount; }
+
+    public int moduleCount() { return moduleCount; }
+
+    // Decodes one student straight from the mapping; null if the snapshot has none by that ID
+    public Student student(String studentId) throws IOException {
+        int hash = studentId.hashCode();
+        for (int slot = spread(hash) & indexMask; ; slot = (slot + 1) & indexMask) {
+            int entry = indexOffset + slot * 8;
+            int offset = map.getInt(entry + 4);
+            if (offset == 0) return null;
+            if (map.getInt(entry) != hash) continue;
+            BinaryReader r = record(offset);
+            if (studentId.equals(r.readString())) {
+                return BinaryCodec.readStudent(record(offset));
+            }
+        }
+    }
+
+    public List<Module> modules() throws IOException {
+        List<Module> result = new ArrayList<>(moduleCount);
+        int offset = HEADER_BYTES;
+        for (int i = 0; i < moduleCount; i++) {
+            expectType(offset, TYPE_MODULE);
+            result.add(BinaryCodec.readModule(record(offset)));
+            offset += 5 + recordLength(offset);
+        }
+        return result;
+    }
+
+    List<SeatLedger> seatLedgers() throws IOException {
+        List<SeatLedger> result = new ArrayList<>(seatLedgerCount);
+        int offset = skip(HEADER_BYTES, moduleCount);
+        for (int i = 0; i < seatLedgerCount; i++) {
+            expectType(offset, TYPE_SEATS);
+            result.add(SeatLedger.read(record(offset)));
+            offset += 5 + recordLength(offset);
+        }
+        return result;
+    }
+
+    // Decodes every student in file order
+    public void forEachStudent(Consumer<Student> action) throws IOException {
+        int offset = skip(HEADER_BYTES, moduleCount + seatLedgerCount);
+        for (int i = 0; i < studentCount; i++) {
+            expectType(offset, TYPE_STUDENT);
+            action.accept(BinaryCodec.readStudent(record(offset)));
+            offset += 5 + recordLength(offset);
+        }
+    }
+
+    // Offset of the record count records after the one at offset
+    private int skip(int offset, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            offset += 5 + recordLength(offset);
+        }
+        return offset;
+    }
+
+    private void expectType(int offset, int type) throws IOException {
+        if (map.get(offset + 4) != type) {
+            throw new IOException("Corrupt snapshot record at " + offset);
+        }
+    }
+
+    private int recordLength(int offset) throws IOException {
+        int length = map.getInt(offset);
+        if (length < 0 || offset + 5L + length > indexOffset) {
+            throw new IOException("Corrupt snapshot record at " + offset);
+        }
+        return length;
+    }
+
+    // Body of the record at offset, copied out of the mapping
+    private BinaryReader record(int offset) throws IOException {
+        byte[] body = new byte[recordLength(offset)];
+        ByteBuffer view = map.duplicate();
+        view.position(offset + 5);
+        view.get(body);
+        return new BinaryReader(body, 0, body.length);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    // ---- Writing ----
+
+    public static Writer create(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        return new Writer(dir);
+    }
+
+    // Streams records to a temporary file; finish() appends the index, fills in the
+    // header and renames the file to its final snapshot-<lsn>.dat name
+    public static final class Writer implements Closeable {
+        private final Path dir;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final BinaryWriter body = new BinaryWriter(256);
+        private long position = HEADER_BYTES;
+        private int[] hashes = new int[1024];
+        private int[] offsets = new int[1024];
+        private int studentCount;
+        private int moduleCount;
+        private int seatLedgerCount;
+        private boolean finished;
+
+        private Writer(Path dir) throws IOException {
+            this.dir = dir;
+            this.tmp = Files.createTempFile(dir, PREFIX, ".tmp");
+            this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            channel.position(HEADER_BYTES);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024));
+        }
+
+        public void add(Student student) throws IOException {
+            if (studentCount == hashes.length) {
+                hashes = Arrays.copyOf(hashes, studentCount * 2);
+                offsets = Arrays.copyOf(offsets, studentCount * 2);
+            }
+            hashes[studentCount] = student.getStudentId().hashCode();
+            offsets[studentCount] = (int) position;
+            studentCount++;
+            body.reset();
+            BinaryCodec.writeStudent(body, student);
+            writeRecord(TYPE_STUDENT);
+        }
+
+        // Modules must all be added before the first seat ledger or student
+        public void add(Module module) throws IOException {
+            if (studentCount > 0 || seatLedgerCount > 0) {
+                throw new IllegalStateException("Modules must be written before seat ledgers and students");
+            }
+            moduleCount++;
+            body.reset();
+            BinaryCodec.writeModule(body, module);
+            writeRecord(TYPE_MODULE);
+        }
+
+        // Seat ledgers must all be added before the first student
+        void add(SeatLedger ledger) throws IOException {
+            if (studentCount > 0) {
+                throw new IllegalStateException("Seat ledgers must be written before students");
+            }
+            seatLedgerCount++;
+            body.reset();
+            ledger.write(body);
+            writeRecord(TYPE_SEATS);
+        }
+
+        private void writeRecord(int type) throws IOException {
+            out.writeInt(body.size());
+            out.writeByte(type);
+            out.write(body.buffer(), 0, body.size());
+            position += 5 + body.size();
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot would exceed 2 GB");
+            }
+        }
+
+        public Path finish(long lsn) throws IOException {
+            // Index at most half full, so probes stay short
+            int slots = Integer.highestOneBit(Math.max(16, studentCount * 2 - 1)) << 1;
+            long indexOffset = position;
+            int[] table = new int[slots * 2];
+            int mask = slots - 1;
+            for (int i = 0; i < studentCount; i++) {
+                int slot = spread(hashes[i]) & mask;
+                while (table[slot * 2 + 1] != 0) slot = (slot + 1) & mask;
+                table[slot * 2] = hashes[i];
+                table[slot * 2 + 1] = offsets[i];
+            }
+            for (int v : table) out.writeInt(v);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(lsn).putInt(studentCount).putInt(moduleCount)
+                    .putLong(indexOffset).putInt(slots).putInt(seatLedgerCount).flip();
+            channel.write(header, 0);
+            channel.force(true);
+            out.close();
+            finished = true;
+
+            Path target = dir.resolve(String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return target;
+        }
+
+        // Abandons an unfinished snapshot
+        @Override
+        public void close() throws IOException {
+            if (finished) return;
+            out.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
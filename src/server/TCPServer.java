@@ -2,28 +2,147 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.concurrent.locks.ReentrantLock;
 import models.Request;
 import models.Response;
 import models.Student;
+import common.ThreadPools;
+import common.Log;
+import common.Metrics;
+import protocol.ActionSpec;
+import protocol.Actions;
+import protocol.BinaryCodec;
+import protocol.BinaryReader;
+import protocol.Framing;
+import protocol.WireCodec;
+import protocol.WireCodecs;
 
 public class TCPServer {
-    private static final int PORT = 8888;
-    private static final Map<String, Student> students = new ConcurrentHashMap<>();
-    private static final Map<String, models.Module> modules = new ConcurrentHashMap<>();
+    private static final Log LOG = Log.get("tcp-server");
+    // Several servers on one machine (the shards of a cluster) each need a port and a
+    // server.dataDir of their own
+    private static final int PORT = Integer.getInteger("server.port", 8888);
+    private static final String MODE = System.getProperty("server.mode", "blocking");
+    private static final String EXECUTOR = ThreadPools.configuredMode("server");
+    private static final int EVENT_LOOPS = Integer.getInteger("server.eventLoops",
+            Runtime.getRuntime().availableProcessors());
+    // Requests one connection may have executing at once (the gateway multiplexes many
+    // browser tabs over each connection, so they must not queue behind each other)
+    static final int MAX_IN_FLIGHT = Integer.getInteger("server.maxInFlightPerConnection", 64);
+    // Connections beyond this are closed as soon as they are accepted
+    static final int MAX_CONNECTIONS = Integer.getInteger("server.maxConnections", 1024);
+    // Threads running pipelined requests for blocking-mode connections; they wait on log
+    // commits, so there are more of them than cores
+    private static final int REQUEST_WORKERS = Integer.getInteger("server.requestWorkers", 64);
+    // Threads running requests in NIO mode. Its handlers wait on the same log commits, so
+    // it is sized like the blocking pool rather than by cores.
+    private static final int WORKERS = Integer.getInteger("server.workers", REQUEST_WORKERS);
+    // Requests waiting for a worker (either mode); further ones are refused as overloaded
+    static final int REQUEST_QUEUE = Integer.getInteger("server.requestQueue", 256);
+    // Directory holding the write-ahead log and snapshots
+    private static final String DATA_DIR = System.getProperty("server.dataDir", "data");
+    private static final long GROUP_COMMIT_MS = Long.getLong("server.wal.groupCommitMs", 2);
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("server.wal.fsync", "true"));
+    // Log records between background snapshots; 0 turns snapshots off
+    private static final long SNAPSHOT_EVERY_RECORDS = Long.getLong("server.snapshot.everyRecords", 100000);
+    private static final ConcurrentMap<String, Student> students = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, models.Module> modules = new ConcurrentHashMap<>();
+    // Keys in sort order, for stable cursor pagination; added to after the map entry exists
+    private static final ConcurrentSkipListSet<String> studentIds = new ConcurrentSkipListSet<>();
+    private static final ConcurrentSkipListSet<String> moduleCodes = new ConcurrentSkipListSet<>();
+    // Module code -> enrolled student IDs, maintained with every registration
+    private static final EnrollmentIndex enrollments = new EnrollmentIndex();
+    // Sharded cluster only: module code -> seats, for the modules the gateway's hash ring
+    // places on this shard (see SeatLedger)
+    private static final ConcurrentMap<String, SeatLedger> seatLedgers = new ConcurrentHashMap<>();
+    private static final SessionTable sessions = new SessionTable(Long.getLong("server.session.ttlMs", 30 * 60 * 1000));
+    // When true, student actions must carry a session token instead of a raw studentId
+    private static final boolean REQUIRE_SESSION = Boolean.getBoolean("server.session.required");
+    private static final int DEFAULT_PAGE_SIZE = Integer.getInteger("server.list.defaultPageSize", 100);
+    private static final int MAX_PAGE_SIZE = Integer.getInteger("server.list.maxPageSize", 1000);
+    // Records one BULK_* request may carry
+    private static final int MAX_BULK_ROWS = Integer.getInteger("server.bulk.maxRows", 10000);
+    // Directory IMPORT_STUDENTS reads its CSV files from; names outside it are refused
+    private static final String IMPORT_DIR = System.getProperty("server.importDir", "import");
+    // CSV rows imported between waits for the log, which bounds what an import holds
+    private static final int IMPORT_BATCH_ROWS = 1000;
+    // Row errors listed in a bulk or import reply; the rest are only counted
+    private static final int MAX_REPORTED_ERRORS = 100;
+    // Bumped after every module change. Starts from the clock (in microseconds) so a
+    // restarted server never hands out a version a client cached from the last run.
+    private static final AtomicLong moduleVersion = new AtomicLong(System.currentTimeMillis() * 1000);
+    private static volatile ModuleCatalog catalog;
+    // Module and enrollment changes, streamed to SUBSCRIBE_CHANGES connections. Events are
+    // published when a change is applied, before its log record is durable: a crash in
+    // between loses only that change, and subscribers resync when the server comes back.
+    static final ChangeFeed CHANGES = new ChangeFeed(Integer.getInteger("server.changes.capacity", 4096));
+    private static WriteAheadLog wal;
+    // Snapshot whose students are still being copied into the map; null once all are in
+    private static volatile Snapshot loadingSnapshot;
+    // Students the log says moved away, kept while that snapshot is being loaded so its
+    // copies of them are not brought back
+    private static final Set<String> removedStudents = ConcurrentHashMap.newKeySet();
+    private static final CountDownLatch studentsLoaded = new CountDownLatch(1);
+    private static long lastSnapshotLsn; // snapshot-writer thread only after startup
+    
+    // Served by the METRICS action (and shown on the gateway's /metrics page)
+    static final Metrics METRICS = new Metrics("server");
+    static final LongAdder BYTES_IN = METRICS.counter("bytes_in_total");
+    static final LongAdder BYTES_OUT = METRICS.counter("bytes_out_total");
+    static final AtomicInteger openConnections = new AtomicInteger();
+    static final LongAdder REJECTED_CONNECTIONS = METRICS.counter("connections_rejected_total");
+    static final AtomicInteger changeSubscribers = new AtomicInteger();
+    static {
+        METRICS.gauge("connections", openConnections::get);
+        METRICS.gauge("threads", Thread::activeCount);
+        METRICS.gauge("students", students::size);
+        METRICS.gauge("modules", modules::size);
+        METRICS.gauge("sessions", sessions::size);
+        METRICS.gauge("change_subscribers", changeSubscribers::get);
+        METRICS.gauge("log_dropped", Log::dropped);
+    }
     
     public static void main(String[] args) {
-        initializeData();
+        try {
+            recoverData();
+        } catch (IOException e) {
+            System.out.println("Could not recover data from " + DATA_DIR);
+            e.printStackTrace();
+            return;
+        }
         
-        ExecutorService threadPool = Executors.newCachedThreadPool();
+        if ("nio".equalsIgnoreCase(MODE)) {
+            try {
+                new NioServer(PORT, EVENT_LOOPS, WORKERS).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        
+        ExecutorService threadPool = ThreadPools.newConnectionExecutor(EXECUTOR, "client-handler");
         
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("TCP Server started on port " + PORT);
+            System.out.println("TCP Server started on port " + PORT + " (" + EXECUTOR + " threads)");
             
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
+                if (openConnections.get() >= MAX_CONNECTIONS) {
+                    REJECTED_CONNECTIONS.increment();
+                    clientSocket.close();
+                    continue;
+                }
+                LOG.info("New client connected: {}", clientSocket.getInetAddress());
                 threadPool.execute(new ClientHandler(clientSocket));
             }
         } catch (IOException e) {
@@ -31,20 +150,347 @@ public class TCPServer {
         }
     }
     
+    // Adds or replaces the handler for an action; safe while the server is running.
+    // Define the action with protocol.Actions first so the gateway knows it too.
+    public static void registerAction(ActionSpec spec, ActionHandler handler) {
+        ClientHandler.HANDLERS.register(spec, handler);
+    }
+    
     private static void initializeData() {
         // Initialize with some sample data
-        modules.put("CS101", new models.Module("CS101", "Introduction to Programming", "Learn basic programming concepts", 3));
-        modules.put("CS201", new models.Module("CS201", "Data Structures", "Study fundamental data structures", 4));
-        modules.put("CS301", new models.Module("CS301", "Database Systems", "Relational databases and SQL", 3));
+        putModule(new models.Module("CS101", "Introduction to Programming", "Learn basic programming concepts", 3));
+        putModule(new models.Module("CS201", "Data Structures", "Study fundamental data structures", 4));
+        putModule(new models.Module("CS301", "Database Systems", "Relational databases and SQL", 3));
         
         Student sampleStudent = new Student("S001", "John Doe", "john@example.com", "password123");
-        students.put("S001", sampleStudent);
+        putStudent(sampleStudent);
+    }
+    
+    private static void putStudent(Student student) {
+        removedStudents.remove(student.getStudentId());
+        students.put(student.getStudentId(), student);
+        studentIds.add(student.getStudentId());
+        enrollments.addAll(student);
+    }
+    
+    private static void putModule(models.Module module) {
+        modules.put(module.getModuleCode(), module);
+        moduleCodes.add(module.getModuleCode());
+    }
+    
+    // The catalog for the current module version, rebuilt by one thread at a time after a
+    // change. The version is read before copying, and writers bump it only after their
+    // change is in the map, so a catalog never holds older data than its version says.
+    static ModuleCatalog moduleCatalog() throws IOException {
+        ModuleCatalog current = catalog;
+        if (current != null && current.version() == moduleVersion.get()) {
+            return current;
+        }
+        synchronized (moduleVersion) {
+            long version = moduleVersion.get();
+            current = catalog;
+            if (current != null && current.version() == version) {
+                return current;
+            }
+            List<models.Module> copies = new ArrayList<>(modules.size());
+            for (String code : moduleCodes) {
+                // Copied under the entry's lock so an edit in progress is not torn
+                modules.computeIfPresent(code, (c, m) -> {
+                    copies.add(new models.Module(m.getModuleCode(), m.getModuleName(), m.getDescription(), m.getCredits(),
+                            m.getCapacity()));
+                    return m;
+                });
+            }
+            current = new ModuleCatalog(version, copies);
+            catalog = current;
+            return current;
+        }
+    }
+    
+    // Maps the latest snapshot (or seeds the sample data if there is none), replays the
+    // write-ahead log written after it and opens the log for new writes. Students in the
+    // snapshot are decoded on first use and by a background loader, so the server can
+    // accept connections before they are all in memory.
+    static void recoverData() throws IOException {
+        long start = System.nanoTime();
+        Path dir = Paths.get(DATA_DIR);
+        Snapshot snapshot = Snapshot.openLatest(dir);
+        if (snapshot == null) {
+            initializeData();
+            studentsLoaded.countDown();
+        } else {
+            for (models.Module module : snapshot.modules()) {
+                putModule(module);
+            }
+            for (SeatLedger ledger : snapshot.seatLedgers()) {
+                seatLedgers.put(ledger.moduleCode, ledger);
+            }
+            loadingSnapshot = snapshot;
+            lastSnapshotLsn = snapshot.lsn();
+            System.out.println("Mapped snapshot " + snapshot.file() + " (" + snapshot.studentCount()
+                    + " students, LSN " + snapshot.lsn() + ")");
+        }
+        
+        wal = new WriteAheadLog(dir, GROUP_COMMIT_MS, FSYNC);
+        long replayed = wal.recover(lastSnapshotLsn, TCPServer::applyLogRecord);
+        System.out.println("Replayed " + replayed + " log records from " + dir + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        Runtime.getRuntime().addShutdownHook(new Thread(wal::close, "wal-shutdown"));
+        
+        if (snapshot != null) {
+            Thread loader = new Thread(() -> loadSnapshot(snapshot), "snapshot-loader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+        startSnapshotWriter();
+    }
+    
+    private static void loadSnapshot(Snapshot snapshot) {
+        long start = System.nanoTime();
+        try {
+            // putIfAbsent: anything already looked up or replayed from the log is newer.
+            // Its registrations are a superset of the snapshot's, so indexing these is safe.
+            snapshot.forEachStudent(s -> {
+                if (removedStudents.contains(s.getStudentId())) return;
+                enrollments.addAll(s);
+                students.putIfAbsent(s.getStudentId(), s);
+                studentIds.add(s.getStudentId());
+            });
+        } catch (IOException e) {
+            // Carrying on would let the next snapshot silently drop the unread students
+            System.out.println("Snapshot " + snapshot.file() + " is corrupt: " + e.getMessage());
+            System.exit(1);
+        }
+        loadingSnapshot = null;
+        removedStudents.clear();
+        studentsLoaded.countDown();
+        System.out.println("Loaded " + snapshot.studentCount() + " students from snapshot in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+    
+    // Looks a student up, decoding it from the snapshot if the loader has not reached it yet
+    static Student findStudent(String studentId) throws IOException {
+        Student student = students.get(studentId);
+        Snapshot snapshot = loadingSnapshot;
+        if (student != null || snapshot == null || removedStudents.contains(studentId)) return student;
+        Student loaded = snapshot.student(studentId);
+        if (loaded == null) return null;
+        enrollments.addAll(loaded); // before it is published and can change
+        Student existing = students.putIfAbsent(studentId, loaded);
+        studentIds.add(studentId);
+        return existing != null ? existing : loaded;
+    }
+    
+    // For operations that need every student, e.g. listing
+    private static void awaitStudentsLoaded() throws IOException {
+        try {
+            studentsLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the snapshot to load");
+        }
+    }
+    
+    private static void startSnapshotWriter() {
+        if (SNAPSHOT_EVERY_RECORDS <= 0) return;
+        Thread writer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                    if (wal.lastLsn() - lastSnapshotLsn >= SNAPSHOT_EVERY_RECORDS) {
+                        writeSnapshot();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.out.println("Snapshot failed: " + e.getMessage());
+                }
+            }
+        }, "snapshot-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    // Writes a snapshot without stopping writers: each entry is copied under its own map
+    // lock. Its LSN is the last one before the segment the log rotated to, not the last
+    // one logged: a record is logged inside compute(), and the copy does not see a key
+    // whose compute() is still running, so every record from the kept segment on is
+    // replayed at recovery. Those already reflected in the snapshot are harmless to apply
+    // again because records carry full state or idempotent registrations.
+    private static void writeSnapshot() throws IOException {
+        long start = System.nanoTime();
+        long firstKeptLsn = wal.rotate();
+        long lsn = firstKeptLsn - 1;
+        awaitStudentsLoaded();
+        
+        Path file;
+        int count = 0;
+        try (Snapshot.Writer writer = Snapshot.create(wal.dir())) {
+            models.Module[] module = new models.Module[1];
+            for (String code : modules.keySet()) {
+                module[0] = null;
+                modules.computeIfPresent(code, (c, m) -> {
+                    module[0] = new models.Module(m.getModuleCode(), m.getModuleName(), m.getDescription(), m.getCredits(),
+                            m.getCapacity());
+                    return m;
+                });
+                if (module[0] != null) writer.add(module[0]);
+            }
+            SeatLedger[] ledger = new SeatLedger[1];
+            for (String code : seatLedgers.keySet()) {
+                ledger[0] = null;
+                seatLedgers.computeIfPresent(code, (c, l) -> {
+                    ledger[0] = l.copy();
+                    return l;
+                });
+                if (ledger[0] != null) writer.add(ledger[0]);
+            }
+            Student[] student = new Student[1];
+            for (String id : students.keySet()) {
+                student[0] = null;
+                students.computeIfPresent(id, (k, s) -> {
+                    Student copy = new Student(s.getStudentId(), s.getName(), s.getEmail(), s.getPassword());
+                    copy.getRegisteredModules().addAll(s.getRegisteredModules());
+                    student[0] = copy;
+                    return s;
+                });
+                if (student[0] != null) {
+                    writer.add(student[0]);
+                    count++;
+                }
+            }
+            // Never publish a snapshot ahead of what the log has made durable
+            wal.awaitDurable(lsn);
+            file = writer.finish(lsn);
+        }
+        
+        for (Path old : Snapshot.list(wal.dir())) {
+            if (old.equals(file)) continue;
+            try {
+                Files.deleteIfExists(old);
+            } catch (IOException e) {
+                System.out.println("Could not delete old snapshot " + old + ": " + e.getMessage());
+            }
+        }
+        wal.deleteSegmentsBefore(firstKeptLsn);
+        lastSnapshotLsn = lsn;
+        System.out.println("Snapshot of " + count + " students at LSN " + lsn + " written in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+    
+    private static void applyLogRecord(int type, BinaryReader body) throws IOException {
+        switch (type) {
+            case WriteAheadLog.STUDENT: {
+                Student student = BinaryCodec.readStudent(body);
+                putStudent(student);
+                break;
+            }
+            case WriteAheadLog.MODULE: {
+                models.Module module = BinaryCodec.readModule(body);
+                putModule(module);
+                break;
+            }
+            case WriteAheadLog.REGISTRATION: {
+                Student student = findStudent(body.readString());
+                String moduleCode = body.readString();
+                if (student != null) {
+                    student.registerModule(moduleCode);
+                    enrollments.add(moduleCode, student.getStudentId());
+                }
+                break;
+            }
+            case WriteAheadLog.REMOVAL: {
+                String studentId = body.readString();
+                Student student = students.remove(studentId);
+                studentIds.remove(studentId);
+                if (student != null) enrollments.removeAll(student);
+                if (loadingSnapshot != null) removedStudents.add(studentId);
+                break;
+            }
+            case WriteAheadLog.SEAT: {
+                String moduleCode = body.readString();
+                String studentId = body.readString();
+                SeatLedger ledger = seatLedgers.computeIfAbsent(moduleCode, SeatLedger::new);
+                if (body.readByte() != 0) {
+                    ledger.holders.add(studentId);
+                } else {
+                    ledger.holders.remove(studentId);
+                }
+                break;
+            }
+            case WriteAheadLog.SEATS: {
+                SeatLedger ledger = SeatLedger.read(body);
+                seatLedgers.put(ledger.moduleCode, ledger);
+                break;
+            }
+            default:
+                throw new IOException("Unknown log record type " + type);
+        }
     }
     
     static class ClientHandler implements Runnable {
+        private static final ThreadPoolExecutor requestPool =
+                ThreadPools.newBoundedExecutor("request-worker", REQUEST_WORKERS, REQUEST_QUEUE);
+        static final HandlerRegistry HANDLERS = new HandlerRegistry(METRICS);
+        static final AdmissionControl ADMISSION = new AdmissionControl(METRICS,
+                Integer.getInteger("server.admission.initialLimit", 32),
+                Integer.getInteger("server.admission.minLimit", 4),
+                Integer.getInteger("server.admission.maxLimit", 512));
+        static {
+            METRICS.gauge("request_workers_active", requestPool::getActiveCount);
+            METRICS.gauge("request_workers", requestPool::getPoolSize);
+            METRICS.gauge("request_queue_depth", () -> requestPool.getQueue().size());
+            
+            // Connection health check (gateway pool)
+            HANDLERS.register(Actions.PING, request -> new Response(true, "PONG"));
+            HANDLERS.register(Actions.METRICS, request -> new Response(true, "Metrics retrieved", METRICS.snapshot()));
+            
+            // Student operations
+            HANDLERS.register(Actions.STUDENT_LOGIN, ClientHandler::handleStudentLogin);
+            HANDLERS.register(Actions.LOGOUT, ClientHandler::handleLogout);
+            HANDLERS.register(Actions.VIEW_MODULES, ClientHandler::handleViewModules);
+            HANDLERS.register(Actions.REGISTER_MODULE, ClientHandler::handleRegisterModule);
+            HANDLERS.register(Actions.VIEW_REGISTERED_MODULES, ClientHandler::handleViewRegisteredModules);
+            
+            // Admin operations - Student management
+            HANDLERS.register(Actions.ADD_STUDENT, ClientHandler::handleAddStudent);
+            HANDLERS.register(Actions.EDIT_STUDENT, ClientHandler::handleEditStudent);
+            HANDLERS.register(Actions.VIEW_STUDENT, ClientHandler::handleViewStudent);
+            HANDLERS.register(Actions.LIST_STUDENTS, ClientHandler::handleListStudents);
+            
+            // Admin operations - Module management
+            HANDLERS.register(Actions.ADD_MODULE, ClientHandler::handleAddModule);
+            HANDLERS.register(Actions.EDIT_MODULE, ClientHandler::handleEditModule);
+            HANDLERS.register(Actions.VIEW_MODULE, ClientHandler::handleViewModule);
+            HANDLERS.register(Actions.LIST_MODULES, ClientHandler::handleListModules);
+            HANDLERS.register(Actions.MODULE_ROSTER, ClientHandler::handleModuleRoster);
+            HANDLERS.register(Actions.ENROLLMENT_COUNTS, ClientHandler::handleEnrollmentCounts);
+            
+            // Admin operations - Batches
+            HANDLERS.register(Actions.BULK_ADD_STUDENTS, ClientHandler::handleBulkAddStudents);
+            HANDLERS.register(Actions.BULK_EDIT_STUDENTS, ClientHandler::handleBulkEditStudents);
+            HANDLERS.register(Actions.BULK_REGISTER_MODULES, ClientHandler::handleBulkRegisterModules);
+            HANDLERS.register(Actions.IMPORT_STUDENTS, ClientHandler::handleImportStudents);
+            
+            // Rebalancing a sharded cluster
+            HANDLERS.register(Actions.PUT_STUDENTS, ClientHandler::handlePutStudents);
+            HANDLERS.register(Actions.REMOVE_STUDENTS, ClientHandler::handleRemoveStudents);
+            HANDLERS.register(Actions.TAKE_SEATS, ClientHandler::handleTakeSeats);
+            HANDLERS.register(Actions.RELEASE_SEATS, ClientHandler::handleReleaseSeats);
+            HANDLERS.register(Actions.HANDOVER_SEATS, ClientHandler::handleHandoverSeats);
+            HANDLERS.register(Actions.PUT_SEATS, ClientHandler::handlePutSeats);
+            
+            // Change notifications: the connection serves these itself (see subscribe), so
+            // only a caller without one, such as a benchmark, gets here
+            HANDLERS.register(Actions.SUBSCRIBE_CHANGES,
+                    request -> new Response(false, "SUBSCRIBE_CHANGES needs a connection of its own"));
+        }
         private Socket socket;
-        private ObjectInputStream in;
-        private ObjectOutputStream out;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private Thread changeFeed; // streams SUBSCRIBE_CHANGES batches, if subscribed
         
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -53,112 +499,291 @@ public class TCPServer {
         @Override
         public void run() {
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
                 
+                openConnections.incrementAndGet();
+                WireCodec codec = null;
                 while (true) {
-                    Request request = (Request) in.readObject();
-                    Response response = processRequest(request);
-                    out.writeObject(response);
-                    out.flush();
+                    byte[] frame = Framing.readFrame(in);
+                    if (frame == null) break;
+                    BYTES_IN.add(Framing.HEADER_BYTES + frame.length);
+                    
+                    if (codec == null) {
+                        if (WireCodecs.isHello(frame)) {
+                            codec = WireCodecs.select(frame);
+                            Framing.writeFrame(out, WireCodecs.ack(codec));
+                            out.flush();
+                            continue;
+                        }
+                        // A framed request without a hello: a client from before negotiation, which
+                        // speaks Java serialization
+                        codec = WireCodecs.JAVA;
+                    }
+                    
+                    long received = System.nanoTime();
+                    Request request = codec.decodeRequest(frame, 0, frame.length);
+                    HandlerRegistry.Entry entry = HANDLERS.lookup(request);
+                    if (entry != null && entry.spec == Actions.SUBSCRIBE_CHANGES) {
+                        if (changeFeed != null) changeFeed.interrupt();
+                        WireCodec feedCodec = codec;
+                        changeFeed = subscribe(request, batch -> write(feedCodec, batch));
+                        continue;
+                    }
+                    if (request.getCorrelationId() != 0 && entry != null && entry.spec.runsInline()) {
+                        // A cheap read costs less than the hand-off to a worker
+                        write(codec, respond(request, received));
+                        continue;
+                    }
+                    if (request.getCorrelationId() == 0) {
+                        // Client does not match replies by ID: answer strictly in order
+                        inFlight.acquire(MAX_IN_FLIGHT);
+                        try {
+                            write(codec, respond(request, received));
+                        } finally {
+                            inFlight.release(MAX_IN_FLIGHT);
+                        }
+                        continue;
+                    }
+                    
+                    // Pipelined: run concurrently, reply in completion order
+                    inFlight.acquire();
+                    WireCodec replyCodec = codec;
+                    try {
+                        requestPool.execute(() -> {
+                            try {
+                                write(replyCodec, respond(request, received));
+                            } catch (IOException e) {
+                                closeQuietly();
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        inFlight.release();
+                        write(codec, reply(request, ADMISSION.queueFull()));
+                    }
                 }
+                // Let requests still running answer a half-closed client
+                inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+                LOG.info("Client disconnected");
             } catch (EOFException e) {
-                System.out.println("Client disconnected");
+                LOG.info("Client disconnected");
             } catch (Exception e) {
-                e.printStackTrace();
+                LOG.error("Client connection failed", e);
             } finally {
+                openConnections.decrementAndGet();
+                if (changeFeed != null) changeFeed.interrupt();
+                closeQuietly();
+            }
+        }
+        
+        private void write(WireCodec codec, Response response) throws IOException {
+            byte[] body = codec.encodeResponse(response);
+            BYTES_OUT.add(Framing.HEADER_BYTES + body.length);
+            writeLock.lock();
+            try {
+                Framing.writeFrame(out, body);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.error("Could not close client socket", e);
+            }
+        }
+        
+        // processRequest behind admission control, plus the IDs the client needs to
+        // match the reply. receivedNanos is when the request came off the socket.
+        static Response respond(Request request, long receivedNanos) {
+            HandlerRegistry.Entry entry = HANDLERS.lookup(request);
+            if (entry == null) return reply(request, processRequest(request));
+            Response refusal = ADMISSION.admit(entry.spec, receivedNanos);
+            if (refusal != null) return reply(request, refusal);
+            long start = System.nanoTime();
+            try {
+                return reply(request, processRequest(request));
+            } finally {
+                ADMISSION.release(entry.spec, System.nanoTime() - start);
+            }
+        }
+        
+        // Streams the change feed to a connection that sent SUBSCRIBE_CHANGES, on a thread
+        // of its own so a subscriber holds neither a worker nor an in-flight slot. Every
+        // batch answers the subscribe request. The thread ends when a send fails or it is
+        // interrupted because the connection closed.
+        static Thread subscribe(Request request, ChangeFeed.Sink sink) {
+            Object after = request.getData("afterSeq");
+            Long afterSeq = after instanceof Number ? ((Number) after).longValue() : null;
+            Thread thread = new Thread(() -> {
+                changeSubscribers.incrementAndGet();
                 try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    CHANGES.serve(afterSeq, batch -> sink.send(reply(request, batch)));
+                } catch (IOException | InterruptedException e) {
+                    LOG.info("Change subscriber left");
+                } finally {
+                    changeSubscribers.decrementAndGet();
                 }
-            }
+            }, "change-feed");
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
         }
         
-        private Response processRequest(Request request) {
+        static Response reply(Request request, Response response) {
+            response.setCorrelationId(request.getCorrelationId());
+            response.setRequestId(request.getRequestId());
+            return response;
+        }
+        
+        // Shared by the blocking ClientHandler and the NIO engine's worker pool
+        static Response processRequest(Request request) {
             String action = request.getAction();
-            System.out.println("Processing action: " + action);
+            LOG.sample("Processing action: {}", action);
             
+            HandlerRegistry.Entry entry = HANDLERS.lookup(request);
+            if (entry == null) {
+                METRICS.counter("unknown_actions_total").increment();
+                return new Response(false, "Unknown action: " + action);
+            }
+            long start = System.nanoTime();
+            Response response;
             try {
-                switch (action) {
-                    // Student operations
-                    case "STUDENT_LOGIN":
-                        return handleStudentLogin(request);
-                    case "VIEW_MODULES":
-                        return handleViewModules();
-                    case "REGISTER_MODULE":
-                        return handleRegisterModule(request);
-                    case "VIEW_REGISTERED_MODULES":
-                        return handleViewRegisteredModules(request);
-                    
-                    // Admin operations - Student management
-                    case "ADD_STUDENT":
-                        return handleAddStudent(request);
-                    case "EDIT_STUDENT":
-                        return handleEditStudent(request);
-                    case "VIEW_STUDENT":
-                        return handleViewStudent(request);
-                    case "LIST_STUDENTS":
-                        return handleListStudents();
-                    
-                    // Admin operations - Module management
-                    case "ADD_MODULE":
-                        return handleAddModule(request);
-                    case "EDIT_MODULE":
-                        return handleEditModule(request);
-                    case "VIEW_MODULE":
-                        return handleViewModule(request);
-                    case "LIST_MODULES":
-                        return handleListModules();
-                    
-                    default:
-                        return new Response(false, "Unknown action: " + action);
-                }
+                response = entry.handler.handle(request);
             } catch (Exception e) {
-                e.printStackTrace();
-                return new Response(false, "Error: " + e.getMessage());
+                LOG.error("Action " + action + " failed", e);
+                response = new Response(false, "Error: " + e.getMessage());
             }
+            entry.timer.record(System.nanoTime() - start, response.isSuccess());
+            return response;
         }
         
         // Student Operations
-        private Response handleStudentLogin(Request request) {
+        private static Response handleStudentLogin(Request request) throws IOException {
             String studentId = (String) request.getData("studentId");
             String password = (String) request.getData("password");
             
-            Student student = students.get(studentId);
+            Student student = findStudent(studentId);
             if (student != null && student.getPassword().equals(password)) {
-                return new Response(true, "Login successful", student);
+                Map<String, Object> login = new HashMap<>();
+                login.put("student", student);
+                login.put("token", sessions.create(studentId));
+                login.put("expiresInMs", sessions.ttlMs());
+                return new Response(true, "Login successful", login);
             }
+            // Marked so a cluster's gateway can try the student's previous shard; it
+            // removes the mark before the reply reaches the browser
+            if (student == null) return Response.studentNotFound("Invalid credentials");
             return new Response(false, "Invalid credentials");
         }
         
-        private Response handleViewModules() {
-            return new Response(true, "Modules retrieved", new ArrayList<>(modules.values()));
+        private static Response handleLogout(Request request) {
+            String token = (String) request.getData("token");
+            if (token == null || !sessions.remove(token)) {
+                return new Response(false, "Not logged in");
+            }
+            return new Response(true, "Logged out");
         }
         
-        private Response handleRegisterModule(Request request) {
-            String studentId = (String) request.getData("studentId");
-            String moduleCode = (String) request.getData("moduleCode");
-            
-            Student student = students.get(studentId);
-            if (student == null) {
-                return new Response(false, "Student not found");
+        // The student a request acts for: resolved from its session token if it has one
+        // (no password check), otherwise the raw studentId unless sessions are required.
+        // Null if the token is unknown or expired.
+        private static String callerId(Request request) {
+            Object token = request.getData("token");
+            if (token instanceof String) {
+                return sessions.resolve((String) token);
+            }
+            return REQUIRE_SESSION ? null : (String) request.getData("studentId");
+        }
+        
+        // Served from the pre-encoded catalog. A client that sends the version it already
+        // has gets a small "not modified" reply while the catalog is unchanged.
+        private static Response handleViewModules(Request request) throws IOException {
+            ModuleCatalog current = moduleCatalog();
+            Object knownVersion = request.getData("knownVersion");
+            if (!(knownVersion instanceof Number)) {
+                return new Response(true, "Modules retrieved", current.list());
+            }
+            if (((Number) knownVersion).longValue() == current.version()) {
+                return new Response(true, "Modules not modified", current.notModified());
+            }
+            return new Response(true, "Modules retrieved", current.versioned());
+        }
+        
+        // Mutations log their record inside compute(), i.e. under the entry's lock, so
+        // replaying the log applies changes to one key in the order they happened. The
+        // reply waits until the record is durable.
+        private static Response handleRegisterModule(Request request) throws IOException {
+            String studentId = callerId(request);
+            if (studentId == null) {
+                return new Response(false, "Session expired or invalid");
+            }
+            // From the gateway of a sharded cluster, which took the seat for this studentId
+            boolean seatTaken = Boolean.TRUE.equals(request.getData("seatTaken"));
+            if (seatTaken && !studentId.equals(request.getData("studentId"))) {
+                return new Response(false, "Session expired or invalid");
+            }
+            long[] lsn = {0};
+            Response response = registerModule(studentId, (String) request.getData("moduleCode"), seatTaken, lsn);
+            wal.awaitDurable(lsn[0]);
+            return response;
+        }
+        
+        // The single-record mutations below apply one change and queue its log record
+        // without waiting for it to be durable: the caller waits for lsn[0] (0 if nothing
+        // was logged), so a batch can wait once for all of its records.
+        private static Response registerModule(String studentId, String moduleCode, boolean seatTaken, long[] lsn)
+                throws IOException {
+            if (studentId == null || findStudent(studentId) == null) {
+                return Response.studentNotFound("Student not found");
             }
             
-            if (!modules.containsKey(moduleCode)) {
+            models.Module module = moduleCode == null ? null : modules.get(moduleCode);
+            if (module == null) {
                 return new Response(false, "Module not found");
             }
             
-            student.registerModule(moduleCode);
+            // The student's entry lock serializes their own registrations; the seat is
+            // taken lock-free, so a rush on one module only contends on its counter. One
+            // taken in the module's seat ledger already is not counted again here.
+            int seats = seatTaken ? 0 : module.getCapacity();
+            Response[] refused = {null};
+            Student student = students.computeIfPresent(studentId, (id, s) -> {
+                if (s.getRegisteredModules().contains(moduleCode)) {
+                    refused[0] = new Response(true, "Module already registered"); // not an error
+                } else if (!enrollments.tryEnroll(moduleCode, id, seats)) {
+                    refused[0] = new Response(false, "Module is full");
+                } else {
+                    s.registerModule(moduleCode);
+                    lsn[0] = wal.logRegistration(id, moduleCode);
+                    CHANGES.enrolled(moduleCode, enrollments.count(moduleCode));
+                }
+                return s;
+            });
+            if (student == null) {
+                return Response.studentNotFound("Student not found");
+            }
+            if (refused[0] != null) {
+                return refused[0];
+            }
             return new Response(true, "Module registered successfully");
         }
         
-        private Response handleViewRegisteredModules(Request request) {
-            String studentId = (String) request.getData("studentId");
-            Student student = students.get(studentId);
+        private static Response handleViewRegisteredModules(Request request) throws IOException {
+            String studentId = callerId(request);
+            if (studentId == null) {
+                return new Response(false, "Session expired or invalid");
+            }
+            Student student = findStudent(studentId);
             
             if (student == null) {
-                return new Response(false, "Student not found");
+                return Response.studentNotFound("Student not found");
             }
             
             List<models.Module> registeredModules = new ArrayList<>();
@@ -173,91 +798,576 @@ public class TCPServer {
         }
         
         // Admin Operations - Students
-        private Response handleAddStudent(Request request) {
-            String studentId = (String) request.getData("studentId");
-            String name = (String) request.getData("name");
-            String email = (String) request.getData("email");
-            String password = (String) request.getData("password");
-            
-            if (students.containsKey(studentId)) {
+        private static Response handleAddStudent(Request request) throws IOException {
+            long[] lsn = {0};
+            Response response = addStudent(textFields(request.getData()), lsn);
+            wal.awaitDurable(lsn[0]);
+            return response;
+        }
+        
+        private static Response addStudent(Map<String, ?> fields, long[] lsn) throws IOException {
+            String studentId = (String) fields.get("studentId");
+            if (studentId == null || studentId.isEmpty()) {
+                return new Response(false, "Student ID is required");
+            }
+            if (findStudent(studentId) != null) {
                 return new Response(false, "Student ID already exists");
             }
             
-            Student student = new Student(studentId, name, email, password);
-            students.put(studentId, student);
+            Student student = new Student(studentId, (String) fields.get("name"),
+                    (String) fields.get("email"), (String) fields.get("password"));
+            Student current = students.compute(studentId, (id, existing) -> {
+                if (existing != null) return existing;
+                lsn[0] = wal.logStudent(student);
+                return student;
+            });
+            if (current != student) {
+                return new Response(false, "Student ID already exists");
+            }
+            studentIds.add(studentId);
             return new Response(true, "Student added successfully", student);
         }
         
-        private Response handleEditStudent(Request request) {
-            String studentId = (String) request.getData("studentId");
-            Student student = students.get(studentId);
+        private static Response handleEditStudent(Request request) throws IOException {
+            long[] lsn = {0};
+            Response response = editStudent(textFields(request.getData()), lsn);
+            wal.awaitDurable(lsn[0]);
+            return response;
+        }
+        
+        private static Response editStudent(Map<String, ?> fields, long[] lsn) throws IOException {
+            String studentId = (String) fields.get("studentId");
+            String name = (String) fields.get("name");
+            String email = (String) fields.get("email");
+            String password = (String) fields.get("password");
+            if (studentId == null) {
+                return Response.studentNotFound("Student not found");
+            }
+            
+            findStudent(studentId); // pulls it out of the snapshot if not loaded yet
+            Student student = students.computeIfPresent(studentId, (id, s) -> {
+                if (name != null) s.setName(name);
+                if (email != null) s.setEmail(email);
+                if (password != null) s.setPassword(password);
+                lsn[0] = wal.logStudent(s);
+                return s;
+            });
             
             if (student == null) {
-                return new Response(false, "Student not found");
+                return Response.studentNotFound("Student not found");
             }
+            return new Response(true, "Student updated successfully", student);
+        }
+        
+        // A request's data, or a bulk row; a non-text value in a text field is refused
+        // here rather than failing a cast halfway through a batch
+        private static Map<String, ?> textFields(Map<String, ?> fields) {
+            if (fields == null) return Collections.emptyMap();
+            for (String key : new String[] {"studentId", "name", "email", "password", "moduleCode"}) {
+                Object value = fields.get(key);
+                if (value != null && !(value instanceof String)) {
+                    throw new IllegalArgumentException(key + " must be text");
+                }
+            }
+            return fields;
+        }
+        
+        // Admin Operations - Batches. Every record goes through the same code as its
+        // single-record action, in one pass over the list; the reply then waits once, for
+        // the last record logged, so a batch costs one group commit instead of one per record.
+        private interface RowOperation {
+            Response apply(Map<String, ?> fields, long[] lsn) throws IOException;
+        }
+        
+        // Outcome of a batch: records applied, records refused with the first few reasons,
+        // and the log record to wait for before replying
+        private static final class BulkResult {
+            private final List<Map<String, Object>> errors = new ArrayList<>();
+            private final long[] lsn = {0};
+            private int applied;
+            private int failed;
+            private long lastLsn;
+            // Every refused row, if asked for; null otherwise
+            private final List<Integer> failedRows;
             
-            String name = (String) request.getData("name");
-            String email = (String) request.getData("email");
-            String password = (String) request.getData("password");
+            BulkResult() {
+                this(false);
+            }
+            
+            BulkResult(boolean listFailedRows) {
+                this.failedRows = listFailedRows ? new ArrayList<>() : null;
+            }
+            
+            @SuppressWarnings("unchecked")
+            void apply(int row, Object fields, RowOperation operation) throws IOException {
+                Response response;
+                if (!(fields instanceof Map)) {
+                    response = new Response(false, "Expected an object");
+                } else {
+                    lsn[0] = 0;
+                    try {
+                        response = operation.apply(textFields((Map<String, ?>) fields), lsn);
+                    } catch (IllegalArgumentException e) {
+                        response = new Response(false, e.getMessage());
+                    }
+                    lastLsn = Math.max(lastLsn, lsn[0]);
+                }
+                if (response.isSuccess()) {
+                    applied++;
+                } else {
+                    fail(row, response.getMessage());
+                }
+            }
             
-            if (name != null) student.setName(name);
-            if (email != null) student.setEmail(email);
-            if (password != null) student.setPassword(password);
+            void fail(int row, String message) {
+                failed++;
+                if (failedRows != null) failedRows.add(row);
+                if (errors.size() < MAX_REPORTED_ERRORS) {
+                    Map<String, Object> error = new LinkedHashMap<>();
+                    error.put("row", row);
+                    error.put("message", message);
+                    errors.add(error);
+                }
+            }
             
-            return new Response(true, "Student updated successfully", student);
+            // {"applied", "failed", "errors": [{"row", "message"}]}, and "failedRows" if asked
+            // for; a success only if no record failed
+            Response reply(String what) throws IOException {
+                wal.awaitDurable(lastLsn);
+                Map<String, Object> data = new LinkedHashMap<>();
+                data.put("applied", applied);
+                data.put("failed", failed);
+                data.put("errors", errors);
+                if (failedRows != null) data.put("failedRows", failedRows);
+                return new Response(failed == 0, applied + " " + what + (failed == 0 ? "" : ", " + failed + " failed"), data);
+            }
+        }
+        
+        private static Response applyBulk(Object rows, RowOperation operation, String what) throws IOException {
+            return applyBulk(rows, operation, what, false);
         }
         
-        private Response handleViewStudent(Request request) {
+        // Rows are numbered from 0 in the order sent
+        private static Response applyBulk(Object rows, RowOperation operation, String what, boolean listFailedRows)
+                throws IOException {
+            if (!(rows instanceof List)) {
+                return new Response(false, "Expected a list of records");
+            }
+            List<?> list = (List<?>) rows;
+            if (list.size() > MAX_BULK_ROWS) {
+                return new Response(false, "At most " + MAX_BULK_ROWS + " records per request");
+            }
+            BulkResult result = new BulkResult(listFailedRows);
+            for (int i = 0; i < list.size(); i++) {
+                result.apply(i, list.get(i), operation);
+            }
+            return result.reply(what);
+        }
+        
+        private static Response handleBulkAddStudents(Request request) throws IOException {
+            return applyBulk(request.getData("students"), ClientHandler::addStudent, "students added");
+        }
+        
+        private static Response handleBulkEditStudents(Request request) throws IOException {
+            return applyBulk(request.getData("students"), ClientHandler::editStudent, "students updated");
+        }
+        
+        // Rows are {studentId, moduleCode}; an existing registration counts as applied
+        private static Response handleBulkRegisterModules(Request request) throws IOException {
+            // From the gateway of a sharded cluster, which took every row's seat already and
+            // gives back those of the rows that failed
+            boolean seatTaken = Boolean.TRUE.equals(request.getData("seatTaken"));
+            return applyBulk(request.getData("registrations"), (fields, lsn) ->
+                    registerModule((String) fields.get("studentId"), (String) fields.get("moduleCode"), seatTaken, lsn),
+                    "registrations applied", seatTaken);
+        }
+        
+        // Streams a CSV file from the import directory: a header naming the columns
+        // (studentId, name, email, password, in any order), then one student per record.
+        // Records are added like BULK_ADD_STUDENTS, waiting for the log every
+        // IMPORT_BATCH_ROWS, so memory stays bounded however large the file is. Errors are
+        // reported by the line the record starts on.
+        private static Response handleImportStudents(Request request) throws IOException {
+            Object name = request.getData("file");
+            Path dir = Paths.get(IMPORT_DIR).toAbsolutePath().normalize();
+            Path file = name instanceof String ? dir.resolve((String) name).normalize() : null;
+            if (file == null || !file.startsWith(dir) || !Files.isRegularFile(file)) {
+                return new Response(false, "Import file not found in " + IMPORT_DIR);
+            }
+            
+            try (CsvReader csv = new CsvReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+                List<String> header = csv.next();
+                if (header == null) {
+                    return new Response(false, "Import file is empty");
+                }
+                header.set(0, header.get(0).replace("\uFEFF", "")); // byte order mark
+                if (!header.contains("studentId")) {
+                    return new Response(false, "Import file has no studentId column");
+                }
+                
+                BulkResult result = new BulkResult();
+                Map<String, String> fields = new HashMap<>();
+                int sinceWait = 0;
+                while (true) {
+                    List<String> cells;
+                    try {
+                        cells = csv.next();
+                    } catch (IOException e) {
+                        result.fail(csv.recordLine(), e.getMessage());
+                        break;
+                    }
+                    if (cells == null) break;
+                    if (cells.size() == 1 && cells.get(0).isEmpty()) continue; // blank line
+                    
+                    fields.clear();
+                    for (int i = 0; i < header.size(); i++) {
+                        fields.put(header.get(i), i < cells.size() ? cells.get(i) : null);
+                    }
+                    result.apply(csv.recordLine(), fields, ClientHandler::addStudent);
+                    if (++sinceWait == IMPORT_BATCH_ROWS) {
+                        wal.awaitDurable(result.lastLsn);
+                        sinceWait = 0;
+                    }
+                }
+                return result.reply("students imported");
+            }
+        }
+        
+        // Rebalancing: copies whole students onto this shard. One already here (from an
+        // earlier, interrupted attempt) keeps its own registrations too. Seats come along
+        // without a capacity check, since the shard the student came from granted them.
+        private static Response handlePutStudents(Request request) throws IOException {
+            Object list = request.getData("students");
+            if (!(list instanceof List)) {
+                return new Response(false, "Expected a list of students");
+            }
+            for (Object item : (List<?>) list) {
+                if (!(item instanceof Student) || ((Student) item).getStudentId() == null) {
+                    return new Response(false, "Expected a list of students");
+                }
+            }
+            awaitStudentsLoaded();
+            
+            long lastLsn = 0;
+            for (Object item : (List<?>) list) {
+                Student incoming = (Student) item;
+                long[] lsn = {0};
+                students.compute(incoming.getStudentId(), (id, existing) -> {
+                    Student copy = new Student(id, incoming.getName(), incoming.getEmail(), incoming.getPassword());
+                    for (String moduleCode : incoming.getRegisteredModules()) copy.registerModule(moduleCode);
+                    if (existing != null) {
+                        for (String moduleCode : existing.getRegisteredModules()) copy.registerModule(moduleCode);
+                    }
+                    enrollments.addAll(copy);
+                    lsn[0] = wal.logStudent(copy);
+                    for (String moduleCode : copy.getRegisteredModules()) {
+                        CHANGES.enrolled(moduleCode, enrollments.count(moduleCode));
+                    }
+                    return copy;
+                });
+                studentIds.add(incoming.getStudentId());
+                lastLsn = lsn[0];
+            }
+            wal.awaitDurable(lastLsn);
+            return new Response(true, ((List<?>) list).size() + " students stored",
+                    Collections.singletonMap("applied", ((List<?>) list).size()));
+        }
+        
+        // Rebalancing: removes students once the shard that now owns them has a copy. Each
+        // comes with the record that was copied and is removed only if it still matches;
+        // one that changed meanwhile (an edit or registration that reached this shard
+        // during the move) stays and is listed under "changed", to be copied again.
+        private static Response handleRemoveStudents(Request request) throws IOException {
+            Object list = request.getData("students");
+            if (!(list instanceof List)) {
+                return new Response(false, "Expected a list of students");
+            }
+            awaitStudentsLoaded();
+            
+            int removed = 0;
+            List<String> changed = new ArrayList<>();
+            long lastLsn = 0;
+            for (Object item : (List<?>) list) {
+                if (!(item instanceof Student)) continue;
+                Student copied = (Student) item;
+                long[] lsn = {0};
+                students.computeIfPresent(copied.getStudentId(), (id, s) -> {
+                    if (!sameStudent(s, copied)) {
+                        changed.add(id);
+                        return s;
+                    }
+                    lsn[0] = wal.logRemoval(id);
+                    enrollments.removeAll(s);
+                    studentIds.remove(id);
+                    for (String moduleCode : s.getRegisteredModules()) {
+                        CHANGES.enrolled(moduleCode, enrollments.count(moduleCode));
+                    }
+                    return null;
+                });
+                if (lsn[0] != 0) {
+                    removed++;
+                    lastLsn = lsn[0];
+                }
+            }
+            wal.awaitDurable(lastLsn);
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("removed", removed);
+            data.put("changed", changed);
+            return new Response(true, removed + " students removed", data);
+        }
+        
+        private static boolean sameStudent(Student a, Student b) {
+            return Objects.equals(a.getName(), b.getName()) && Objects.equals(a.getEmail(), b.getEmail())
+                    && Objects.equals(a.getPassword(), b.getPassword())
+                    && new HashSet<>(a.getRegisteredModules()).equals(new HashSet<>(b.getRegisteredModules()));
+        }
+        
+        // Sharded cluster: takes seats in the ledgers of modules this shard keeps (see
+        // SeatLedger). Rows are {studentId, moduleCode}; the reply lists one result per
+        // row: "taken", "held" (the student had one already), "full", a reason such as
+        // "Module not found", or "moved" if a rebalance handed the ledger to another
+        // shard. With afterMove the gateway comes from such a shard, and a ledger not put
+        // here yet answers "pending" rather than starting out empty.
+        private static Response handleTakeSeats(Request request) throws IOException {
+            Object rows = request.getData("seats");
+            if (!(rows instanceof List)) {
+                return new Response(false, "Expected a list of seats");
+            }
+            boolean afterMove = Boolean.TRUE.equals(request.getData("afterMove"));
+            awaitStudentsLoaded(); // a new ledger starts from the enrollments
+            List<String> results = new ArrayList<>();
+            long lastLsn = 0;
+            for (Object row : (List<?>) rows) {
+                Object studentId = row instanceof Map ? ((Map<?, ?>) row).get("studentId") : null;
+                Object moduleCode = row instanceof Map ? ((Map<?, ?>) row).get("moduleCode") : null;
+                models.Module module = moduleCode instanceof String ? modules.get(moduleCode) : null;
+                if (!(studentId instanceof String) || module == null) {
+                    results.add(studentId instanceof String ? "Module not found" : "Student not found");
+                    continue;
+                }
+                String id = (String) studentId;
+                int capacity = module.getCapacity();
+                String[] result = {null};
+                long[] lsn = {0};
+                seatLedgers.compute((String) moduleCode, (code, ledger) -> {
+                    if (afterMove && (ledger == null || ledger.moved)) {
+                        result[0] = "pending";
+                        return ledger;
+                    }
+                    if (ledger == null) {
+                        ledger = newSeatLedger(code);
+                        lsn[0] = wal.logSeats(ledger);
+                    }
+                    if (ledger.moved) {
+                        result[0] = "moved";
+                    } else if (ledger.holders.contains(id)) {
+                        result[0] = "held";
+                    } else if (capacity > 0 && ledger.holders.size() >= capacity) {
+                        result[0] = "full";
+                    } else {
+                        ledger.holders.add(id);
+                        lsn[0] = wal.logSeat(code, id, true);
+                        result[0] = "taken";
+                    }
+                    return ledger;
+                });
+                results.add(result[0]);
+                lastLsn = Math.max(lastLsn, lsn[0]);
+            }
+            wal.awaitDurable(lastLsn);
+            return new Response(true, "Seats checked", Collections.singletonMap("results", results));
+        }
+        
+        // A ledger starts out with the module's enrollments on this shard, which hold their
+        // seats already (registered while this was a single server, or moved here)
+        private static SeatLedger newSeatLedger(String moduleCode) {
+            SeatLedger ledger = new SeatLedger(moduleCode);
+            ledger.holders.addAll(enrollments.studentIds(moduleCode));
+            return ledger;
+        }
+        
+        // Sharded cluster: gives back seats taken for registrations that then failed. Rows
+        // as for TAKE_SEATS; those whose ledger was handed to another shard meanwhile are
+        // listed under "moved", to be given back there.
+        private static Response handleReleaseSeats(Request request) throws IOException {
+            Object rows = request.getData("seats");
+            if (!(rows instanceof List)) {
+                return new Response(false, "Expected a list of seats");
+            }
+            int released = 0;
+            List<Object> moved = new ArrayList<>();
+            long lastLsn = 0;
+            for (Object row : (List<?>) rows) {
+                Object studentId = row instanceof Map ? ((Map<?, ?>) row).get("studentId") : null;
+                Object moduleCode = row instanceof Map ? ((Map<?, ?>) row).get("moduleCode") : null;
+                if (!(studentId instanceof String) || !(moduleCode instanceof String)) continue;
+                boolean[] outcome = {false, false}; // released, moved
+                long[] lsn = {0};
+                seatLedgers.computeIfPresent((String) moduleCode, (code, ledger) -> {
+                    if (ledger.moved) {
+                        outcome[1] = true;
+                    } else if (ledger.holders.remove(studentId)) {
+                        outcome[0] = true;
+                        lsn[0] = wal.logSeat(code, (String) studentId, false);
+                    }
+                    return ledger;
+                });
+                if (outcome[0]) released++;
+                if (outcome[1]) moved.add(row);
+                lastLsn = Math.max(lastLsn, lsn[0]);
+            }
+            wal.awaitDurable(lastLsn);
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("released", released);
+            data.put("moved", moved);
+            return new Response(true, released + " seats released", data);
+        }
+        
+        // Rebalancing: marks the seat ledgers of the listed modules moved, so this shard
+        // takes no more seats in them, and returns their holders {moduleCode: [studentIds]}
+        // for tools.ShardRebalancer to put on the shard that keeps them now
+        private static Response handleHandoverSeats(Request request) throws IOException {
+            Object codes = request.getData("moduleCodes");
+            if (!(codes instanceof List)) {
+                return new Response(false, "Expected a list of module codes");
+            }
+            awaitStudentsLoaded();
+            Map<String, Object> holders = new LinkedHashMap<>();
+            long lastLsn = 0;
+            for (Object code : (List<?>) codes) {
+                if (!(code instanceof String)) continue;
+                long[] lsn = {0};
+                seatLedgers.compute((String) code, (c, ledger) -> {
+                    if (ledger == null) ledger = newSeatLedger(c);
+                    ledger.moved = true;
+                    lsn[0] = wal.logSeats(ledger);
+                    holders.put(c, new ArrayList<>(ledger.holders));
+                    return ledger;
+                });
+                lastLsn = Math.max(lastLsn, lsn[0]);
+            }
+            wal.awaitDurable(lastLsn);
+            return new Response(true, holders.size() + " seat ledgers handed over", holders);
+        }
+        
+        // Rebalancing: puts seat ledgers {moduleCode: [studentIds]} on the shard that keeps
+        // them now. One handed over from here earlier, or not here yet, is replaced; a live
+        // one keeps its own holders too, since seats may have been taken after the list
+        // was read.
+        private static Response handlePutSeats(Request request) throws IOException {
+            Object ledgers = request.getData("seats");
+            if (!(ledgers instanceof Map)) {
+                return new Response(false, "Expected seats by module code");
+            }
+            int stored = 0;
+            long lastLsn = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) ledgers).entrySet()) {
+                if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof List)) continue;
+                List<?> holders = (List<?>) entry.getValue();
+                long[] lsn = {0};
+                seatLedgers.compute((String) entry.getKey(), (code, ledger) -> {
+                    if (ledger == null || ledger.moved) ledger = new SeatLedger(code);
+                    for (Object id : holders) {
+                        if (id instanceof String) ledger.holders.add((String) id);
+                    }
+                    lsn[0] = wal.logSeats(ledger);
+                    return ledger;
+                });
+                stored++;
+                lastLsn = Math.max(lastLsn, lsn[0]);
+            }
+            wal.awaitDurable(lastLsn);
+            return new Response(true, stored + " seat ledgers stored", Collections.singletonMap("applied", stored));
+        }
+        
+        private static Response handleViewStudent(Request request) throws IOException {
             String studentId = (String) request.getData("studentId");
-            Student student = students.get(studentId);
+            Student student = findStudent(studentId);
             
             if (student == null) {
-                return new Response(false, "Student not found");
+                return Response.studentNotFound("Student not found");
             }
             
             return new Response(true, "Student retrieved", student);
         }
         
-        private Response handleListStudents() {
-            return new Response(true, "Students retrieved", new ArrayList<>(students.values()));
+        // Without "cursor" or "limit" the whole list is returned as before. With either,
+        // one page in key order: {"items": [...], "nextCursor": <last key, or null at the end>}.
+        // The cursor is a key, so pages stay consistent while students are being added.
+        private static Response handleListStudents(Request request) throws IOException {
+            awaitStudentsLoaded();
+            if (!isPaged(request)) {
+                return new Response(true, "Students retrieved", new ArrayList<>(students.values()));
+            }
+            return new Response(true, "Students retrieved", page(request, studentIds, students::get));
         }
         
         // Admin Operations - Modules
-        private Response handleAddModule(Request request) {
+        private static Response handleAddModule(Request request) throws IOException {
             String moduleCode = (String) request.getData("moduleCode");
             String moduleName = (String) request.getData("moduleName");
             String description = (String) request.getData("description");
             Integer credits = (Integer) request.getData("credits");
+            Integer capacity = (Integer) request.getData("capacity");
             
+            if (capacity != null && capacity < 0) {
+                return new Response(false, "Capacity cannot be negative");
+            }
             if (modules.containsKey(moduleCode)) {
                 return new Response(false, "Module code already exists");
             }
             
-            models.Module module = new models.Module(moduleCode, moduleName, description, credits);
-            modules.put(moduleCode, module);
+            models.Module module = new models.Module(moduleCode, moduleName, description, credits,
+                    capacity == null ? 0 : capacity);
+            long[] lsn = {0};
+            models.Module current = modules.compute(moduleCode, (code, existing) -> {
+                if (existing != null) return existing;
+                lsn[0] = wal.logModule(module);
+                CHANGES.moduleChanged(module);
+                return module;
+            });
+            if (current != module) {
+                return new Response(false, "Module code already exists");
+            }
+            moduleCodes.add(moduleCode);
+            moduleVersion.incrementAndGet();
+            wal.awaitDurable(lsn[0]);
             return new Response(true, "Module added successfully", module);
         }
         
-        private Response handleEditModule(Request request) {
+        private static Response handleEditModule(Request request) throws IOException {
             String moduleCode = (String) request.getData("moduleCode");
-            models.Module module = modules.get(moduleCode);
-            
-            if (module == null) {
-                return new Response(false, "Module not found");
-            }
-            
             String moduleName = (String) request.getData("moduleName");
             String description = (String) request.getData("description");
             Integer credits = (Integer) request.getData("credits");
+            Integer capacity = (Integer) request.getData("capacity");
+            
+            if (capacity != null && capacity < 0) {
+                return new Response(false, "Capacity cannot be negative");
+            }
+            // Lowering capacity below the seats taken keeps those students and only
+            // refuses new registrations
+            long[] lsn = {0};
+            models.Module module = modules.computeIfPresent(moduleCode, (code, m) -> {
+                if (moduleName != null) m.setModuleName(moduleName);
+                if (description != null) m.setDescription(description);
+                if (credits != null) m.setCredits(credits);
+                if (capacity != null) m.setCapacity(capacity);
+                lsn[0] = wal.logModule(m);
+                CHANGES.moduleChanged(m);
+                return m;
+            });
             
-            if (moduleName != null) module.setModuleName(moduleName);
-            if (description != null) module.setDescription(description);
-            if (credits != null) module.setCredits(credits);
+            if (module == null) {
+                return new Response(false, "Module not found");
+            }
             
+            moduleVersion.incrementAndGet();
+            wal.awaitDurable(lsn[0]);
             return new Response(true, "Module updated successfully", module);
         }
         
-        private Response handleViewModule(Request request) {
+        private static Response handleViewModule(Request request) {
             String moduleCode = (String) request.getData("moduleCode");
             models.Module module = modules.get(moduleCode);
             
@@ -268,8 +1378,72 @@ public class TCPServer {
             return new Response(true, "Module retrieved", module);
         }
         
-        private Response handleListModules() {
-            return new Response(true, "Modules retrieved", new ArrayList<>(modules.values()));
+        private static Response handleListModules(Request request) {
+            if (!isPaged(request)) {
+                return new Response(true, "Modules retrieved", new ArrayList<>(modules.values()));
+            }
+            return new Response(true, "Modules retrieved", page(request, moduleCodes, modules::get));
+        }
+        
+        // Enrollment queries read the reverse index, so they cost the size of the answer
+        // rather than a scan of every student
+        private static Response handleModuleRoster(Request request) throws IOException {
+            String moduleCode = (String) request.getData("moduleCode");
+            if (!modules.containsKey(moduleCode)) {
+                return new Response(false, "Module not found");
+            }
+            awaitStudentsLoaded();
+            
+            Map<String, Object> roster = page(request, enrollments.studentIds(moduleCode), id -> id);
+            roster.put("moduleCode", moduleCode);
+            roster.put("enrolled", enrollments.count(moduleCode));
+            return new Response(true, "Roster retrieved", roster);
+        }
+        
+        // One module's count if moduleCode is given, otherwise every module's
+        private static Response handleEnrollmentCounts(Request request) throws IOException {
+            String moduleCode = (String) request.getData("moduleCode");
+            if (moduleCode != null && !modules.containsKey(moduleCode)) {
+                return new Response(false, "Module not found");
+            }
+            awaitStudentsLoaded();
+            
+            Map<String, Object> counts = new LinkedHashMap<>();
+            for (String code : moduleCode != null ? Collections.singleton(moduleCode) : moduleCodes) {
+                counts.put(code, enrollments.count(code));
+            }
+            return new Response(true, "Enrollment counts retrieved", counts);
+        }
+        
+        private static boolean isPaged(Request request) {
+            return request.getData("cursor") != null || request.getData("limit") != null;
+        }
+        
+        private static <T> Map<String, Object> page(Request request, NavigableSet<String> keys, Function<String, T> values) {
+            Object limitValue = request.getData("limit");
+            int limit = limitValue instanceof Number ? ((Number) limitValue).intValue() : DEFAULT_PAGE_SIZE;
+            limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+            String cursor = (String) request.getData("cursor");
+            
+            List<T> items = new ArrayList<>(Math.min(limit, 256));
+            String last = null;
+            boolean more = false;
+            for (String key : cursor == null ? keys : keys.tailSet(cursor, false)) {
+                if (items.size() == limit) {
+                    more = true;
+                    break;
+                }
+                T value = values.apply(key);
+                if (value != null) {
+                    items.add(value);
+                    last = key;
+                }
+            }
+            
+            Map<String, Object> page = new HashMap<>();
+            page.put("items", items);
+            page.put("nextCursor", more ? last : null);
+            return page;
         }
     }
 }
@@ -0,0 +1,448 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import models.Module;
+import models.Student;
+import protocol.BinaryCodec;
+import protocol.BinaryReader;
+import protocol.BinaryWriter;
+import protocol.Framing;
+
+// Append-only write-ahead log for the student and module stores.
+//
+// Record: int length, int CRC32 of the rest, long LSN, type byte, body. Bodies use the
+// binary codec's Student/Module encodings.
+//
+// Mutations append while holding their map entry's lock, so the records for one key
+// are logged in the order they were applied. A single committer thread writes whatever
+// has queued up, waiting up to the group-commit window for more, and makes the whole
+// batch durable with one force(). Writers then block in awaitDurable until their LSN
+// is covered, so N concurrent registrations cost one fsync rather than N.
+//
+// The log is a sequence of segment files named after their first LSN. rotate() starts
+// a new segment so that, once a snapshot covers everything before it, the older
+// segments can be deleted.
+class WriteAheadLog implements Closeable {
+    // Full state of one student / module (replayed as an upsert)
+    static final int STUDENT = 1;
+    static final int MODULE = 2;
+    // studentId, moduleCode
+    static final int REGISTRATION = 3;
+    // studentId of a student that moved to another shard
+    static final int REMOVAL = 4;
+    // moduleCode, studentId, taken (1) or given back (0): one seat in a SeatLedger
+    static final int SEAT = 5;
+    // Whole SeatLedger of one module, after a rebalance handed it over or put it here
+    static final int SEATS = 6;
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    // LSN + type byte, the part of a record covered by length besides the body
+    private static final int MIN_RECORD_BYTES = 8 + 1;
+    private static final int MAX_BATCH_RECORDS = 4096;
+    private static final ThreadLocal<BinaryWriter> BODIES = ThreadLocal.withInitial(() -> new BinaryWriter(256));
+
+    interface Replayer {
+        void apply(int type, BinaryReader body) throws IOException;
+    }
+
+    private static final class Record {
+        final long lsn;
+        final int type;
+        final byte[] body;
+
+        Record(long lsn, int type, byte[] body) {
+            this.lsn = lsn;
+            this.type = type;
+            this.body = body;
+        }
+    }
+
+    private final Path dir;
+    private final long groupCommitNanos;
+    private final boolean fsync;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    // Guarded by lock
+    private List<Record> queue = new ArrayList<>();
+    private long lastLsn;
+    private long durableLsn;
+    private long segmentFirstLsn;
+    private boolean rotateRequested;
+    private IOException failure;
+    private boolean closed;
+
+    // Committer thread only once recover() has returned
+    private FileChannel channel;
+    private Thread committer;
+    private ByteBuffer batchBuffer = ByteBuffer.allocate(64 * 1024);
+
+    WriteAheadLog(Path dataDir, long groupCommitMs, boolean fsync) throws IOException {
+        Files.createDirectories(dataDir);
+        this.dir = dataDir;
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMs);
+        this.fsync = fsync;
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    // Replays every record with an LSN above afterLsn, cuts off a torn tail left by a
+    // crash, then opens the newest segment for appending. Returns the number of records applied.
+    // Only the newest segment can have a torn tail: a segment is complete and forced before
+    // the next one is started. A bad record in an older one is corruption in the middle of
+    // the log, and recovery fails rather than drop acknowledged writes and replay past them.
+    long recover(long afterLsn, Replayer replayer) throws IOException {
+        lastLsn = afterLsn;
+        long applied = 0;
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            applied += replay(segments.get(i), afterLsn, replayer, i == segments.size() - 1);
+        }
+
+        if (segments.isEmpty()) {
+            segmentFirstLsn = lastLsn + 1;
+            channel = FileChannel.open(segmentFile(segmentFirstLsn), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } else {
+            Path newest = segments.get(segments.size() - 1);
+            segmentFirstLsn = firstLsn(newest);
+            channel = FileChannel.open(newest, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+        durableLsn = lastLsn;
+
+        committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+        return applied;
+    }
+
+    private long replay(Path segment, long afterLsn, Replayer replayer, boolean newest) throws IOException {
+        long applied = 0;
+        long validEnd = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 64 * 1024))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < MIN_RECORD_BYTES || length > Framing.MAX_FRAME_BYTES) break;
+                byte[] record = new byte[length];
+                int expectedCrc;
+                try {
+                    expectedCrc = in.readInt();
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != expectedCrc) break;
+
+                long lsn = ByteBuffer.wrap(record).getLong();
+                if (lsn > afterLsn) {
+                    replayer.apply(record[8], new BinaryReader(record, 9, length - 9));
+                    applied++;
+                }
+                lastLsn = Math.max(lastLsn, lsn);
+                validEnd += 8 + length;
+            }
+        }
+
+        long size = Files.size(segment);
+        if (size > validEnd && !newest) {
+            throw new IOException("Corrupt write-ahead log record in " + segment.getFileName() + " at offset "
+                    + validEnd + " (" + (size - validEnd) + " bytes unreadable)");
+        }
+        if (size > validEnd) {
+            System.out.println("Write-ahead log: discarding " + (size - validEnd)
+                    + " bytes of incomplete records from " + segment.getFileName());
+            try (FileChannel c = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                c.truncate(validEnd);
+                c.force(true);
+            }
+        }
+        return applied;
+    }
+
+    // Segment files, oldest first
+    private List<Path> segments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : stream) files.add(p);
+        }
+        files.sort(Comparator.comparingLong(WriteAheadLog::firstLsn));
+        return files;
+    }
+
+    private Path segmentFile(long firstLsn) {
+        return dir.resolve(String.format("%s%020d%s", PREFIX, firstLsn, SUFFIX));
+    }
+
+    private static long firstLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // ---- Appending (any thread; never blocks on I/O) ----
+
+    long logStudent(Student student) {
+        BinaryWriter w = body();
+        BinaryCodec.writeStudent(w, student);
+        return append(STUDENT, w);
+    }
+
+    long logModule(Module module) {
+        BinaryWriter w = body();
+        BinaryCodec.writeModule(w, module);
+        return append(MODULE, w);
+    }
+
+    long logRegistration(String studentId, String moduleCode) {
+        BinaryWriter w = body();
+        w.writeString(studentId);
+        w.writeString(moduleCode);
+        return append(REGISTRATION, w);
+    }
+
+    long logRemoval(String studentId) {
+        BinaryWriter w = body();
+        w.writeString(studentId);
+        return append(REMOVAL, w);
+    }
+
+    long logSeat(String moduleCode, String studentId, boolean taken) {
+        BinaryWriter w = body();
+        w.writeString(moduleCode);
+        w.writeString(studentId);
+        w.writeByte(taken ? 1 : 0);
+        return append(SEAT, w);
+    }
+
+    long logSeats(SeatLedger ledger) {
+        BinaryWriter w = body();
+        ledger.write(w);
+        return append(SEATS, w);
+    }
+
+    private static BinaryWriter body() {
+        BinaryWriter w = BODIES.get();
+        w.reset();
+        return w;
+    }
+
+    private long append(int type, BinaryWriter body) {
+        byte[] bytes = body.toByteArray();
+        lock.lock();
+        try {
+            long lsn = ++lastLsn;
+            queue.add(new Record(lsn, type, bytes));
+            queued.signal();
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Highest LSN handed out so far
+    long lastLsn() {
+        lock.lock();
+        try {
+            return lastLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until the record with this LSN has been forced to disk
+    void awaitDurable(long lsn) throws IOException {
+        lock.lock();
+        try {
+            while (durableLsn < lsn) {
+                awaitCommit();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- Segments ----
+
+    // Starts a new segment once everything queued so far is written. Returns the new
+    // segment's first LSN: every record below it lives in an older segment.
+    long rotate() throws IOException {
+        lock.lock();
+        try {
+            rotateRequested = true;
+            queued.signal();
+            while (rotateRequested) {
+                awaitCommit();
+            }
+            return segmentFirstLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deletes the segments holding only records below firstLsn, once a snapshot covers them
+    void deleteSegmentsBefore(long firstLsn) throws IOException {
+        List<Path> segments = segments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstLsn(segments.get(i + 1)) <= firstLsn) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    // Called with lock held
+    private void awaitCommit() throws IOException {
+        if (failure != null) throw new IOException("Write-ahead log unavailable", failure);
+        if (closed && committer == null) throw new IOException("Write-ahead log closed");
+        try {
+            committed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the write-ahead log");
+        }
+    }
+
+    // ---- Group commit ----
+
+    private void commitLoop() {
+        while (true) {
+            List<Record> batch;
+            boolean rotate;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !rotateRequested && !closed) {
+                    queued.awaitUninterruptibly();
+                }
+                if (queue.isEmpty() && !rotateRequested) return; // closed and drained
+                // Hold the batch open for late arrivals, up to the window
+                long remaining = queue.isEmpty() ? 0 : groupCommitNanos;
+                while (remaining > 0 && queue.size() < MAX_BATCH_RECORDS && !closed) {
+                    remaining = queued.awaitNanos(remaining);
+                }
+                batch = queue;
+                queue = new ArrayList<>();
+                rotate = rotateRequested;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            long nextSegment = 0;
+            try {
+                if (!batch.isEmpty()) write(batch);
+                if (rotate) nextSegment = startSegment(batch);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    System.out.println("Write-ahead log failed: " + error.getMessage());
+                    failure = error;
+                    committed.signalAll();
+                    return;
+                }
+                if (!batch.isEmpty()) durableLsn = batch.get(batch.size() - 1).lsn;
+                if (rotate) {
+                    segmentFirstLsn = nextSegment;
+                    rotateRequested = false;
+                }
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(List<Record> batch) throws IOException {
+        ByteBuffer buf = batchBuffer;
+        buf.clear();
+        CRC32 crc = new CRC32();
+        for (Record record : batch) {
+            int length = 8 + 1 + record.body.length;
+            if (buf.remaining() < 8 + length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + 8 + length));
+                buf.flip();
+                buf = bigger.put(buf);
+            }
+            int start = buf.position();
+            buf.putInt(length).putInt(0).putLong(record.lsn).put((byte) record.type).put(record.body);
+            crc.reset();
+            crc.update(buf.array(), start + 8, length);
+            buf.putInt(start + 4, (int) crc.getValue());
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        if (fsync) {
+            channel.force(false);
+        }
+        // Keep the grown buffer unless one huge batch blew it up
+        batchBuffer = buf.capacity() <= 4 * 1024 * 1024 ? buf : ByteBuffer.allocate(64 * 1024);
+    }
+
+    // Committer thread: switches to a segment starting right after the batch just written
+    private long startSegment(List<Record> batch) throws IOException {
+        long first;
+        lock.lock();
+        try {
+            first = (batch.isEmpty() ? durableLsn : batch.get(batch.size() - 1).lsn) + 1;
+            if (first == segmentFirstLsn) return first; // current segment is still empty
+        } finally {
+            lock.unlock();
+        }
+        channel.force(false);
+        channel.close();
+        channel = FileChannel.open(segmentFile(first), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        return first;
+    }
+
+    // Commits everything already appended, then stops the committer
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queued.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (committer != null) committer.join();
+            if (channel != null) channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        lock.lock();
+        try {
+            committer = null;
+            committed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
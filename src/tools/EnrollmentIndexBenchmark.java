@@ -0,0 +1,86 @@
+package tools;
+
+import java.util.*;
+import java.util.concurrent.*;
+import models.Student;
+import server.EnrollmentIndex;
+
+// Compares answering roster and enrollment-count queries from the reverse enrollment
+// index with scanning every student's registeredModules, the only way before it existed.
+//
+// Builds N enrollments (students each registered for a few distinct modules), then
+// reports the index build time and the average cost per query of:
+//   - the first roster page (100 IDs in order) and the module's enrollment count
+//   - the same answers computed by a full scan of the student map
+//
+// Usage: java -cp . tools.EnrollmentIndexBenchmark [enrollments] [modules] [perStudent]
+// Defaults: 1000000 enrollments, 200 modules, 4 modules per student.
+public class EnrollmentIndexBenchmark {
+    private static final int PAGE = 100;
+    private static final int INDEX_QUERIES = 20000;
+    private static final int SCAN_QUERIES = 20;
+
+    public static void main(String[] args) {
+        int enrollments = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int moduleCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int perStudent = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int studentCount = enrollments / perStudent;
+
+        Random random = new Random(42);
+        Map<String, Student> students = new ConcurrentHashMap<>(studentCount * 2);
+        for (int i = 0; i < studentCount; i++) {
+            Student s = new Student("S" + i, "Student " + i, "student" + i + "@example.com", "pw");
+            while (s.getRegisteredModules().size() < perStudent) {
+                s.registerModule("M" + random.nextInt(moduleCount));
+            }
+            students.put(s.getStudentId(), s);
+        }
+        System.out.printf("%d students, %d modules, %d enrollments%n", studentCount, moduleCount,
+                (long) studentCount * perStudent);
+
+        long start = System.nanoTime();
+        EnrollmentIndex index = new EnrollmentIndex();
+        for (Student s : students.values()) {
+            index.addAll(s);
+        }
+        System.out.printf("%-30s %10.1f ms%n", "build index", (System.nanoTime() - start) / 1e6);
+
+        long sink = 0;
+        for (int round = 0; round < 2; round++) { // first round warms up
+            start = System.nanoTime();
+            for (int q = 0; q < INDEX_QUERIES; q++) {
+                String module = "M" + random.nextInt(moduleCount);
+                int taken = 0;
+                for (String id : index.studentIds(module)) {
+                    sink += id.length();
+                    if (++taken == PAGE) break;
+                }
+                sink += index.count(module);
+            }
+            double indexMicros = (System.nanoTime() - start) / 1e3 / INDEX_QUERIES;
+
+            start = System.nanoTime();
+            for (int q = 0; q < SCAN_QUERIES; q++) {
+                String module = "M" + random.nextInt(moduleCount);
+                TreeSet<String> firstPage = new TreeSet<>();
+                int count = 0;
+                for (Student s : students.values()) {
+                    if (s.getRegisteredModules().contains(module)) {
+                        count++;
+                        firstPage.add(s.getStudentId());
+                        if (firstPage.size() > PAGE) firstPage.pollLast();
+                    }
+                }
+                sink += count + firstPage.size();
+            }
+            double scanMicros = (System.nanoTime() - start) / 1e3 / SCAN_QUERIES;
+
+            if (round == 1) {
+                System.out.printf("%-30s %10.1f us/query%n", "index: roster page + count", indexMicros);
+                System.out.printf("%-30s %10.1f us/query%n", "scan:  roster page + count", scanMicros);
+                System.out.printf("%-30s %10.0fx%n", "speedup", scanMicros / indexMicros);
+            }
+        }
+        if (sink == 42) System.out.println();
+    }
+}
@@ -0,0 +1,159 @@
+package tools;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Compares the platform and virtual thread executors under many concurrent
+// WebSocket clients. For each mode it launches the system in a child JVM, holds
+// the clients open, drives request rounds, and reports the child's thread count,
+// resident memory (Linux /proc) and p99 round-trip latency.
+//
+// Usage: java -cp . tools.ExecutorComparison [clients] [rounds] [modes...]
+// Defaults: 10000 clients, 5 rounds, "platform virtual". Raise `ulimit -n` first.
+public class ExecutorComparison {
+    private static final String HOST = "localhost";
+    private static final int GATEWAY_PORT = 8080;
+    private static final int TIMEOUT_MS = 30000;
+    private static final int DRIVER_THREADS = Integer.getInteger("driverThreads", 256);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        List<String> modes = args.length > 2
+                ? Arrays.asList(args).subList(2, args.length)
+                : Arrays.asList("platform", "virtual");
+
+        List<String> results = new ArrayList<>();
+        for (String mode : modes) {
+            results.add(run(mode, clients, rounds));
+        }
+
+        System.out.println();
+        System.out.printf("%-10s %8s %8s %10s %10s %10s %8s%n",
+                "executor", "clients", "threads", "rss(MB)", "p50(ms)", "p99(ms)", "errors");
+        for (String line : results) {
+            System.out.println(line);
+        }
+    }
+
+    private static String run(String mode, int clientCount, int rounds) throws Exception {
+        System.out.println("=== " + mode + ": starting child JVM ===");
+        Process child = startChild(mode);
+        List<WebSocketClient> clients = new ArrayList<>(clientCount);
+        ExecutorService driver = Executors.newFixedThreadPool(DRIVER_THREADS);
+        try {
+            waitForPort(GATEWAY_PORT, 30000);
+
+            for (int i = 0; i < clientCount; i++) {
+                clients.add(new WebSocketClient(HOST, GATEWAY_PORT, TIMEOUT_MS));
+                if ((i + 1) % 1000 == 0) System.out.println("  connected " + (i + 1));
+            }
+
+            // Warm-up round, not recorded
+            driveRound(driver, clients, null, new AtomicLong());
+
+            long[] latencies = new long[clientCount * rounds];
+            AtomicInteger next = new AtomicInteger();
+            AtomicLong errors = new AtomicLong();
+            for (int r = 0; r < rounds; r++) {
+                driveRound(driver, clients, nanos -> latencies[next.getAndIncrement()] = nanos, errors);
+            }
+
+            // Sample while every client connection is still open
+            long threads = readProcStatus(child.pid(), "Threads:");
+            long rssKb = readProcStatus(child.pid(), "VmRSS:");
+
+            long[] recorded = Arrays.copyOf(latencies, next.get());
+            Arrays.sort(recorded);
+            return String.format("%-10s %8d %8s %10s %10.2f %10.2f %8d",
+                    mode, clientCount,
+                    threads < 0 ? "n/a" : String.valueOf(threads),
+                    rssKb < 0 ? "n/a" : String.format("%.1f", rssKb / 1024.0),
+                    percentile(recorded, 0.50) / 1e6, percentile(recorded, 0.99) / 1e6,
+                    errors.get());
+        } finally {
+            driver.shutdownNow();
+            for (WebSocketClient client : clients) {
+                try { client.close(); } catch (IOException ignored) {}
+            }
+            child.destroy();
+            child.waitFor(10, TimeUnit.SECONDS);
+            if (child.isAlive()) child.destroyForcibly().waitFor();
+        }
+    }
+
+    private interface LatencySink {
+        void record(long nanos);
+    }
+
+    private static void driveRound(ExecutorService driver, List<WebSocketClient> clients,
+                                   LatencySink sink, AtomicLong errors) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(clients.size());
+        for (WebSocketClient client : clients) {
+            driver.execute(() -> {
+                try {
+                    long start = System.nanoTime();
+                    client.sendText("{\"action\":\"VIEW_MODULES\",\"data\":{}}");
+                    String reply = client.readText();
+                    long elapsed = System.nanoTime() - start;
+                    if (reply == null || !reply.contains("\"success\":true")) {
+                        errors.incrementAndGet();
+                    } else if (sink != null) {
+                        sink.record(elapsed);
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+
+    private static Process startChild(String mode) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>(Arrays.asList(
+                java, "-Dexecutor=" + mode, "-cp", System.getProperty("java.class.path"), "Launcher"));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        return builder.start();
+    }
+
+    private static void waitForPort(int port, long timeoutMs) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("Gateway did not start", e);
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    // Returns -1 when /proc is unavailable (non-Linux)
+    private static long readProcStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,194 @@
+package tools;
+
+import gateway.JsonParser;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Compares gateway.JsonParser with the substring-based parser it replaced, on
+// payloads shaped like the ones the admin and student frontends send.
+// Reports nanoseconds and allocated bytes per parse (HotSpot allocation counter).
+//
+// Usage: java -cp . tools.JsonParserBenchmark [iterations]
+public class JsonParserBenchmark {
+    private static final String[] PAYLOADS = {
+            "{\"action\":\"ADD_STUDENT\",\"data\":{\"studentId\":\"S10023\",\"name\":\"Amelia Fernando\"," +
+                    "\"email\":\"amelia.fernando@example.com\",\"password\":\"Str0ng-Passw0rd!\"}}",
+            "{\"action\":\"EDIT_MODULE\",\"data\":{\"moduleCode\":\"CS305\",\"moduleName\":\"Distributed Systems\"," +
+                    "\"description\":\"Consensus, replication and \\\"exactly once\\\" delivery\\nwith labs\",\"credits\":4}}",
+            "{\"action\":\"REGISTER_MODULE\",\"data\":{\"studentId\":\"S10023\",\"moduleCode\":\"CS305\"}}",
+            "{\"action\":\"LIST_STUDENTS\",\"data\":{}}",
+    };
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        byte[][] encoded = new byte[PAYLOADS.length][];
+        for (int i = 0; i < PAYLOADS.length; i++) {
+            encoded[i] = PAYLOADS[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        JsonParser parser = new JsonParser();
+        long sink = 0;
+
+        // Warm up both paths
+        for (int i = 0; i < iterations / 4; i++) {
+            byte[] p = encoded[i % encoded.length];
+            sink += parser.parseRequest(p, 0, p.length).getData().size();
+            sink += LegacyJsonParser.parseRequest(p).getData().size();
+        }
+
+        System.out.printf("%-16s %12s %12s%n", "parser", "ns/op", "bytes/op");
+        long[] legacy = measure(() -> {
+            long s = 0;
+            for (int i = 0; i < iterations; i++) {
+                byte[] p = encoded[i % encoded.length];
+                s += LegacyJsonParser.parseRequest(p).getData().size();
+            }
+            return s;
+        }, iterations);
+        long[] streaming = measure(() -> {
+            long s = 0;
+            for (int i = 0; i < iterations; i++) {
+                byte[] p = encoded[i % encoded.length];
+                s += parser.parseRequest(p, 0, p.length).getData().size();
+            }
+            return s;
+        }, iterations);
+        System.out.printf("%-16s %12d %12d%n", "legacy", legacy[0], legacy[1]);
+        System.out.printf("%-16s %12d %12d%n", "single-pass", streaming[0], streaming[1]);
+        System.out.println("(checksum " + (sink + legacy[2] + streaming[2]) + ")");
+    }
+
+    private interface Workload {
+        long run();
+    }
+
+    // Returns {ns/op, bytes/op, checksum}
+    private static long[] measure(Workload workload, int iterations) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long checksum = workload.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return new long[] {elapsed / iterations, allocated / iterations, checksum};
+    }
+
+    // The gateway's original parser, kept verbatim (plus the envelope handling from
+    // processMessage) as the comparison baseline
+    static class LegacyJsonParser {
+        static models.Request parseRequest(byte[] payload) {
+            Map<String, Object> jsonRequest = parseJSON(new String(payload, StandardCharsets.UTF_8));
+            models.Request request = new models.Request();
+            request.setAction((String) jsonRequest.get("action"));
+            if (jsonRequest.containsKey("data") && jsonRequest.get("data") != null) {
+                Object dataObj = jsonRequest.get("data");
+                if (dataObj instanceof Map) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> data = (Map<String, Object>) dataObj;
+                    request.setData(new HashMap<>(data));
+                }
+            }
+            return request;
+        }
+
+        static Map<String, Object> parseJSON(String json) {
+            Map<String, Object> result = new HashMap<>();
+            json = json.trim();
+            if (json.equals("{}")) {
+                return result;
+            }
+            if (json.startsWith("{") && json.endsWith("}")) {
+                json = json.substring(1, json.length() - 1);
+            }
+            if (json.trim().isEmpty()) {
+                return result;
+            }
+            List<String> pairs = splitByComma(json);
+            for (String pair : pairs) {
+                if (pair == null || pair.trim().isEmpty()) {
+                    continue;
+                }
+                int colonIndex = findFirstColon(pair);
+                if (colonIndex == -1) continue;
+                String key = pair.substring(0, colonIndex).trim().replaceAll("\"", "");
+                String value = pair.substring(colonIndex + 1).trim();
+                if (value == null || value.isEmpty()) {
+                    continue;
+                }
+                result.put(key, parseValue(value));
+            }
+            return result;
+        }
+
+        static List<String> splitByComma(String str) {
+            List<String> result = new ArrayList<>();
+            int braceDepth = 0;
+            boolean inQuotes = false;
+            StringBuilder current = new StringBuilder();
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (c == '"' && (i == 0 || str.charAt(i - 1) != '\\')) {
+                    inQuotes = !inQuotes;
+                    current.append(c);
+                } else if (c == '{' && !inQuotes) {
+                    braceDepth++;
+                    current.append(c);
+                } else if (c == '}' && !inQuotes) {
+                    braceDepth--;
+                    current.append(c);
+                } else if (c == ',' && !inQuotes && braceDepth == 0) {
+                    result.add(current.toString());
+                    current = new StringBuilder();
+                } else {
+                    current.append(c);
+                }
+            }
+            if (current.length() > 0) {
+                result.add(current.toString());
+            }
+            return result;
+        }
+
+        static int findFirstColon(String str) {
+            boolean inQuotes = false;
+            int braceDepth = 0;
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (c == '"' && (i == 0 || str.charAt(i - 1) != '\\')) {
+                    inQuotes = !inQuotes;
+                } else if (c == '{' && !inQuotes) {
+                    braceDepth++;
+                } else if (c == '}' && !inQuotes) {
+                    braceDepth--;
+                } else if (c == ':' && !inQuotes && braceDepth == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        static Object parseValue(String value) {
+            value = value.trim();
+            if (value.startsWith("{") && value.endsWith("}")) {
+                return parseJSON(value);
+            } else if (value.startsWith("\"") && value.endsWith("\"")) {
+                return value.substring(1, value.length() - 1);
+            } else if (value.equals("true")) {
+                return Boolean.TRUE;
+            } else if (value.equals("false")) {
+                return Boolean.FALSE;
+            } else if (value.equals("null")) {
+                return null;
+            } else if (value.matches("-?\\d+")) {
+                return Integer.parseInt(value);
+            } else if (value.matches("-?\\d*\\.\\d+")) {
+                return Double.parseDouble(value);
+            } else {
+                return value;
+            }
+        }
+    }
+}
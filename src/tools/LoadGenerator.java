@@ -0,0 +1,363 @@
+package tools;
+
+import common.Histogram;
+import common.ThreadPools;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Registration-day load test: simulated students and admins talking to the gateway over
+// WebSocket with the same JSON messages as frontend/student/student.js and
+// frontend/admin/admin.js.
+//
+// Starts Launcher in a child JVM on a scratch data directory, adds the student
+// population and the modules (a few "hot" ones with limited seats that everybody wants),
+// then runs an open workload for the given time: student sessions arrive at random
+// (Poisson) at the given rate whether or not earlier ones have finished, and each one
+// connects, logs in, browses VIEW_MODULES a few times, tries to register for a hot module
+// and a couple of others, checks VIEW_REGISTERED_MODULES and logs out, pausing between
+// steps. Separately, admins ask for the streamed LIST_STUDENTS at their own rate.
+//
+// Latency is measured from when each request was meant to be sent, not from when it was
+// actually sent: a session's next step is due one think time after the previous one was
+// due, so a stall delays everything behind it and shows up in the percentiles instead
+// of being hidden by fewer requests being sent (coordinated omission). The uncorrected
+// time from send to reply is reported alongside as "service p99".
+//
+// Usage: java -cp . tools.LoadGenerator [students] [sessionsPerSec] [seconds] [adminListsPerSec]
+// Defaults: 5000 students, 100 sessions/s, 60 s, 0.5 lists/s. Finer settings as -D properties:
+//   load.modules (30), load.hotModules (3), load.capacity (200 seats per hot module),
+//   load.browse (3 VIEW_MODULES per session), load.thinkMs (200, mean pause between steps),
+//   load.serverArgs ("" extra JVM options for the child, e.g. "-Dserver.mode=nio").
+// Ports 8080 and 8888 must be free. Raise `ulimit -n` for high session rates.
+public class LoadGenerator {
+    private static final String HOST = "localhost";
+    private static final int GATEWAY_PORT = 8080;
+    private static final int TIMEOUT_MS = 30000;
+    private static final String PASSWORD = "pw";
+
+    private static final int MODULES = Integer.getInteger("load.modules", 30);
+    private static final int HOT_MODULES = Integer.getInteger("load.hotModules", 3);
+    private static final int CAPACITY = Integer.getInteger("load.capacity", 200);
+    private static final int BROWSE = Integer.getInteger("load.browse", 3);
+    private static final long THINK_MS = Long.getLong("load.thinkMs", 200);
+    private static final String SERVER_ARGS = System.getProperty("load.serverArgs", "");
+
+    private static final String[] ACTIONS = {"CONNECT", "STUDENT_LOGIN", "VIEW_MODULES", "REGISTER_MODULE",
+            "VIEW_REGISTERED_MODULES", "LOGOUT", "LIST_STUDENTS"};
+
+    // Per action: corrected latency, uncorrected service time, outcome counters
+    private static final class Stats {
+        final Histogram latency = new Histogram();
+        final Histogram service = new Histogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder full = new LongAdder();
+        final LongAdder shed = new LongAdder();
+    }
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final int studentCount;
+    private final AtomicLong sessionsStarted = new AtomicLong();
+    private final AtomicLong sessionsFinished = new AtomicLong();
+    private final AtomicLong sessionsFailed = new AtomicLong();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicInteger peakSessions = new AtomicInteger();
+
+    LoadGenerator(int studentCount) {
+        this.studentCount = studentCount;
+        for (String action : ACTIONS) stats.put(action, new Stats());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int students = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        double sessionRate = args.length > 1 ? Double.parseDouble(args[1]) : 100;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        double adminRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.5;
+
+        LoadGenerator load = new LoadGenerator(students);
+        Path dir = Files.createTempDirectory("load-generator");
+        Process child = startLauncher(dir);
+        ExecutorService sessions = ThreadPools.newConnectionExecutor(ThreadPools.configuredMode("load"), "load-session");
+        try {
+            waitForPort(GATEWAY_PORT, 60000);
+            load.setUp();
+            System.out.printf("Running %d s: %.1f student sessions/s, %.2f admin lists/s%n", seconds, sessionRate, adminRate);
+            long start = System.nanoTime();
+            long end = start + seconds * 1_000_000_000L;
+            Thread studentArrivals = arrivals("student-arrivals", sessionRate, start, end,
+                    due -> sessions.execute(() -> load.studentSession(due)));
+            Thread adminArrivals = arrivals("admin-arrivals", adminRate, start, end,
+                    due -> sessions.execute(() -> load.adminList(due)));
+            studentArrivals.join();
+            adminArrivals.join();
+            sessions.shutdown();
+            // Sessions still running finish their steps; they count towards the results
+            if (!sessions.awaitTermination(5, TimeUnit.MINUTES)) sessions.shutdownNow();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            load.report(elapsed);
+        } finally {
+            sessions.shutdownNow();
+            child.destroy();
+            child.waitFor(10, TimeUnit.SECONDS);
+            if (child.isAlive()) child.destroyForcibly().waitFor();
+        }
+    }
+
+    private interface Arrival {
+        void at(long dueNanos);
+    }
+
+    // Poisson arrivals: exponentially distributed gaps around 1/rate. Each arrival is
+    // handed its scheduled time, so a late hand-off is charged to the latency.
+    private static Thread arrivals(String name, double perSecond, long start, long end, Arrival arrival) {
+        Thread thread = new Thread(() -> {
+            if (perSecond <= 0) return;
+            Random random = new Random();
+            long due = start;
+            while (true) {
+                due += (long) (-Math.log(1 - random.nextDouble()) / perSecond * 1e9);
+                if (due >= end) return;
+                long wait = due - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                arrival.at(due);
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private void setUp() throws Exception {
+        try (WebSocketClient admin = new WebSocketClient(HOST, GATEWAY_PORT, TIMEOUT_MS)) {
+            for (int m = 0; m < MODULES; m++) {
+                boolean hot = m < HOT_MODULES;
+                expectSuccess(admin, "{\"action\":\"ADD_MODULE\",\"data\":{\"moduleCode\":\"" + module(m)
+                        + "\",\"moduleName\":\"" + (hot ? "Popular module " : "Module ") + m
+                        + "\",\"description\":\"Load test\",\"credits\":3,\"capacity\":" + (hot ? CAPACITY : 0) + "}}");
+            }
+            // Pipelined with requestIds so adding thousands of students does not take a
+            // round trip each; ones refused as overloaded are sent again
+            int window = 16; // the gateway's default per-connection in-flight limit
+            Map<String, String> pending = new HashMap<>();
+            int next = 0;
+            while (next < studentCount || !pending.isEmpty()) {
+                while (next < studentCount && pending.size() < window) {
+                    String id = student(next);
+                    String message = "{\"action\":\"ADD_STUDENT\",\"requestId\":\"" + next + "\",\"data\":{\"studentId\":\""
+                            + id + "\",\"name\":\"Student " + next + "\",\"email\":\"" + id + "@example.com\",\"password\":\""
+                            + PASSWORD + "\"}}";
+                    pending.put(String.valueOf(next++), message);
+                    admin.sendText(message);
+                }
+                String reply = admin.readText();
+                String requestId = reply == null ? null : stringField(reply, "requestId");
+                if (reply != null && reply.contains("\"errorCode\":\"OVERLOADED\"") && pending.containsKey(requestId)) {
+                    Thread.sleep(10);
+                    admin.sendText(pending.get(requestId));
+                    continue;
+                }
+                expectSuccess(reply);
+                pending.remove(requestId);
+            }
+        }
+        System.out.printf("Set up %d students and %d modules (%d hot, %d seats each)%n",
+                studentCount, MODULES, HOT_MODULES, CAPACITY);
+    }
+
+    // One student's visit, as student.js would make it
+    private void studentSession(long due) {
+        int active = activeSessions.incrementAndGet();
+        peakSessions.accumulateAndGet(active, Math::max);
+        sessionsStarted.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String id = student(random.nextInt(studentCount));
+        WebSocketClient client = null;
+        try {
+            long sent = System.nanoTime();
+            try {
+                client = new WebSocketClient(HOST, GATEWAY_PORT, TIMEOUT_MS);
+            } catch (IOException e) {
+                record("CONNECT", due, sent, false, false, false);
+                throw e;
+            }
+            record("CONNECT", due, sent, true, false, false);
+
+            due = think(due, random);
+            String reply = call(client, "STUDENT_LOGIN", due,
+                    "{\"studentId\":\"" + id + "\",\"password\":\"" + PASSWORD + "\"}");
+            String token = stringField(reply, "token");
+            if (token == null) throw new IOException("Login failed: " + reply);
+
+            long version = 0;
+            for (int i = 0; i < BROWSE; i++) {
+                due = think(due, random);
+                reply = call(client, "VIEW_MODULES", due, "{\"knownVersion\":" + version + "}");
+                Long known = longField(reply, "version");
+                if (known != null) version = known;
+            }
+
+            // Everybody races for a hot module, then picks a couple of others
+            List<String> wanted = new ArrayList<>();
+            wanted.add(module(random.nextInt(Math.max(1, HOT_MODULES))));
+            for (int i = 0; i < 2 && MODULES > HOT_MODULES; i++) {
+                wanted.add(module(HOT_MODULES + random.nextInt(MODULES - HOT_MODULES)));
+            }
+            for (String code : wanted) {
+                due = think(due, random);
+                call(client, "REGISTER_MODULE", due,
+                        "{\"studentId\":\"" + id + "\",\"token\":\"" + token + "\",\"moduleCode\":\"" + code + "\"}");
+            }
+
+            due = think(due, random);
+            call(client, "VIEW_REGISTERED_MODULES", due, "{\"studentId\":\"" + id + "\",\"token\":\"" + token + "\"}");
+            due = think(due, random);
+            call(client, "LOGOUT", due, "{\"token\":\"" + token + "\"}");
+            sessionsFinished.incrementAndGet();
+        } catch (IOException e) {
+            sessionsFailed.incrementAndGet();
+        } finally {
+            activeSessions.decrementAndGet();
+            if (client != null) {
+                try { client.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // One admin loading the student list page, as admin.js does
+    private void adminList(long due) {
+        try (WebSocketClient admin = new WebSocketClient(HOST, GATEWAY_PORT, TIMEOUT_MS)) {
+            call(admin, "LIST_STUDENTS", due, "{\"stream\":true}");
+        } catch (IOException e) {
+            stats.get("LIST_STUDENTS").errors.increment();
+        }
+    }
+
+    // Sends when due (or at once if already late), waits for the reply and records it
+    private String call(WebSocketClient client, String action, long due, String data) throws IOException {
+        long wait = due - System.nanoTime();
+        if (wait > 0) LockSupport.parkNanos(wait);
+        long sent = System.nanoTime();
+        String reply;
+        try {
+            client.sendText("{\"action\":\"" + action + "\",\"data\":" + data + "}");
+            reply = client.readText();
+        } catch (IOException e) {
+            record(action, due, sent, false, false, false);
+            throw e;
+        }
+        if (reply == null) {
+            record(action, due, sent, false, false, false);
+            throw new EOFException("Gateway closed the connection");
+        }
+        boolean success = reply.contains("\"success\":true");
+        boolean full = !success && reply.contains("Module is full");
+        boolean shed = !success && reply.contains("\"errorCode\":\"OVERLOADED\"");
+        record(action, due, sent, success || full, full, shed);
+        return reply;
+    }
+
+    private void record(String action, long due, long sent, boolean ok, boolean full, boolean shed) {
+        long now = System.nanoTime();
+        Stats s = stats.get(action);
+        s.latency.record(now - due);
+        s.service.record(now - sent);
+        if (!ok) s.errors.increment();
+        if (full) s.full.increment();
+        if (shed) s.shed.increment();
+    }
+
+    private static long think(long due, ThreadLocalRandom random) {
+        return due + (long) (-Math.log(1 - random.nextDouble()) * THINK_MS * 1_000_000);
+    }
+
+    private void report(double seconds) {
+        System.out.printf("%nSessions: %d started, %d completed, %d failed, peak %d concurrent, %.1f s%n",
+                sessionsStarted.get(), sessionsFinished.get(), sessionsFailed.get(), peakSessions.get(), seconds);
+        System.out.println("Latency from intended send time (coordinated-omission corrected), ms:");
+        System.out.printf("%-24s %8s %9s %8s %8s %8s %8s %8s %22s %12s%n", "action", "count", "per sec",
+                "p50", "p90", "p99", "p99.9", "max", "errors", "service p99");
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            Stats s = e.getValue();
+            long count = s.latency.count();
+            if (count == 0) continue;
+            String errors = s.errors.sum() + (s.shed.sum() > 0 ? " (" + s.shed.sum() + " shed)" : "")
+                    + (s.full.sum() > 0 ? " (+" + s.full.sum() + " full)" : "");
+            System.out.printf("%-24s %8d %9.1f %8.2f %8.2f %8.2f %8.2f %8.2f %22s %12.2f%n", e.getKey(), count,
+                    count / seconds, ms(s.latency.percentile(0.5)), ms(s.latency.percentile(0.9)),
+                    ms(s.latency.percentile(0.99)), ms(s.latency.percentile(0.999)), ms(s.latency.max()),
+                    errors, ms(s.service.percentile(0.99)));
+        }
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void expectSuccess(WebSocketClient client, String message) throws IOException {
+        client.sendText(message);
+        expectSuccess(client.readText());
+    }
+
+    private static void expectSuccess(String reply) throws IOException {
+        if (reply == null || !reply.contains("\"success\":true")) throw new IOException("Setup failed: " + reply);
+    }
+
+    // Just enough JSON for the fields the sessions need
+    private static String stringField(String json, String name) {
+        String key = "\"" + name + "\":\"";
+        int start = json.indexOf(key);
+        if (start < 0) return null;
+        start += key.length();
+        int end = json.indexOf('"', start);
+        return end < 0 ? null : json.substring(start, end);
+    }
+
+    private static Long longField(String json, String name) {
+        String key = "\"" + name + "\":";
+        int start = json.indexOf(key);
+        if (start < 0) return null;
+        start += key.length();
+        int end = start;
+        while (end < json.length() && Character.isDigit(json.charAt(end))) end++;
+        return end == start ? null : Long.parseLong(json.substring(start, end));
+    }
+
+    private static String student(int i) {
+        return String.format("L%06d", i);
+    }
+
+    private static String module(int m) {
+        return String.format("LOAD%02d", m);
+    }
+
+    private static Process startLauncher(Path dir) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-Dserver.dataDir=" + dir.toAbsolutePath());
+        for (String arg : SERVER_ARGS.trim().split("\\s+")) {
+            if (!arg.isEmpty()) command.add(arg);
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "Launcher"));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        return builder.start();
+    }
+
+    private static void waitForPort(int port, long timeoutMs) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("Gateway did not start", e);
+                Thread.sleep(200);
+            }
+        }
+    }
+}
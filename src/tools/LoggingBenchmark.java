@@ -0,0 +1,65 @@
+package tools;
+
+import common.Log;
+import java.util.concurrent.*;
+
+// Compares what a per-request log line costs the thread that logs it:
+//   - System.out.println, as every request used to do (all threads share stdout's lock)
+//   - Log.info: the event goes into the ring buffer and a background thread prints it
+//   - Log.sample: the same, kept for one call in log.sampleRate
+// Each run has the given number of threads log the same request line as fast as they
+// can. Log events the ring cannot hold are dropped, not waited for; the drop count is
+// reported.
+//
+// Results go to stderr, so send stdout somewhere, e.g.
+// Usage: java -cp . tools.LoggingBenchmark [threads] [callsPerThread] > /dev/null
+// Defaults: 16 threads, 200000 calls each.
+public class LoggingBenchmark {
+    private static final Log LOG = Log.get("benchmark");
+
+    private interface Call {
+        void log(String action, int i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        for (int round = 0; round < 2; round++) { // first round warms up
+            long dropsBefore = Log.dropped();
+            double println = run(threads, calls, (action, i) -> System.out.println("Processing action: " + action + " " + i));
+            double info = run(threads, calls, (action, i) -> LOG.info("Processing action: {} {}", action, i));
+            long infoDrops = Log.dropped() - dropsBefore;
+            double sample = run(threads, calls, (action, i) -> LOG.sample("Processing action: {} {}", action, i));
+            if (round == 1) {
+                System.err.printf("%-22s %8.0f ns/call%n", "System.out.println", println);
+                System.err.printf("%-22s %8.0f ns/call (%d of %d dropped)%n", "Log.info", info,
+                        infoDrops, (long) threads * calls);
+                System.err.printf("%-22s %8.0f ns/call%n", "Log.sample", sample);
+            }
+            Thread.sleep(500); // let the writer catch up between rounds
+        }
+    }
+
+    // Average wall time per call as seen by one logging thread
+    private static double run(int threads, int calls, Call call) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] futures = new Future<?>[threads];
+        for (int t = 0; t < threads; t++) {
+            futures[t] = executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < calls; i++) {
+                    call.log("VIEW_MODULES", i);
+                }
+                return null;
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> f : futures) f.get();
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+        return elapsed * (double) threads / ((long) threads * calls);
+    }
+}
@@ -0,0 +1,61 @@
+package tools;
+
+import common.Metrics;
+import java.util.concurrent.*;
+
+// Measures what instrumentation adds to one request on the hot path:
+//   - Timer.record on a timer the caller already holds (the TCP server's case)
+//   - Metrics.timer(family, action) lookup plus record (the gateway's case)
+//   - the two System.nanoTime() calls that bracket every timed request
+// each from one thread and from several threads hammering the same timer.
+//
+// Usage: java -cp . tools.MetricsBenchmark [threads] [callsPerThread]
+// Defaults: 8 threads, 5000000 calls each.
+public class MetricsBenchmark {
+    private interface Op {
+        long run(int i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+
+        Metrics metrics = new Metrics("benchmark");
+        Metrics.Timer held = metrics.timer("request", "VIEW_MODULES");
+        String[] actions = {"VIEW_MODULES", "REGISTER_MODULE", "VIEW_STUDENT", "LIST_STUDENTS"};
+        for (String action : actions) metrics.timer("request", action);
+
+        for (int round = 0; round < 2; round++) { // first round warms up
+            report(round, "record, timer held", 1, calls, i -> { held.record(i & 0xFFFFF, true); return 0; });
+            report(round, "record, timer held", threads, calls, i -> { held.record(i & 0xFFFFF, true); return 0; });
+            report(round, "lookup + record", 1, calls,
+                    i -> { metrics.timer("request", actions[i & 3]).record(i & 0xFFFFF, true); return 0; });
+            report(round, "lookup + record", threads, calls,
+                    i -> { metrics.timer("request", actions[i & 3]).record(i & 0xFFFFF, true); return 0; });
+            report(round, "2 x System.nanoTime", 1, calls, i -> System.nanoTime() - System.nanoTime());
+        }
+    }
+
+    private static void report(int round, String name, int threads, int calls, Op op) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] futures = new Future<?>[threads];
+        for (int t = 0; t < threads; t++) {
+            futures[t] = executor.submit(() -> {
+                start.await();
+                long sink = 0;
+                for (int i = 0; i < calls; i++) sink += op.run(i);
+                return sink;
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> f : futures) f.get();
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+        if (round == 1) {
+            System.out.printf("%-22s %2d thread(s): %6.1f ns/call%n", name, threads,
+                    elapsed / (double) ((long) threads * calls));
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package tools;
+
+import gateway.TCPConnectionPool;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import models.Request;
+import models.Response;
+import models.Student;
+import protocol.WireCodecs;
+
+// Registration-rush stress test with a correctness check.
+//
+// Starts a TCP server in a child JVM on a scratch data directory, adds students and a
+// few capacity-limited modules, then has many threads send REGISTER_MODULE for random
+// (student, module) pairs: far more attempts than seats, every pair sent twice so the
+// same registration often races itself. Afterwards, and again after killing the server
+// with SIGKILL and restarting it from its log, it checks that:
+//   - no module has more students than seats
+//   - every "registered successfully" reply shows up exactly once in the module's
+//     roster and in the student's registeredModules, and nothing else does
+//   - enrollment counts match roster sizes
+//
+// Usage: java -cp . tools.RegistrationStressTest [students] [modules] [capacity] [threads] [attempts]
+// Defaults: 5000 students, 4 modules, 1000 seats each, 32 threads, 40000 attempts.
+// Port 8888 must be free. Exits with status 1 if any check fails.
+public class RegistrationStressTest {
+    private static final int SERVER_PORT = 8888;
+
+    private final int studentCount;
+    private final int moduleCount;
+    private final int capacity;
+    // Module code -> students whose registration was acknowledged
+    private final Map<String, Set<String>> acknowledged = new ConcurrentHashMap<>();
+    private final AtomicInteger registered = new AtomicInteger();
+    private final AtomicInteger already = new AtomicInteger();
+    private final AtomicInteger full = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger doubleAcks = new AtomicInteger();
+
+    RegistrationStressTest(int studentCount, int moduleCount, int capacity) {
+        this.studentCount = studentCount;
+        this.moduleCount = moduleCount;
+        this.capacity = capacity;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int students = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int modules = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+        int attempts = args.length > 4 ? Integer.parseInt(args[4]) : 40000;
+
+        RegistrationStressTest test = new RegistrationStressTest(students, modules, capacity);
+        Path dir = Files.createTempDirectory("registration-stress");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int failures;
+        try {
+            Process server = startServer(dir);
+            TCPConnectionPool pool = connect();
+            try {
+                test.setUp(pool, executor);
+                test.rush(pool, executor, attempts);
+                failures = test.verify(pool, "after the rush");
+            } finally {
+                pool.close();
+                server.destroyForcibly().waitFor();
+            }
+
+            server = startServer(dir);
+            pool = connect();
+            try {
+                failures += test.verify(pool, "after SIGKILL and restart");
+            } finally {
+                pool.close();
+                server.destroy();
+                server.waitFor(10, TimeUnit.SECONDS);
+                if (server.isAlive()) server.destroyForcibly().waitFor();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println(failures == 0 ? "PASSED" : "FAILED: " + failures + " problems");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private void setUp(TCPConnectionPool pool, ExecutorService executor) throws Exception {
+        for (int m = 0; m < moduleCount; m++) {
+            Request add = new Request("ADD_MODULE");
+            add.addData("moduleCode", module(m));
+            add.addData("moduleName", "Hot module " + m);
+            add.addData("description", "Registration rush");
+            add.addData("credits", 3);
+            add.addData("capacity", capacity);
+            expectSuccess(pool.send(add));
+            acknowledged.put(module(m), ConcurrentHashMap.newKeySet());
+        }
+        List<Future<?>> adds = new ArrayList<>();
+        for (int i = 0; i < studentCount; i++) {
+            String id = student(i);
+            adds.add(executor.submit(() -> {
+                Request add = new Request("ADD_STUDENT");
+                add.addData("studentId", id);
+                add.addData("name", "Student " + id);
+                add.addData("email", id + "@example.com");
+                add.addData("password", "pw");
+                expectSuccess(pool.send(add));
+                return null;
+            }));
+        }
+        for (Future<?> f : adds) f.get();
+        System.out.printf("%d students, %d modules x %d seats%n", studentCount, moduleCount, capacity);
+    }
+
+    private void rush(TCPConnectionPool pool, ExecutorService executor, int attempts) throws Exception {
+        List<int[]> pairs = new ArrayList<>(attempts);
+        Random random = new Random(42);
+        while (pairs.size() < attempts) {
+            int[] pair = {random.nextInt(studentCount), random.nextInt(moduleCount)};
+            pairs.add(pair);
+            pairs.add(pair);
+        }
+        Collections.shuffle(pairs, random);
+
+        long start = System.nanoTime();
+        List<Future<?>> sends = new ArrayList<>(pairs.size());
+        for (int[] pair : pairs) {
+            sends.add(executor.submit(() -> register(pool, student(pair[0]), module(pair[1]))));
+        }
+        for (Future<?> f : sends) f.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d attempts in %.2f s (%.0f/s): %d registered, %d already registered, %d full, %d errors%n",
+                pairs.size(), seconds, pairs.size() / seconds, registered.get(), already.get(), full.get(), errors.get());
+    }
+
+    private void register(TCPConnectionPool pool, String studentId, String moduleCode) {
+        Request request = new Request("REGISTER_MODULE");
+        request.addData("studentId", studentId);
+        request.addData("moduleCode", moduleCode);
+        Response response = pool.send(request);
+        String message = response.getMessage();
+        if ("Module registered successfully".equals(message)) {
+            registered.incrementAndGet();
+            if (!acknowledged.get(moduleCode).add(studentId)) doubleAcks.incrementAndGet();
+        } else if ("Module already registered".equals(message)) {
+            already.incrementAndGet();
+        } else if ("Module is full".equals(message)) {
+            full.incrementAndGet();
+        } else {
+            errors.incrementAndGet();
+        }
+    }
+
+    private int verify(TCPConnectionPool pool, String when) {
+        List<String> problems = new ArrayList<>();
+        if (doubleAcks.get() > 0) problems.add(doubleAcks.get() + " registrations acknowledged twice");
+        if (errors.get() > 0) problems.add(errors.get() + " registrations failed with an error");
+
+        Request countsRequest = new Request("ENROLLMENT_COUNTS");
+        Map<?, ?> counts = (Map<?, ?>) expectSuccess(pool.send(countsRequest)).getData();
+        Map<String, Set<String>> rosters = new HashMap<>();
+        for (int m = 0; m < moduleCount; m++) {
+            String code = module(m);
+            List<String> roster = roster(pool, code);
+            Set<String> unique = new HashSet<>(roster);
+            rosters.put(code, unique);
+            if (unique.size() != roster.size()) problems.add(code + ": roster has duplicates");
+            if (roster.size() > capacity) problems.add(code + ": " + roster.size() + " enrolled, only " + capacity + " seats");
+            if (!unique.equals(acknowledged.get(code))) {
+                problems.add(code + ": roster has " + unique.size() + " students, "
+                        + acknowledged.get(code).size() + " were acknowledged");
+            }
+            Object count = counts.get(code);
+            if (!(count instanceof Number) || ((Number) count).intValue() != roster.size()) {
+                problems.add(code + ": count " + count + " but roster size " + roster.size());
+            }
+        }
+
+        for (int i = 0; i < studentCount; i++) {
+            Request view = new Request("VIEW_STUDENT");
+            view.addData("studentId", student(i));
+            Student s = (Student) expectSuccess(pool.send(view)).getData();
+            List<String> modules = s.getRegisteredModules();
+            if (new HashSet<>(modules).size() != modules.size()) {
+                problems.add(s.getStudentId() + ": duplicate registrations " + modules);
+            }
+            for (int m = 0; m < moduleCount; m++) {
+                String code = module(m);
+                if (modules.contains(code) != rosters.get(code).contains(s.getStudentId())) {
+                    problems.add(s.getStudentId() + ": registeredModules and roster of " + code + " disagree");
+                }
+            }
+        }
+
+        int enrolled = 0;
+        for (Set<String> roster : rosters.values()) enrolled += roster.size();
+        System.out.printf("Check %s: %d enrollments, %s%n", when, enrolled,
+                problems.isEmpty() ? "consistent" : problems.size() + " problems");
+        for (int i = 0; i < Math.min(20, problems.size()); i++) {
+            System.out.println("  " + problems.get(i));
+        }
+        return problems.size();
+    }
+
+    private static List<String> roster(TCPConnectionPool pool, String moduleCode) {
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            Request page = new Request("MODULE_ROSTER");
+            page.addData("moduleCode", moduleCode);
+            page.addData("limit", 1000);
+            if (cursor != null) page.addData("cursor", cursor);
+            Map<?, ?> data = (Map<?, ?>) expectSuccess(pool.send(page)).getData();
+            for (Object id : (List<?>) data.get("items")) ids.add((String) id);
+            cursor = (String) data.get("nextCursor");
+        } while (cursor != null);
+        return ids;
+    }
+
+    private static Response expectSuccess(Response response) {
+        if (!response.isSuccess()) throw new IllegalStateException("Request failed: " + response.getMessage());
+        return response;
+    }
+
+    private static String student(int i) {
+        return String.format("U%06d", i);
+    }
+
+    private static String module(int m) {
+        return "HOT" + m;
+    }
+
+    private static Process startServer(Path dir) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-Dserver.dataDir=" + dir.toAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"), "server.TCPServer");
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        Process child = builder.start();
+        waitForPort(SERVER_PORT, 60000);
+        return child;
+    }
+
+    private static TCPConnectionPool connect() {
+        return new TCPConnectionPool("localhost", SERVER_PORT, 4, 30000, 60000, WireCodecs.BINARY);
+    }
+
+    private static void waitForPort(int port, long timeoutMs) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("Server did not start", e);
+                Thread.sleep(5);
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package tools;
+
+import common.HashRing;
+import gateway.TCPConnectionPool;
+import java.util.*;
+import models.Module;
+import models.Request;
+import models.Response;
+import models.Student;
+import protocol.WireCodecs;
+
+// Moves students between the TCP servers of a sharded cluster after its shard list
+// changed (see "Running a sharded cluster" in the README). Takes the old and the new
+// list, builds both hash rings exactly as the gateway does, and:
+//   1. copies the module catalog of the first old shard to every new shard that lacks
+//      it or has it different (a new shard starts empty)
+//   2. pages through each shard's students (a new shard may hold the sample student it
+//      seeded) and, for every one the new ring puts elsewhere, copies it there
+//      (PUT_STUDENTS), then removes it from where it was (REMOVE_STUDENTS) if it has not
+//      changed since it was read
+//   3. fetches students that had changed again and repeats, until none are left
+//   4. moves the seat ledger (server.SeatLedger) of every module whose code the new ring
+//      places elsewhere: the old owner hands it over (HANDOVER_SEATS) and takes no more
+//      seats in it, then the new owner gets it (PUT_SEATS). Every module's ledger is
+//      also topped up with the module's roster on all shards, so every registered
+//      student holds a seat in it even if it started out on a shard that had none of
+//      their registrations.
+// Meanwhile the gateway runs with gateway.shards set to the new list and
+// gateway.shards.previous to the old one, so every student stays reachable, and takes
+// seats on a module's old owner until its ledger was handed over. Only the students
+// the new ring places differently move: about 1/N of them when a shard is added to N-1.
+//
+// Usage: java -cp . tools.ShardRebalancer <old host:port,...> <new host:port,...> [virtualNodes]
+// virtualNodes must match the gateway's gateway.shards.virtualNodes (default 128).
+// Running it twice is harmless: the second run finds nothing to move.
+public class ShardRebalancer {
+    private static final int PAGE_SIZE = 500;
+    private static final long TIMEOUT_MS = 60000;
+    // A student that keeps changing is given up on after this many copies
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final Map<String, TCPConnectionPool> pools = new LinkedHashMap<>();
+    private final HashRing<String> oldRing;
+    private final HashRing<String> newRing;
+
+    ShardRebalancer(List<String> oldShards, List<String> newShards, int virtualNodes) {
+        this.oldRing = ring(oldShards, virtualNodes);
+        this.newRing = ring(newShards, virtualNodes);
+        for (String shard : oldShards) pools.computeIfAbsent(shard, ShardRebalancer::connect);
+        for (String shard : newShards) pools.computeIfAbsent(shard, ShardRebalancer::connect);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp . tools.ShardRebalancer <old host:port,...> <new host:port,...> [virtualNodes]");
+            System.exit(2);
+        }
+        List<String> oldShards = Arrays.asList(args[0].split(","));
+        List<String> newShards = Arrays.asList(args[1].split(","));
+        int virtualNodes = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+
+        ShardRebalancer rebalancer = new ShardRebalancer(oldShards, newShards, virtualNodes);
+        try {
+            rebalancer.copyCatalog(oldShards.get(0), newShards);
+            long started = System.nanoTime();
+            int total = 0;
+            int moved = 0;
+            for (String shard : rebalancer.pools.keySet()) {
+                int[] counts = rebalancer.drain(shard);
+                // A new shard's students are mostly ones just moved there
+                if (oldShards.contains(shard)) total += counts[0];
+                moved += counts[1];
+            }
+            System.out.printf("Moved %d of %d students (%.1f%%) in %.1f s%n", moved, total,
+                    total == 0 ? 0.0 : 100.0 * moved / total, (System.nanoTime() - started) / 1e9);
+            rebalancer.moveSeats(newShards.get(0));
+            System.out.println("Share of students per shard on the new ring:");
+            rebalancer.newRing.shares().forEach((shard, share) ->
+                    System.out.printf("  %-24s %5.1f%%%n", shard, 100 * share));
+        } finally {
+            rebalancer.pools.values().forEach(TCPConnectionPool::close);
+        }
+    }
+
+    private static HashRing<String> ring(List<String> shards, int virtualNodes) {
+        Map<String, String> nodes = new LinkedHashMap<>();
+        for (String shard : shards) nodes.put(shard, shard);
+        return new HashRing<>(nodes, virtualNodes);
+    }
+
+    private static TCPConnectionPool connect(String shard) {
+        int colon = shard.lastIndexOf(':');
+        return new TCPConnectionPool(shard.substring(0, colon), Integer.parseInt(shard.substring(colon + 1)),
+                2, TIMEOUT_MS, 60000, WireCodecs.BINARY);
+    }
+
+    private void copyCatalog(String from, List<String> to) {
+        List<Module> modules = listModules(from);
+        for (String shard : to) {
+            if (shard.equals(from)) continue;
+            Map<String, Module> existing = new HashMap<>();
+            for (Module module : listModules(shard)) existing.put(module.getModuleCode(), module);
+            int copied = 0;
+            for (Module module : modules) {
+                Module there = existing.get(module.getModuleCode());
+                if (there != null && sameModule(there, module)) continue;
+                Request request = new Request(there == null ? "ADD_MODULE" : "EDIT_MODULE");
+                request.addData("moduleCode", module.getModuleCode());
+                request.addData("moduleName", module.getModuleName());
+                request.addData("description", module.getDescription());
+                request.addData("credits", module.getCredits());
+                request.addData("capacity", module.getCapacity());
+                check(shard, send(shard, request));
+                copied++;
+            }
+            if (copied > 0) System.out.println("Copied " + copied + " modules to " + shard);
+        }
+    }
+
+    private static boolean sameModule(Module a, Module b) {
+        return Objects.equals(a.getModuleName(), b.getModuleName())
+                && Objects.equals(a.getDescription(), b.getDescription())
+                && a.getCredits() == b.getCredits() && a.getCapacity() == b.getCapacity();
+    }
+
+    private List<Module> listModules(String shard) {
+        Response response = check(shard, send(shard, new Request("LIST_MODULES")));
+        List<Module> modules = new ArrayList<>();
+        for (Object item : (List<?>) response.getData()) modules.add((Module) item);
+        return modules;
+    }
+
+    // Moves the students of one shard that belong elsewhere now; returns {seen, moved}
+    private int[] drain(String shard) {
+        int seen = 0;
+        int moved = 0;
+        String cursor = null;
+        do {
+            Request request = new Request("LIST_STUDENTS");
+            request.addData("limit", PAGE_SIZE);
+            if (cursor != null) request.addData("cursor", cursor);
+            Map<?, ?> page = (Map<?, ?>) check(shard, send(shard, request)).getData();
+            List<Student> leaving = new ArrayList<>();
+            for (Object item : (List<?>) page.get("items")) {
+                seen++;
+                Student student = (Student) item;
+                if (!newRing.owner(student.getStudentId()).equals(shard)) leaving.add(student);
+            }
+            moved += move(shard, leaving);
+            cursor = (String) page.get("nextCursor");
+        } while (cursor != null);
+        System.out.println(shard + ": " + moved + " of " + seen + " students moved");
+        return new int[] {seen, moved};
+    }
+
+    private int move(String from, List<Student> students) {
+        int moved = 0;
+        for (int attempt = 1; !students.isEmpty(); attempt++) {
+            if (attempt > MAX_ATTEMPTS) {
+                System.err.println(from + ": " + students.size() + " students kept changing and were left in place;"
+                        + " run again later");
+                break;
+            }
+            Map<String, List<Student>> byOwner = new LinkedHashMap<>();
+            for (Student student : students) {
+                byOwner.computeIfAbsent(newRing.owner(student.getStudentId()), s -> new ArrayList<>()).add(student);
+            }
+            for (Map.Entry<String, List<Student>> target : byOwner.entrySet()) {
+                Request put = new Request("PUT_STUDENTS");
+                put.addData("students", target.getValue());
+                check(target.getKey(), send(target.getKey(), put));
+            }
+            Request remove = new Request("REMOVE_STUDENTS");
+            remove.addData("students", students);
+            Map<?, ?> result = (Map<?, ?>) check(from, send(from, remove)).getData();
+            moved += ((Number) result.get("removed")).intValue();
+
+            // Changed since they were read: read them again and copy the new version
+            List<Student> again = new ArrayList<>();
+            for (Object id : (List<?>) result.get("changed")) {
+                Request view = new Request("VIEW_STUDENT");
+                view.addData("studentId", id);
+                Response response = send(from, view);
+                if (response.isSuccess()) again.add((Student) response.getData());
+            }
+            students = again;
+        }
+        return moved;
+    }
+
+    // Step 4. Ledgers are handed over all at once, so seats in a module are refused
+    // (the gateway asks the browser to try again) only while its roster is read.
+    private void moveSeats(String catalogShard) {
+        Map<String, List<String>> leaving = new LinkedHashMap<>(); // old owner -> module codes
+        List<String> codes = new ArrayList<>();
+        for (Module module : listModules(catalogShard)) {
+            String code = module.getModuleCode();
+            codes.add(code);
+            if (!oldRing.owner(code).equals(newRing.owner(code))) {
+                leaving.computeIfAbsent(oldRing.owner(code), s -> new ArrayList<>()).add(code);
+            }
+        }
+        Map<String, Set<String>> holders = new LinkedHashMap<>();
+        for (String code : codes) holders.put(code, new TreeSet<>());
+        for (Map.Entry<String, List<String>> from : leaving.entrySet()) {
+            Request handover = new Request("HANDOVER_SEATS");
+            handover.addData("moduleCodes", from.getValue());
+            Map<?, ?> handed = (Map<?, ?>) check(from.getKey(), send(from.getKey(), handover)).getData();
+            for (Map.Entry<?, ?> ledger : handed.entrySet()) {
+                for (Object id : (List<?>) ledger.getValue()) holders.get(ledger.getKey()).add((String) id);
+            }
+        }
+        for (String code : codes) {
+            for (String shard : pools.keySet()) holders.get(code).addAll(roster(shard, code));
+        }
+
+        Map<String, Map<String, Object>> byOwner = new LinkedHashMap<>();
+        for (String code : codes) {
+            byOwner.computeIfAbsent(newRing.owner(code), s -> new LinkedHashMap<>())
+                    .put(code, new ArrayList<>(holders.get(code)));
+        }
+        for (Map.Entry<String, Map<String, Object>> to : byOwner.entrySet()) {
+            Request put = new Request("PUT_SEATS");
+            put.addData("seats", to.getValue());
+            check(to.getKey(), send(to.getKey(), put));
+        }
+        int seats = 0;
+        for (Set<String> ids : holders.values()) seats += ids.size();
+        int moved = 0;
+        for (List<String> list : leaving.values()) moved += list.size();
+        System.out.println("Moved the seat ledgers of " + moved + " of " + codes.size() + " modules ("
+                + seats + " seats held in all)");
+    }
+
+    // Every student registered for the module on one shard
+    private List<String> roster(String shard, String moduleCode) {
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            Request request = new Request("MODULE_ROSTER");
+            request.addData("moduleCode", moduleCode);
+            request.addData("limit", PAGE_SIZE);
+            if (cursor != null) request.addData("cursor", cursor);
+            Map<?, ?> page = (Map<?, ?>) check(shard, send(shard, request)).getData();
+            for (Object id : (List<?>) page.get("items")) ids.add((String) id);
+            cursor = (String) page.get("nextCursor");
+        } while (cursor != null);
+        return ids;
+    }
+
+    private Response send(String shard, Request request) {
+        return pools.get(shard).send(request, TIMEOUT_MS);
+    }
+
+    private static Response check(String shard, Response response) {
+        if (!response.isSuccess()) {
+            throw new IllegalStateException(shard + ": " + response.getMessage());
+        }
+        return response;
+    }
+}
@@ -0,0 +1,161 @@
+package tools;
+
+import gateway.TCPConnectionPool;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import models.Module;
+import models.Request;
+import models.Response;
+import models.Student;
+import protocol.WireCodecs;
+import server.Snapshot;
+
+// Measures how quickly the TCP server comes back with a large dataset.
+//
+// Builds a snapshot of N students (each registered for a few modules) in a scratch data
+// directory, then reports:
+//   - in process: Java deserialization of the same students (the old way to load a
+//     dataset), mapping the snapshot + one lookup, and decoding every record
+//   - a real server started in a child JVM on that directory: time until it accepts
+//     connections, answers a VIEW_STUDENT, and finishes loading in the background
+//
+// Usage: java -cp . tools.SnapshotStartupBenchmark [students] [dataDir]
+// Defaults: 500000 students, a temporary directory. Port 8888 must be free.
+public class SnapshotStartupBenchmark {
+    private static final int SERVER_PORT = 8888;
+    private static final int MODULES = 50;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        Path dir = args.length > 1 ? Paths.get(args[1]) : Files.createTempDirectory("snapshot-bench");
+        Files.createDirectories(dir);
+
+        List<Module> modules = new ArrayList<>();
+        for (int m = 0; m < MODULES; m++) {
+            modules.add(new Module("M" + m, "Module " + m, "Generated module " + m, 3));
+        }
+        List<Student> students = new ArrayList<>(count);
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            Student s = new Student("S" + i, "Student " + i, "student" + i + "@example.com", "pw" + i);
+            for (int r = 0; r < 3; r++) {
+                s.registerModule("M" + random.nextInt(MODULES));
+            }
+            students.add(s);
+        }
+
+        long start = System.nanoTime();
+        Path snapshotFile;
+        try (Snapshot.Writer writer = Snapshot.create(dir)) {
+            for (Module m : modules) writer.add(m);
+            for (Student s : students) writer.add(s);
+            snapshotFile = writer.finish(0);
+        }
+        report("write snapshot", start, Files.size(snapshotFile));
+
+        Path serialized = Files.createTempFile("students", ".ser");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(serialized)))) {
+            out.writeObject(new ArrayList<>(students));
+        }
+        students = null;
+        System.gc();
+
+        start = System.nanoTime();
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(serialized)))) {
+            Object loaded = in.readObject();
+            report("java deserialization", start, ((List<?>) loaded).size());
+        }
+        Files.delete(serialized);
+        System.gc();
+
+        start = System.nanoTime();
+        Snapshot snapshot = Snapshot.open(snapshotFile);
+        Student one = snapshot.student("S" + (count / 2));
+        report("map + first lookup", start, one == null ? 0 : 1);
+
+        start = System.nanoTime();
+        Map<String, Student> all = new HashMap<>(count * 2);
+        snapshot.forEachStudent(s -> all.put(s.getStudentId(), s));
+        report("decode all records", start, all.size());
+        all.clear();
+        System.gc();
+
+        runServer(dir, count);
+    }
+
+    private static void runServer(Path dir, int count) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-Dserver.dataDir=" + dir.toAbsolutePath(),
+                "-Dserver.snapshot.everyRecords=0", "-cp", System.getProperty("java.class.path"), "server.TCPServer");
+        builder.redirectErrorStream(true);
+
+        long start = System.nanoTime();
+        Process child = builder.start();
+        long[] loadedAt = {0};
+        Thread reader = new Thread(() -> {
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (line.startsWith("Loaded ")) {
+                        synchronized (loadedAt) {
+                            loadedAt[0] = System.nanoTime();
+                            loadedAt.notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+
+        TCPConnectionPool pool = null;
+        try {
+            waitForPort(SERVER_PORT, 120000);
+            report("server: accepting", start, 0);
+
+            pool = new TCPConnectionPool("localhost", SERVER_PORT, 1, 30000, 60000, WireCodecs.BINARY);
+            Request request = new Request("VIEW_STUDENT");
+            Map<String, Object> data = new HashMap<>();
+            data.put("studentId", "S" + (count - 1));
+            request.setData(data);
+            Response response = pool.send(request);
+            report("server: first VIEW_STUDENT", start, response.isSuccess() ? 1 : 0);
+
+            synchronized (loadedAt) {
+                long deadline = System.currentTimeMillis() + 300000;
+                while (loadedAt[0] == 0 && System.currentTimeMillis() < deadline) {
+                    loadedAt.wait(1000);
+                }
+            }
+            if (loadedAt[0] != 0) {
+                System.out.printf("%-28s %10.1f ms%n", "server: all students loaded", (loadedAt[0] - start) / 1e6);
+            }
+        } finally {
+            if (pool != null) pool.close();
+            child.destroy();
+            child.waitFor(10, TimeUnit.SECONDS);
+            if (child.isAlive()) child.destroyForcibly().waitFor();
+        }
+    }
+
+    private static void report(String label, long startNanos, long amount) {
+        System.out.printf("%-28s %10.1f ms   (%d)%n", label, (System.nanoTime() - startNanos) / 1e6, amount);
+    }
+
+    private static void waitForPort(int port, long timeoutMs) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("Server did not start", e);
+                Thread.sleep(5);
+            }
+        }
+    }
+}
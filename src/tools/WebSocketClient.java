@@ -0,0 +1,119 @@
+package tools;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Minimal blocking WebSocket client speaking the same text-frame JSON protocol as
+// the browser frontends. Used by the load and comparison tools.
+public class WebSocketClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    public WebSocketClient(String host, int port, int timeoutMs) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), timeoutMs);
+        socket.setSoTimeout(timeoutMs);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new BufferedOutputStream(socket.getOutputStream());
+        handshake(host, port);
+    }
+
+    private void handshake(String host, int port) throws IOException {
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        String request = "GET / HTTP/1.1\r\n" +
+                "Host: " + host + ":" + port + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n" +
+                "Sec-WebSocket-Version: 13\r\n\r\n";
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        // Read the response headers up to the blank line
+        int matched = 0;
+        StringBuilder status = new StringBuilder();
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) throw new EOFException("Connection closed during handshake");
+            if (status.length() < 64) status.append((char) b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        if (!status.toString().startsWith("HTTP/1.1 101")) {
+            throw new IOException("Handshake rejected: " + status.toString().trim());
+        }
+    }
+
+    public void sendText(String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        int length = payload.length;
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+
+        out.write(0x81);
+        if (length <= 125) {
+            out.write(0x80 | length);
+        } else if (length <= 65535) {
+            out.write(0x80 | 126);
+            out.write(length >>> 8);
+            out.write(length);
+        } else {
+            out.write(0x80 | 127);
+            for (int i = 7; i >= 0; i--) {
+                out.write(i >= 4 ? 0 : length >>> (8 * i));
+            }
+        }
+        out.write(mask);
+        for (int i = 0; i < length; i++) {
+            payload[i] ^= mask[i & 3];
+        }
+        out.write(payload);
+        out.flush();
+    }
+
+    // Returns the next complete text message, reassembling continuation frames.
+    // Control frames are skipped; returns null once the server closes.
+    public String readText() throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            int b0 = in.read();
+            if (b0 == -1) return null;
+            int b1 = in.readUnsignedByte();
+            int opcode = b0 & 0x0F;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            byte[] mask = null;
+            if ((b1 & 0x80) != 0) {
+                mask = new byte[4];
+                in.readFully(mask);
+            }
+            if (length > Integer.MAX_VALUE) throw new IOException("Frame too large: " + length);
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+            }
+
+            if (opcode == 0x8) return null;
+            if (opcode >= 0x8) continue;
+            message.write(payload);
+            if ((b0 & 0x80) != 0) {
+                return message.toString(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}